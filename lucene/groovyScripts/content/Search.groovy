@@ -18,15 +18,13 @@
  */
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer
-import org.apache.lucene.document.Document
 import org.apache.lucene.index.Term
 import org.apache.lucene.queryparser.classic.QueryParser
-import org.apache.lucene.store.FSDirectory
 import org.apache.ofbiz.base.util.UtilHttp
+import org.apache.ofbiz.content.search.DocumentSearcherManager
 import org.apache.ofbiz.content.search.SearchWorker
 import org.apache.ofbiz.product.feature.ParametricSearch
 import org.apache.lucene.search.*
-import org.apache.lucene.index.DirectoryReader
 import org.apache.ofbiz.base.util.UtilProperties
 
 queryLine = parameters.queryLine
@@ -41,14 +39,7 @@ featureIdByType = ParametricSearch.makeFeatureIdByTypeMap(UtilHttp.getParameterM
 
 combQuery = new BooleanQuery.Builder()
 
-try {
-    DirectoryReader reader = DirectoryReader.open(FSDirectory.open(new File(SearchWorker.getIndexPath("content")).toPath()))
-    searcher = new IndexSearcher(reader)
-    analyzer = new StandardAnalyzer()
-} catch (java.io.FileNotFoundException e) {
-    context.errorMessageList.add(UtilProperties.getMessage("ContentErrorUiLabels", "ContentSearchNotIndexed", locale))
-    return
-}
+analyzer = new StandardAnalyzer()
 
 if (queryLine || siteId) {
     Query query = null
@@ -93,21 +84,18 @@ if (searchFeature1 || searchFeature2 || searchFeature3 || !featureIdByType.isEmp
     combQuery.add(featureQuery.build(), featuresRequired)
     }
 }
-if (searcher) {
-    TopScoreDocCollector collector = TopScoreDocCollector.create(100, 100) //defaulting to 100 results
-    searcher.search(combQuery.build(), collector)
-    ScoreDoc[] hits = collector.topDocs().scoreDocs
-
-    contentList = [] as ArrayList
-    hitSet = [:] as HashSet
-    for (int start = 0; start < collector.getTotalHits(); start++) {
-        Document doc = searcher.doc(hits[start].doc)
-        contentId = doc.get("contentId")
-        content = from("Content").where("contentId", contentId).cache(true).queryOne()
-        if (!hitSet.contains(contentId)) {
-            contentList.add(content)
-            hitSet.add(contentId)
-        }
-    }
-    context.queryResults = contentList
+DocumentSearcherManager searcherManager = DocumentSearcherManager.getInstance(delegator, "content")
+IndexSearcher searcher = searcherManager.acquire()
+if (!searcher) {
+    context.errorMessageList.add(UtilProperties.getMessage("ContentErrorUiLabels", "ContentSearchNotIndexed", locale))
+    return
+}
+try {
+    int viewSize = parameters.VIEW_SIZE ? Integer.valueOf(parameters.VIEW_SIZE) : 100
+    TopDocs topDocs = searcher.search(combQuery.build(), viewSize)
+    ScoreDoc[] hits = topDocs.scoreDocs
+    context.listSize = topDocs.totalHits.value
+    context.queryResults = SearchWorker.getContents(delegator, searcher, hits)
+} finally {
+    searcherManager.release(searcher)
 }
@@ -19,32 +19,20 @@
 
 
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer
+import org.apache.ofbiz.content.search.ProductSearchResult
 import org.apache.ofbiz.content.search.SearchWorker
 
-import org.apache.lucene.document.Document
-import org.apache.lucene.index.DirectoryReader
 import org.apache.lucene.queryparser.classic.ParseException
 import org.apache.lucene.queryparser.classic.QueryParser
 import org.apache.lucene.search.BooleanClause
 import org.apache.lucene.search.BooleanQuery
-import org.apache.lucene.search.IndexSearcher
 import org.apache.lucene.search.Query
 import org.apache.lucene.search.ScoreDoc
-import org.apache.lucene.search.TopScoreDocCollector
-import org.apache.lucene.store.FSDirectory
+import org.apache.lucene.search.Sort
 
 if (parameters.luceneQuery) {
-    Query combQuery = new BooleanQuery()
-    IndexSearcher searcher
-    WhitespaceAnalyzer analyzer
-    try {
-        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(new File(SearchWorker.getIndexPath("products")).toPath()))
-        searcher = new IndexSearcher(reader)
-        analyzer = new WhitespaceAnalyzer()
-    } catch (FileNotFoundException e) {
-        context.errorMessageList.add(e.getMessage())
-        return
-    }
+    BooleanQuery.Builder combQuery = new BooleanQuery.Builder()
+    WhitespaceAnalyzer analyzer = new WhitespaceAnalyzer()
 
     QueryParser parser = new QueryParser("fullText", analyzer)
     parser.setLocale(locale)
@@ -57,17 +45,27 @@ if (parameters.luceneQuery) {
     }
     combQuery.add(query, BooleanClause.Occur.MUST)
 
-    TopScoreDocCollector collector = TopScoreDocCollector.create(100, 100) // defaulting to 100 results
-    searcher.search(combQuery, collector)
-    ScoreDoc[] hits = collector.topDocs().scoreDocs
-    productList = []
-    hits.each { hit ->
-        Document doc = searcher.doc(hit.doc)
-        productId = doc.productId
-        product = from("Product").where("productId", productId).cache(true).queryOne()
-        if (product) {
-            productList.add(product)
+    // Paging parameters may come from a typed URL, anything else than a number gives the first page of the default size
+    int viewSize = parameters.VIEW_SIZE?.toString()?.isInteger() ? parameters.VIEW_SIZE.toString().toInteger() : 0
+    viewSize = viewSize > 0 ? Math.min(viewSize, 1000) : 100
+    int viewIndex = parameters.VIEW_INDEX?.toString()?.isInteger() ? Math.max(parameters.VIEW_INDEX.toString().toInteger(), 0) : 0
+    Query luceneQuery = combQuery.build()
+    Sort sort = SearchWorker.getProductSort(parameters.sortField, "Y" == parameters.sortDescending)
+    ScoreDoc after = null
+    if (viewIndex > 0) {
+        // The next page link carries the last hit of its previous page, other pages search the hits preceding them
+        after = parameters.afterHit ? SearchWorker.parseHit(parameters.afterHit, sort) : null
+        if (!after) {
+            after = SearchWorker.getLastHit(delegator, luceneQuery, sort, viewIndex * viewSize)
         }
     }
-    context.queryResults = productList
+    ProductSearchResult searchResult = SearchWorker.searchProducts(delegator, luceneQuery, sort, after, viewSize, 10)
+    context.queryResults = searchResult.getProducts()
+    context.listSize = searchResult.getTotalHits()
+    context.productFacets = searchResult.getFacets()
+    context.viewIndex = viewIndex
+    context.viewSize = viewSize
+    if (searchResult.getLastHit() && (viewIndex + 1) * (long) viewSize < searchResult.getTotalHits()) {
+        context.nextAfterHit = SearchWorker.formatHit(searchResult.getLastHit())
+    }
 }
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.content.search;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionFactoryLoader;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+
+/**
+ * The resolved ancestry of a product category: all its ancestor categories, the catalogs it or one of its
+ * ancestors belongs to, and the earliest date at which a rollup or catalog assignment of this ancestry
+ * becomes effective or expires.
+ * <p>
+ * Ancestries are cached across indexing runs, an entry is used until its <code>nextReIndex</code> date
+ * and the cache is cleared by ECAs on <code>ProductCategoryRollup</code> and <code>ProdCatalogCategory</code>,
+ * once their transaction is committed.
+ */
+public final class CategoryAncestry {
+
+    private static final String MODULE = CategoryAncestry.class.getName();
+    private static final UtilCache<String, CategoryAncestry> CATEGORY_ANCESTRY_CACHE = UtilCache.createUtilCache("lucene.CategoryAncestry",
+            0, 0, 0, true);
+
+    private final Set<String> ancestorCategoryIds;
+    private final Set<String> prodCatalogIds;
+    private final Timestamp nextReIndex;
+
+    public CategoryAncestry(Set<String> ancestorCategoryIds, Set<String> prodCatalogIds, Timestamp nextReIndex) {
+        this.ancestorCategoryIds = Collections.unmodifiableSet(ancestorCategoryIds);
+        this.prodCatalogIds = Collections.unmodifiableSet(prodCatalogIds);
+        this.nextReIndex = nextReIndex;
+    }
+
+    /**
+     * Gets the ancestor categories, the closest ones first.
+     * @return the ancestor category ids
+     */
+    public Set<String> getAncestorCategoryIds() {
+        return ancestorCategoryIds;
+    }
+
+    /**
+     * Gets the catalogs of the category and of its ancestors.
+     * @return the catalog ids
+     */
+    public Set<String> getProdCatalogIds() {
+        return prodCatalogIds;
+    }
+
+    /**
+     * Gets the earliest from/thru date of the rollups and catalog assignments of this ancestry.
+     * @return the next re-index date, <code>null</code> if the ancestry does not depend on time
+     */
+    public Timestamp getNextReIndex() {
+        return nextReIndex;
+    }
+
+    private boolean isValid(Timestamp nowTimestamp) {
+        return nextReIndex == null || nowTimestamp.before(nextReIndex);
+    }
+
+    /**
+     * Gets the cached ancestry of a category.
+     * @param delegator the delegator
+     * @param productCategoryId the category id
+     * @param nowTimestamp the current time
+     * @return the ancestry, <code>null</code> if it is not cached or no longer valid at the given time
+     */
+    public static CategoryAncestry getCached(Delegator delegator, String productCategoryId, Timestamp nowTimestamp) {
+        CategoryAncestry categoryAncestry = CATEGORY_ANCESTRY_CACHE.get(getCacheKey(delegator, productCategoryId));
+        return categoryAncestry != null && categoryAncestry.isValid(nowTimestamp) ? categoryAncestry : null;
+    }
+
+    public static void putCached(Delegator delegator, String productCategoryId, CategoryAncestry categoryAncestry) {
+        CATEGORY_ANCESTRY_CACHE.put(getCacheKey(delegator, productCategoryId), categoryAncestry);
+    }
+
+    public static void clearCache() {
+        CATEGORY_ANCESTRY_CACHE.clear();
+    }
+
+    /**
+     * Clears the cache once the current transaction is completed, or now if there is none. An ancestry resolved
+     * by another thread before the commit still reads the previous rollups, clearing the cache before would let
+     * it cache them again.
+     */
+    public static void clearCacheAfterCommit() {
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                Transaction transaction = TransactionFactoryLoader.getInstance().getTransactionManager().getTransaction();
+                if (transaction != null) {
+                    transaction.registerSynchronization(new Synchronization() {
+                        @Override
+                        public void beforeCompletion() {
+                        }
+
+                        @Override
+                        public void afterCompletion(int status) {
+                            clearCache();
+                        }
+                    });
+                    return;
+                }
+            }
+        } catch (GenericTransactionException | SystemException | RollbackException e) {
+            Debug.logWarning(e, "Could not wait for the transaction to commit, clearing the category ancestries now", MODULE);
+        }
+        clearCache();
+    }
+
+    private static String getCacheKey(Delegator delegator, String productCategoryId) {
+        return delegator.getDelegatorName() + "::" + productCategoryId;
+    }
+}
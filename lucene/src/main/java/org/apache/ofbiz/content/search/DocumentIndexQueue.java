@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.content.search;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+
+/**
+ * The queue of the documents waiting to be prepared by a {@link DocumentIndexer}, coalescing pending documents
+ * by their identifier.
+ * <p>
+ * A document queued while another one with the same identifier is still pending replaces it, keeping its place
+ * in the queue: the document is only rebuilt once, from the latest queued state. A document already taken by a
+ * preparer is no longer pending, so queuing it again rebuilds it once more.
+ * <p>
+ * As documents are prepared concurrently, the one taken last for an identifier may be prepared before an older one.
+ * Each taken document is given a sequence number, and it is {@link #release(TakenDocument) released} by the writer
+ * before being applied: an older document is then stale and dropped, so that it never overwrites a newer one.
+ */
+final class DocumentIndexQueue {
+
+    private final Map<Term, LuceneDocument> pendingDocuments = new LinkedHashMap<>();
+    private final Map<Term, Long> takenSequences = new HashMap<>();
+    private long lastSequence = 0;
+
+    /**
+     * Queues a document, replacing the pending one with the same identifier.
+     * @param document the document to queue
+     * @return <code>true</code> if no document with the same identifier was pending
+     */
+    synchronized boolean add(LuceneDocument document) {
+        boolean added = pendingDocuments.put(document.getDocumentIdentifier(), document) == null;
+        if (added) {
+            notifyAll();
+        }
+        return added;
+    }
+
+    /**
+     * Queues documents, replacing the pending ones with the same identifiers.
+     * @param documents the documents to queue
+     * @return the number of documents whose identifier was not pending
+     */
+    synchronized int addAll(Collection<? extends LuceneDocument> documents) {
+        int addedCount = 0;
+        for (LuceneDocument document : documents) {
+            if (pendingDocuments.put(document.getDocumentIdentifier(), document) == null) {
+                addedCount++;
+            }
+        }
+        if (addedCount > 0) {
+            notifyAll();
+        }
+        return addedCount;
+    }
+
+    /**
+     * Takes the oldest pending document, waiting for one if necessary.
+     * @return the document
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized TakenDocument take() throws InterruptedException {
+        while (pendingDocuments.isEmpty()) {
+            wait();
+        }
+        Iterator<LuceneDocument> iterator = pendingDocuments.values().iterator();
+        LuceneDocument document = iterator.next();
+        iterator.remove();
+        return taken(document);
+    }
+
+    /**
+     * Takes the oldest pending documents without waiting.
+     * @param documents the collection the documents are added to
+     * @param maxDocuments the maximum number of documents to take
+     * @return the number of documents taken
+     */
+    synchronized int drainTo(Collection<? super TakenDocument> documents, int maxDocuments) {
+        int drainedCount = 0;
+        Iterator<LuceneDocument> iterator = pendingDocuments.values().iterator();
+        while (drainedCount < maxDocuments && iterator.hasNext()) {
+            documents.add(taken(iterator.next()));
+            iterator.remove();
+            drainedCount++;
+        }
+        return drainedCount;
+    }
+
+    /**
+     * Releases a taken document once it is about to be applied to the index, or could not be prepared.
+     * @param takenDocument the taken document
+     * @return <code>false</code> if a document with the same identifier was taken since, this one is then stale
+     */
+    synchronized boolean release(TakenDocument takenDocument) {
+        Term documentIdentifier = takenDocument.getDocument().getDocumentIdentifier();
+        Long takenSequence = takenSequences.get(documentIdentifier);
+        if (takenSequence != null && takenSequence > takenDocument.getSequence()) {
+            return false;
+        }
+        takenSequences.remove(documentIdentifier);
+        return true;
+    }
+
+    private TakenDocument taken(LuceneDocument document) {
+        long sequence = ++lastSequence;
+        takenSequences.put(document.getDocumentIdentifier(), sequence);
+        return new TakenDocument(document, sequence);
+    }
+
+    synchronized int size() {
+        return pendingDocuments.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return pendingDocuments.isEmpty();
+    }
+
+    /**
+     * A document taken from the queue, with the sequence number telling in which order the documents were taken.
+     */
+    static final class TakenDocument {
+        private final LuceneDocument document;
+        private final long sequence;
+
+        private TakenDocument(LuceneDocument document, long sequence) {
+            this.document = document;
+            this.sequence = sequence;
+        }
+
+        LuceneDocument getDocument() {
+            return document;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+    }
+}
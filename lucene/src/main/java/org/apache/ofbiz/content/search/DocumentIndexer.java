@@ -20,12 +20,32 @@ package org.apache.ofbiz.content.search;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.content.search.DocumentIndexQueue.TakenDocument;
 import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
@@ -37,19 +57,62 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockObtainFailedException;
 
+/**
+ * Applies queued {@link LuceneDocument}s to one index through a long-lived {@link IndexWriter}.
+ * <p>
+ * Indexing is a two-stage pipeline: a pool of preparer threads builds the Lucene documents concurrently
+ * and hands them over through a bounded queue to this thread, the single writer stage, which applies them
+ * in batches. When the writer falls behind, the preparers block on the bounded queue. A document prepared while
+ * the same document was queued and taken again is stale and dropped by the writer, see {@link DocumentIndexQueue}.
+ * <p>
+ * Changes are group committed: the writer is committed as soon as one of the limits configured in
+ * <code>lucene.properties</code> (uncommitted documents, RAM buffer, latency) is reached, and is only
+ * closed when the indexer is shut down.
+ * <p>
+ * When <code>index.queue.durable</code> is set, queued products are also logged in the <code>LuceneIndexQueue</code>
+ * entity until their document is committed, and the documents left in the log by a stop or a crash are queued
+ * again when the indexer starts.
+ */
 public class DocumentIndexer extends Thread {
 
     private static final String MODULE = DocumentIndexer.class.getName();
+    private static final String QUEUE_ENTITY = "LuceneIndexQueue";
 
     private static Map<String, DocumentIndexer> documentIndexerMap = new HashMap<>();
-    private LinkedBlockingQueue<LuceneDocument> documentIndexQueue = new LinkedBlockingQueue<>();
+    private static boolean shutdownHookRegistered = false;
+    private DocumentIndexQueue documentIndexQueue = new DocumentIndexQueue();
+    private LinkedBlockingQueue<PreparedDocument> preparedDocumentQueue;
+    private ExecutorService documentPreparers;
     private Delegator delegator;
+    private String indexName;
     private Directory indexDirectory;
-    // TODO: Move to property file
-    private static final int UNCOMMITTED_DOC_LIMIT = 100;
+    private volatile IndexWriter indexWriter;
+    private volatile boolean running = true;
+
+    private final int commitMaxDocs;
+    private final long commitMaxLatency;
+    private final double ramBufferSizeMb;
+    private final int preparerThreads;
+    private final int prepareChunkSize;
+    private final long prepareRetryDelay;
+    private final boolean durable;
+    private final long writerRetryDelay;
+    private final long writerRetryMaxDelay;
 
     private DocumentIndexer(Delegator delegator, String indexName) {
         this.delegator = delegator;
+        this.indexName = indexName;
+        this.commitMaxDocs = UtilProperties.getPropertyAsInteger("lucene", "index.commit.maxDocs", 100);
+        this.commitMaxLatency = UtilProperties.getPropertyAsLong("lucene", "index.commit.maxLatency", 1000L);
+        this.ramBufferSizeMb = UtilProperties.getPropertyAsDouble("lucene", "index.ramBufferSizeMB", IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB);
+        int threads = UtilProperties.getPropertyAsInteger("lucene", "index.prepare.threads", 0);
+        this.preparerThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.prepareChunkSize = UtilProperties.getPropertyAsInteger("lucene", "index.prepare.chunkSize", 500);
+        this.prepareRetryDelay = UtilProperties.getPropertyAsLong("lucene", "index.prepare.retryDelay", 1000L);
+        this.durable = UtilProperties.getPropertyAsBoolean("lucene", "index.queue.durable", true);
+        this.writerRetryDelay = UtilProperties.getPropertyAsLong("lucene", "index.writer.retryDelay", 1000L);
+        this.writerRetryMaxDelay = UtilProperties.getPropertyAsLong("lucene", "index.writer.retryMaxDelay", 60000L);
+        this.preparedDocumentQueue = new LinkedBlockingQueue<>(UtilProperties.getPropertyAsInteger("lucene", "index.prepare.queueSize", 500));
         try {
             this.indexDirectory = FSDirectory.open(new File(SearchWorker.getIndexPath(indexName)).toPath());
         } catch (CorruptIndexException e) {
@@ -65,6 +128,10 @@ public class DocumentIndexer extends Thread {
         String documentIndexerId = delegator.getDelegatorName() + "_" + indexName;
         DocumentIndexer documentIndexer = documentIndexerMap.get(documentIndexerId);
         if (documentIndexer == null) {
+            if (!shutdownHookRegistered) {
+                Runtime.getRuntime().addShutdownHook(new Thread(DocumentIndexer::shutdownAll, "DocumentIndexer_shutdown"));
+                shutdownHookRegistered = true;
+            }
             documentIndexer = new DocumentIndexer(delegator, indexName);
             documentIndexer.setName("DocumentIndexer_" + delegator.getDelegatorName() + "_" + indexName);
             documentIndexer.start();
@@ -73,92 +140,443 @@ public class DocumentIndexer extends Thread {
         return documentIndexer;
     }
 
+    /**
+     * Stops every running indexer, committing the documents they have already applied to their writer.
+     */
+    public static void shutdownAll() {
+        List<DocumentIndexer> documentIndexers;
+        synchronized (DocumentIndexer.class) {
+            documentIndexers = new ArrayList<>(documentIndexerMap.values());
+            documentIndexerMap.clear();
+        }
+        for (DocumentIndexer documentIndexer : documentIndexers) {
+            documentIndexer.shutdown();
+        }
+    }
+
+    /**
+     * Stops this indexer and waits for it to commit and close its writer.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+        try {
+            join(commitMaxLatency + 10000L);
+        } catch (InterruptedException e) {
+            Debug.logWarning(e, getName() + ": interrupted while waiting for the indexer to stop", MODULE);
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void run() {
-        IndexWriter indexWriter = null;
-        int uncommittedDocs = 0;
-        while (true) {
-            LuceneDocument ofbizDocument;
+        replayQueuedDocuments();
+        startDocumentPreparers();
+        List<PreparedDocument> batch = new ArrayList<>();
+        List<PreparedDocument> uncommittedDocuments = new ArrayList<>();
+        long firstUncommittedTime = 0;
+        while (running) {
             try {
-                // Execution will pause here until the queue receives a LuceneDocument for indexing
-                ofbizDocument = documentIndexQueue.take();
+                PreparedDocument preparedDocument;
+                if (uncommittedDocuments.isEmpty()) {
+                    // Execution will pause here until a preparer hands over a document for indexing
+                    preparedDocument = preparedDocumentQueue.take();
+                } else {
+                    // Something is waiting to be committed, wait no longer than the commit latency
+                    long waitTime = firstUncommittedTime + commitMaxLatency - System.currentTimeMillis();
+                    preparedDocument = waitTime > 0 ? preparedDocumentQueue.poll(waitTime, TimeUnit.MILLISECONDS) : null;
+                }
+                if (preparedDocument != null) {
+                    batch.add(preparedDocument);
+                    preparedDocumentQueue.drainTo(batch, Math.max(commitMaxDocs - uncommittedDocuments.size() - 1, 0));
+                }
             } catch (InterruptedException e) {
-                Debug.logError(e, MODULE);
-                if (indexWriter != null) {
-                    try {
-                        indexWriter.close();
-                        indexWriter = null;
-                    } catch (IOException ioe) {
-                        Debug.logError(ioe, MODULE);
-                    }
+                if (running) {
+                    Debug.logError(e, MODULE);
                 }
                 break;
             }
-            Term documentIdentifier = ofbizDocument.getDocumentIdentifier();
-            Document document = ofbizDocument.prepareDocument(this.delegator);
-            if (indexWriter == null) {
-                try {
-                    StandardAnalyzer analyzer = new StandardAnalyzer();
-                    analyzer.setVersion(SearchWorker.getLuceneVersion());
-                    indexWriter = new IndexWriter(this.indexDirectory, new IndexWriterConfig(analyzer));
-                } catch (CorruptIndexException e) {
-                    Debug.logError("Corrupted lucene index: " + e.getMessage(), MODULE);
-                    break;
-                } catch (LockObtainFailedException e) {
-                    Debug.logError("Could not obtain Lock on lucene index " + e.getMessage(), MODULE);
-                    // TODO: put the thread to sleep waiting for the locked to be released
-                    break;
-                } catch (IOException e) {
-                    Debug.logError(e.getMessage(), MODULE);
+            if (!batch.isEmpty()) {
+                IndexWriter writer = waitForIndexWriter();
+                if (writer == null) {
                     break;
                 }
+                boolean wasCommitted = uncommittedDocuments.isEmpty();
+                applyDocuments(writer, batch, uncommittedDocuments);
+                if (wasCommitted && !uncommittedDocuments.isEmpty()) {
+                    firstUncommittedTime = System.currentTimeMillis();
+                }
             }
+            if (!uncommittedDocuments.isEmpty() && (uncommittedDocuments.size() >= commitMaxDocs
+                    || indexWriter.ramBytesUsed() >= ramBufferSizeMb * 1024 * 1024
+                    || System.currentTimeMillis() - firstUncommittedTime >= commitMaxLatency)) {
+                commit(uncommittedDocuments);
+            }
+        }
+        stopDocumentPreparers();
+        // Documents already prepared are applied before closing the writer
+        preparedDocumentQueue.drainTo(batch);
+        if (!batch.isEmpty() && getIndexWriter() != null) {
+            applyDocuments(indexWriter, batch, uncommittedDocuments);
+        }
+        closeIndexWriter(uncommittedDocuments);
+    }
+
+    /**
+     * Queues again the documents logged in the durable queue and not acknowledged by a commit before the last stop.
+     */
+    private void replayQueuedDocuments() {
+        if (!durable) {
+            return;
+        }
+        List<LuceneDocument> documents = new ArrayList<>();
+        try {
+            List<GenericValue> queuedDocuments = EntityQuery.use(delegator).from(QUEUE_ENTITY).where("indexName", indexName)
+                    .orderBy("queuedStamp").queryList();
+            for (GenericValue queuedDocument : queuedDocuments) {
+                if ("productId".equals(queuedDocument.getString("documentField"))) {
+                    documents.add(new ProductDocument(queuedDocument.getString("documentValue")));
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, getName() + ": could not read the durable queue of index " + indexName, MODULE);
+            return;
+        }
+        if (!documents.isEmpty()) {
+            // A product queued several times has several rows, it is only queued again once
+            int queuedCount = documentIndexQueue.addAll(documents);
+            Debug.logInfo(getName() + ": queued again " + queuedCount + " Lucene documents not committed before the last stop", MODULE);
+        }
+    }
+
+    private void startDocumentPreparers() {
+        AtomicInteger preparerCount = new AtomicInteger();
+        documentPreparers = Executors.newFixedThreadPool(preparerThreads, runnable -> {
+            Thread preparer = new Thread(runnable, getName() + "_preparer_" + preparerCount.incrementAndGet());
+            preparer.setDaemon(true);
+            return preparer;
+        });
+        for (int i = 0; i < preparerThreads; i++) {
+            documentPreparers.execute(this::prepareDocuments);
+        }
+    }
+
+    private void stopDocumentPreparers() {
+        documentPreparers.shutdownNow();
+        try {
+            if (!documentPreparers.awaitTermination(commitMaxLatency + 10000L, TimeUnit.MILLISECONDS)) {
+                Debug.logWarning(getName() + ": document preparers did not stop in time", MODULE);
+            }
+        } catch (InterruptedException e) {
+            Debug.logWarning(e, getName() + ": interrupted while waiting for the document preparers to stop", MODULE);
+        }
+    }
+
+    /**
+     * Preparer stage: builds the documents taken from the indexing queue and hands them over to the writer stage.
+     * Queued products are taken in chunks so that their documents are built with batched entity queries.
+     */
+    private void prepareDocuments() {
+        List<TakenDocument> takenDocuments = new ArrayList<>();
+        while (running) {
             try {
-                if (document == null) {
-                    indexWriter.deleteDocuments(documentIdentifier);
-                    if (Debug.infoOn()) {
-                        Debug.logInfo(getName() + ": deleted Lucene document: " + ofbizDocument, MODULE);
-                    }
-                } else {
-                    indexWriter.updateDocument(documentIdentifier, document);
-                    if (Debug.infoOn()) {
-                        Debug.logInfo(getName() + ": indexed Lucene document: " + ofbizDocument, MODULE);
+                takenDocuments.add(documentIndexQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            documentIndexQueue.drainTo(takenDocuments, prepareChunkSize - 1);
+            long takenTime = System.currentTimeMillis();
+            Map<String, Document> productDocuments = Collections.emptyMap();
+            Set<String> failedProductIds = new HashSet<>();
+            List<ProductDocument> products = new ArrayList<>();
+            for (TakenDocument takenDocument : takenDocuments) {
+                if (takenDocument.getDocument() instanceof ProductDocument) {
+                    products.add((ProductDocument) takenDocument.getDocument());
+                }
+            }
+            if (!products.isEmpty()) {
+                try {
+                    productDocuments = ProductDocument.prepareDocuments(this.delegator, products, failedProductIds);
+                } catch (RuntimeException e) {
+                    Debug.logError(e, getName() + ": error preparing Lucene documents: " + products, MODULE);
+                    for (ProductDocument product : products) {
+                        failedProductIds.add(product.getDocumentIdentifier().text());
                     }
                 }
-            } catch (Exception e) {
-                Debug.logError(e, getName() + ": error processing Lucene document: " + ofbizDocument, MODULE);
-                if (documentIndexQueue.peek() == null) {
-                    try {
-                        indexWriter.close();
-                        indexWriter = null;
-                    } catch (IOException ioe) {
-                        Debug.logError(ioe, MODULE);
+            }
+            int retriedCount = 0;
+            try {
+                for (TakenDocument takenDocument : takenDocuments) {
+                    LuceneDocument ofbizDocument = takenDocument.getDocument();
+                    Document document;
+                    if (ofbizDocument instanceof ProductDocument) {
+                        String productId = ofbizDocument.getDocumentIdentifier().text();
+                        if (failedProductIds.contains(productId)) {
+                            // Queued again rather than applied, a product without document would be removed from the index.
+                            // A product taken again since is prepared by then.
+                            if (documentIndexQueue.release(takenDocument)) {
+                                documentIndexQueue.add(ofbizDocument);
+                                retriedCount++;
+                            }
+                            continue;
+                        }
+                        document = productDocuments.get(productId);
+                    } else {
+                        try {
+                            document = ofbizDocument.prepareDocument(this.delegator);
+                        } catch (RuntimeException e) {
+                            Debug.logError(e, getName() + ": error preparing Lucene document: " + ofbizDocument, MODULE);
+                            documentIndexQueue.release(takenDocument);
+                            continue;
+                        }
                     }
+                    // Blocks while the writer stage is behind, which bounds the memory used by prepared documents
+                    preparedDocumentQueue.put(new PreparedDocument(takenDocument, document, takenTime));
+                }
+                if (retriedCount > 0) {
+                    Debug.logWarning(getName() + ": " + retriedCount + " Lucene documents could not be prepared, retrying in "
+                            + prepareRetryDelay + " ms", MODULE);
+                    // Leaves the entity engine some time to recover before the failed products are taken again
+                    Thread.sleep(prepareRetryDelay);
+                }
+            } catch (InterruptedException e) {
+                Debug.logWarning(getName() + ": dropped prepared Lucene documents on shutdown", MODULE);
+                break;
+            }
+            takenDocuments.clear();
+        }
+    }
+
+    /**
+     * Gets the writer of this indexer, opening it when needed. It is shared with the near real-time searchers.
+     * @return the index writer, <code>null</code> if it can't be opened
+     */
+    synchronized IndexWriter getIndexWriter() {
+        if (indexWriter == null) {
+            try {
+                StandardAnalyzer analyzer = new StandardAnalyzer();
+                analyzer.setVersion(SearchWorker.getLuceneVersion());
+                IndexWriterConfig indexWriterConfig = new IndexWriterConfig(analyzer);
+                indexWriterConfig.setRAMBufferSizeMB(ramBufferSizeMb);
+                indexWriter = new IndexWriter(this.indexDirectory, indexWriterConfig);
+            } catch (CorruptIndexException e) {
+                Debug.logError("Corrupted lucene index: " + e.getMessage(), MODULE);
+            } catch (LockObtainFailedException e) {
+                Debug.logError("Could not obtain Lock on lucene index " + e.getMessage(), MODULE);
+            } catch (IOException e) {
+                Debug.logError(e.getMessage(), MODULE);
+            }
+        }
+        return indexWriter;
+    }
+
+    /**
+     * Gets the writer of this indexer, retrying with an increasing delay while it can't be opened, typically
+     * because another process holds the lock of the index.
+     * @return the index writer, <code>null</code> if the indexer is stopped before it could be opened
+     */
+    private IndexWriter waitForIndexWriter() {
+        IndexWriter writer = getIndexWriter();
+        long retryDelay = writerRetryDelay;
+        while (writer == null && running) {
+            Debug.logWarning(getName() + ": could not open the index writer, retrying in " + retryDelay + " ms", MODULE);
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            retryDelay = Math.min(retryDelay * 2, writerRetryMaxDelay);
+            writer = getIndexWriter();
+        }
+        return writer;
+    }
+
+    private void applyDocuments(IndexWriter writer, List<PreparedDocument> batch, List<PreparedDocument> uncommittedDocuments) {
+        for (PreparedDocument preparedDocument : batch) {
+            // A document taken again while this one was prepared is newer, it is applied instead
+            if (!documentIndexQueue.release(preparedDocument.getTakenDocument())) {
+                if (Debug.verboseOn()) {
+                    Debug.logVerbose(getName() + ": dropped stale Lucene document: " + preparedDocument.getOfbizDocument(), MODULE);
                 }
                 continue;
             }
-            uncommittedDocs++;
-            if (uncommittedDocs == UNCOMMITTED_DOC_LIMIT || documentIndexQueue.peek() == null) {
-                // limit reached or queue empty, time to commit
-                try {
-                    indexWriter.commit();
-                } catch (IOException e) {
-                    Debug.logError(e, MODULE);
+            if (applyDocument(writer, preparedDocument)) {
+                uncommittedDocuments.add(preparedDocument);
+            }
+        }
+        batch.clear();
+    }
+
+    private boolean applyDocument(IndexWriter writer, PreparedDocument preparedDocument) {
+        LuceneDocument ofbizDocument = preparedDocument.getOfbizDocument();
+        Term documentIdentifier = ofbizDocument.getDocumentIdentifier();
+        Document document = preparedDocument.getDocument();
+        try {
+            if (document == null) {
+                writer.deleteDocuments(documentIdentifier);
+                if (Debug.infoOn()) {
+                    Debug.logInfo(getName() + ": deleted Lucene document: " + ofbizDocument, MODULE);
                 }
-                uncommittedDocs = 0;
+            } else {
+                writer.updateDocument(documentIdentifier, document);
+                if (Debug.infoOn()) {
+                    Debug.logInfo(getName() + ": indexed Lucene document: " + ofbizDocument, MODULE);
+                }
+            }
+        } catch (Exception e) {
+            Debug.logError(e, getName() + ": error processing Lucene document: " + ofbizDocument, MODULE);
+            return false;
+        }
+        return true;
+    }
+
+    private void commit(List<PreparedDocument> uncommittedDocuments) {
+        try {
+            indexWriter.commit();
+            if (Debug.verboseOn()) {
+                Debug.logVerbose(getName() + ": committed " + uncommittedDocuments.size() + " Lucene documents", MODULE);
             }
-            if (documentIndexQueue.peek() == null) {
+            DocumentSearcherManager.refresh(delegator, indexName);
+            acknowledge(uncommittedDocuments);
+            uncommittedDocuments.clear();
+        } catch (IOException e) {
+            Debug.logError(e, MODULE);
+        }
+    }
+
+    /**
+     * Removes committed documents from the durable queue. A document queued again after it was taken by a preparer
+     * has a later queued stamp and is kept until its new version is committed.
+     */
+    private void acknowledge(List<PreparedDocument> committedDocuments) {
+        if (!durable) {
+            return;
+        }
+        // Documents taken together by a preparer are acknowledged together
+        Map<Long, Map<String, List<String>>> committedValuesByTakenTime = new HashMap<>();
+        for (PreparedDocument preparedDocument : committedDocuments) {
+            if (isDurable(preparedDocument.getOfbizDocument())) {
+                Term documentIdentifier = preparedDocument.getOfbizDocument().getDocumentIdentifier();
+                committedValuesByTakenTime.computeIfAbsent(preparedDocument.getTakenTime(), k -> new HashMap<>())
+                        .computeIfAbsent(documentIdentifier.field(), k -> new ArrayList<>()).add(documentIdentifier.text());
+            }
+        }
+        for (Map.Entry<Long, Map<String, List<String>>> takenTimeEntry : committedValuesByTakenTime.entrySet()) {
+            for (Map.Entry<String, List<String>> fieldEntry : takenTimeEntry.getValue().entrySet()) {
                 try {
-                    indexWriter.close();
-                    indexWriter = null;
-                } catch (IOException e) {
-                    Debug.logError(e, MODULE);
+                    delegator.removeByCondition(QUEUE_ENTITY, EntityCondition.makeCondition(
+                            EntityCondition.makeCondition("indexName", indexName),
+                            EntityCondition.makeCondition("documentField", fieldEntry.getKey()),
+                            EntityCondition.makeCondition("documentValue", EntityOperator.IN, fieldEntry.getValue()),
+                            EntityCondition.makeCondition("queuedStamp", EntityOperator.LESS_THAN, new Timestamp(takenTimeEntry.getKey()))));
+                } catch (GenericEntityException e) {
+                    // The documents will only be indexed once more on the next start
+                    Debug.logError(e, getName() + ": could not acknowledge committed Lucene documents", MODULE);
                 }
             }
         }
     }
 
+    private synchronized void closeIndexWriter(List<PreparedDocument> uncommittedDocuments) {
+        if (!documentIndexQueue.isEmpty()) {
+            Debug.logWarning(getName() + ": stopping with " + documentIndexQueue.size() + " Lucene documents still queued"
+                    + (durable ? ", products will be queued again on the next start" : ""), MODULE);
+        }
+        if (indexWriter != null) {
+            try {
+                if (!uncommittedDocuments.isEmpty()) {
+                    commit(uncommittedDocuments);
+                }
+                indexWriter.close();
+            } catch (IOException e) {
+                Debug.logError(e, MODULE);
+            }
+            indexWriter = null;
+        }
+    }
+
+    /**
+     * Queues a document for indexing. A pending document with the same identifier is replaced, see {@link DocumentIndexQueue}.
+     * @param document the document
+     * @return <code>true</code> if no document with the same identifier was pending
+     */
     public boolean queue(LuceneDocument document) {
+        log(Collections.singletonList(document));
         return documentIndexQueue.add(document);
     }
+
+    /**
+     * Queues documents for indexing at once, coalescing them with the pending ones.
+     * @param documents the documents
+     * @return the number of documents whose identifier was not pending
+     */
+    public int queue(Collection<? extends LuceneDocument> documents) {
+        log(documents);
+        return documentIndexQueue.addAll(documents);
+    }
+
+    /**
+     * Only products can be queued again from the durable queue, other documents are rebuilt by their own services.
+     */
+    private static boolean isDurable(LuceneDocument document) {
+        return document instanceof ProductDocument;
+    }
+
+    /**
+     * Logs documents in the durable queue, in the transaction of the caller if any so that they are only logged
+     * with the changes which caused their indexing. Rows are only inserted, under a new sequence id, so that
+     * concurrent transactions queuing the same product do not wait for each other.
+     */
+    private void log(Collection<? extends LuceneDocument> documents) {
+        if (!durable) {
+            return;
+        }
+        Timestamp queuedStamp = UtilDateTime.nowTimestamp();
+        try {
+            for (LuceneDocument document : documents) {
+                if (isDurable(document)) {
+                    Term documentIdentifier = document.getDocumentIdentifier();
+                    delegator.create(QUEUE_ENTITY, UtilMisc.toMap("queueId", delegator.getNextSeqId(QUEUE_ENTITY), "indexName", indexName,
+                            "documentField", documentIdentifier.field(), "documentValue", documentIdentifier.text(), "queuedStamp", queuedStamp));
+                }
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, getName() + ": could not log queued Lucene documents, they will be lost if the indexer stops before"
+                    + " committing them", MODULE);
+        }
+    }
+
+    /**
+     * A Lucene document built by the preparer stage, a <code>null</code> document means it has to be removed from the index.
+     */
+    private static final class PreparedDocument {
+        private final TakenDocument takenDocument;
+        private final Document document;
+        private final long takenTime;
+
+        private PreparedDocument(TakenDocument takenDocument, Document document, long takenTime) {
+            this.takenDocument = takenDocument;
+            this.document = document;
+            this.takenTime = takenTime;
+        }
+
+        private TakenDocument getTakenDocument() {
+            return takenDocument;
+        }
+
+        private LuceneDocument getOfbizDocument() {
+            return takenDocument.getDocument();
+        }
+
+        private Document getDocument() {
+            return document;
+        }
+
+        /**
+         * Gets the time at which the document was taken from the indexing queue by a preparer.
+         */
+        private long getTakenTime() {
+            return takenTime;
+        }
+    }
 }
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.content.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+
+/**
+ * Shares the searchers of one index between all the searches.
+ * <p>
+ * Searchers are acquired and must be released once the search is done. They are refreshed after each commit of the
+ * {@link DocumentIndexer} of the index and every <code>index.search.refreshInterval</code> milliseconds. When
+ * <code>index.search.nrt</code> is set, searchers are opened from the live index writer so that documents become
+ * visible at the next refresh, before being committed, and are opened again from the new writer when the
+ * {@link DocumentIndexer} of the index replaces it.
+ */
+public final class DocumentSearcherManager {
+
+    private static final String MODULE = DocumentSearcherManager.class.getName();
+
+    private static Map<String, DocumentSearcherManager> documentSearcherManagerMap = new HashMap<>();
+    private static ScheduledExecutorService refresher;
+
+    private final Delegator delegator;
+    private final String indexName;
+    private final boolean nearRealTime;
+    private volatile SearcherManager searcherManager;
+    private IndexWriter searcherManagerWriter;
+
+    private DocumentSearcherManager(Delegator delegator, String indexName) {
+        this.delegator = delegator;
+        this.indexName = indexName;
+        this.nearRealTime = UtilProperties.getPropertyAsBoolean("lucene", "index.search.nrt", false);
+    }
+
+    public static synchronized DocumentSearcherManager getInstance(Delegator delegator, String indexName) {
+        String documentSearcherManagerId = delegator.getDelegatorName() + "_" + indexName;
+        DocumentSearcherManager documentSearcherManager = documentSearcherManagerMap.get(documentSearcherManagerId);
+        if (documentSearcherManager == null) {
+            if (refresher == null) {
+                long refreshInterval = UtilProperties.getPropertyAsLong("lucene", "index.search.refreshInterval", 1000L);
+                refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "DocumentSearcherManager_refresher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                refresher.scheduleWithFixedDelay(DocumentSearcherManager::refreshAll, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+            }
+            documentSearcherManager = new DocumentSearcherManager(delegator, indexName);
+            documentSearcherManagerMap.put(documentSearcherManagerId, documentSearcherManager);
+        }
+        return documentSearcherManager;
+    }
+
+    /**
+     * Refreshes the searchers of an index, if some have already been opened.
+     * @param delegator the delegator
+     * @param indexName the index name
+     */
+    public static void refresh(Delegator delegator, String indexName) {
+        DocumentSearcherManager documentSearcherManager;
+        synchronized (DocumentSearcherManager.class) {
+            documentSearcherManager = documentSearcherManagerMap.get(delegator.getDelegatorName() + "_" + indexName);
+        }
+        if (documentSearcherManager != null) {
+            documentSearcherManager.maybeRefresh();
+        }
+    }
+
+    private static void refreshAll() {
+        DocumentSearcherManager[] documentSearcherManagers;
+        synchronized (DocumentSearcherManager.class) {
+            documentSearcherManagers = documentSearcherManagerMap.values().toArray(new DocumentSearcherManager[0]);
+        }
+        for (DocumentSearcherManager documentSearcherManager : documentSearcherManagers) {
+            documentSearcherManager.maybeRefresh();
+        }
+    }
+
+    /**
+     * Acquires a searcher on the index, it must be given back with {@link #release(IndexSearcher)}.
+     * @return the searcher, <code>null</code> if nothing has been indexed yet
+     * @throws IOException if the index can't be opened
+     */
+    public IndexSearcher acquire() throws IOException {
+        SearcherManager manager = getSearcherManager();
+        if (manager == null) {
+            return null;
+        }
+        try {
+            return manager.acquire();
+        } catch (AlreadyClosedException e) {
+            // The index writer of the manager has been closed, searchers are opened again from the current one
+            closeSearcherManager(manager);
+            manager = getSearcherManager();
+            return manager != null ? manager.acquire() : null;
+        }
+    }
+
+    /**
+     * Releases a searcher acquired with {@link #acquire()}.
+     * @param searcher the searcher, may be <code>null</code>
+     */
+    public void release(IndexSearcher searcher) {
+        if (searcher == null) {
+            return;
+        }
+        try {
+            // As SearcherManager.release does, the manager which gave the searcher may have been replaced since
+            searcher.getIndexReader().decRef();
+        } catch (IOException e) {
+            Debug.logError(e, "Could not release searcher of index " + indexName, MODULE);
+        }
+    }
+
+    /**
+     * Makes the changes committed since the last refresh, or applied to the index writer in near real-time mode,
+     * visible to the next acquired searchers.
+     */
+    public void maybeRefresh() {
+        SearcherManager manager = searcherManager;
+        if (manager == null) {
+            return;
+        }
+        try {
+            manager.maybeRefresh();
+        } catch (AlreadyClosedException e) {
+            // The index writer has been closed, the next search opens a manager on the current one
+            Debug.logInfo("Searchers of index " + indexName + " will be opened again: " + e.getMessage(), MODULE);
+            closeSearcherManager(manager);
+        } catch (IOException e) {
+            Debug.logError(e, "Could not refresh searchers of index " + indexName, MODULE);
+        }
+    }
+
+    private synchronized SearcherManager getSearcherManager() throws IOException {
+        if (nearRealTime) {
+            IndexWriter indexWriter = DocumentIndexer.getInstance(delegator, indexName).getIndexWriter();
+            if (searcherManager != null && indexWriter != searcherManagerWriter) {
+                // The indexer has opened a new writer, searchers opened from the previous one would never be refreshed
+                closeSearcherManager(searcherManager);
+            }
+            if (searcherManager == null && indexWriter != null) {
+                searcherManager = new SearcherManager(indexWriter, null);
+                searcherManagerWriter = indexWriter;
+            }
+        } else if (searcherManager == null) {
+            Directory directory = FSDirectory.open(new File(SearchWorker.getIndexPath(indexName)).toPath());
+            if (DirectoryReader.indexExists(directory)) {
+                searcherManager = new SearcherManager(directory, null);
+            } else {
+                directory.close();
+            }
+        }
+        return searcherManager;
+    }
+
+    /**
+     * Closes a manager which can no longer be refreshed, unless it has already been replaced. The searchers it gave
+     * stay usable until they are released.
+     */
+    private synchronized void closeSearcherManager(SearcherManager manager) {
+        if (searcherManager != manager) {
+            return;
+        }
+        searcherManager = null;
+        searcherManagerWriter = null;
+        try {
+            manager.close();
+        } catch (IOException | AlreadyClosedException e) {
+            Debug.logWarning("Could not close searchers of index " + indexName + ": " + e.getMessage(), MODULE);
+        }
+    }
+}
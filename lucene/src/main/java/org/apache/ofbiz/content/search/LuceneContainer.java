@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.content.search;
+
+import java.util.List;
+
+import org.apache.ofbiz.base.container.Container;
+import org.apache.ofbiz.base.container.ContainerException;
+import org.apache.ofbiz.base.start.StartupCommand;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.DelegatorFactory;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * Starts on startup the indexers having documents left in their durable queue, so that they are indexed
+ * without waiting for the next indexing request, and stops all the indexers on shutdown.
+ */
+public class LuceneContainer implements Container {
+
+    private static final String MODULE = LuceneContainer.class.getName();
+
+    private String name;
+
+    @Override
+    public void init(List<StartupCommand> ofbizCommands, String name, String configFile) throws ContainerException {
+        this.name = name;
+    }
+
+    @Override
+    public boolean start() throws ContainerException {
+        if (!UtilProperties.getPropertyAsBoolean("lucene", "index.queue.durable", true)) {
+            return true;
+        }
+        Delegator delegator = DelegatorFactory.getDelegator(UtilProperties.getPropertyValue("lucene", "index.queue.delegatorName", "default"));
+        if (delegator == null) {
+            Debug.logWarning("No delegator to replay the durable Lucene queues", MODULE);
+            return true;
+        }
+        try {
+            List<GenericValue> queuedIndexes = EntityQuery.use(delegator).select("indexName").from("LuceneIndexQueue").distinct().queryList();
+            for (GenericValue queuedIndex : queuedIndexes) {
+                DocumentIndexer.getInstance(delegator, queuedIndex.getString("indexName"));
+            }
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Could not read the durable Lucene queues", MODULE);
+        }
+        return true;
+    }
+
+    @Override
+    public void stop() throws ContainerException {
+        DocumentIndexer.shutdownAll();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
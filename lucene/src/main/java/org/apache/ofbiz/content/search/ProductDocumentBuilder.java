@@ -0,0 +1,656 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.content.search;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleDocValuesField;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.GeneralException;
+import org.apache.ofbiz.base.util.GeneralRuntimeException;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.content.data.DataResourceWorker;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
+import org.apache.ofbiz.entity.util.EntityUtilProperties;
+
+/**
+ * Builds the Lucene documents of products.
+ * <p>
+ * Products are processed in chunks: each related entity is loaded with one <code>IN</code> query per chunk
+ * and the documents are then assembled from in-memory maps, so the number of queries does not depend on
+ * the number of products in the chunk.
+ */
+public class ProductDocumentBuilder {
+
+    private static final String MODULE = ProductDocumentBuilder.class.getName();
+    private static final String NULL_STRING = "NULL";
+    public static final String NEXT_RE_INDEX_FIELD = "nextReIndex";
+    /** The Product fields stored in the document, so that search results can be displayed without querying the products */
+    public static final List<String> STORED_PRODUCT_FIELDS = Collections.unmodifiableList(UtilMisc.toList("productName", "internalName",
+            "brandName", "description", "longDescription", "productTypeId", "isVirtual", "isVariant", "smallImageUrl", "mediumImageUrl"));
+    public static final String DEFAULT_PRICE_FIELD = "defaultPrice";
+    public static final String CURRENCY_UOM_ID_FIELD = "currencyUomId";
+    public static final String PRODUCT_NAME_SORT_FIELD = "productNameSort";
+    /** The facet dimensions of the product documents, indexed as sorted set doc values */
+    public static final List<String> FACET_DIMENSIONS = Collections.unmodifiableList(UtilMisc.toList("productCategoryId", "productFeatureId",
+            "brandName"));
+    private static final FacetsConfig FACETS_CONFIG = new FacetsConfig();
+
+    static {
+        FACETS_CONFIG.setMultiValued("productCategoryId", true);
+        FACETS_CONFIG.setMultiValued("productFeatureId", true);
+    }
+
+    private final Delegator delegator;
+    private final int chunkSize;
+    private int queryCount = 0;
+
+    public ProductDocumentBuilder(Delegator delegator) {
+        this.delegator = delegator;
+        this.chunkSize = UtilProperties.getPropertyAsInteger("lucene", "index.prepare.chunkSize", 500);
+    }
+
+    /**
+     * Gets the number of entity queries run by this builder so far.
+     * @return the query count
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Builds the documents of the given products. Products without a document (removed products, ignored variants)
+     * have no entry in the returned map and are meant to be removed from the index.
+     * @param productIds the ids of the products to build the documents of
+     * @return the documents by productId
+     * @throws GeneralRuntimeException if the documents of some products could not be built
+     */
+    public Map<String, Document> buildDocuments(Collection<String> productIds) {
+        List<String> failedProductIds = new ArrayList<>();
+        Map<String, Document> documents = buildDocuments(productIds, failedProductIds);
+        if (!failedProductIds.isEmpty()) {
+            throw new GeneralRuntimeException("Could not build the Lucene documents of products " + failedProductIds);
+        }
+        return documents;
+    }
+
+    /**
+     * Builds the documents of the given products, going on with the next chunks when the documents of a chunk
+     * could not be built. The products of the failed chunks have no entry in the returned map either, but must not be
+     * removed from the index.
+     * @param productIds the ids of the products to build the documents of
+     * @param failedProductIds the collection the ids of the products whose documents could not be built are added to
+     * @return the documents by productId
+     */
+    public Map<String, Document> buildDocuments(Collection<String> productIds, Collection<String> failedProductIds) {
+        Map<String, Document> documents = new HashMap<>();
+        List<String> distinctProductIds = new ArrayList<>(new LinkedHashSet<>(productIds));
+        for (int start = 0; start < distinctProductIds.size(); start += chunkSize) {
+            List<String> chunk = distinctProductIds.subList(start, Math.min(start + chunkSize, distinctProductIds.size()));
+            try {
+                buildChunk(chunk, documents);
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Could not build the Lucene documents of products " + chunk, MODULE);
+                failedProductIds.addAll(chunk);
+                // A document built before the failure may be incomplete
+                documents.keySet().removeAll(chunk);
+            }
+        }
+        return documents;
+    }
+
+    private void buildChunk(List<String> productIds, Map<String, Document> documents) throws GenericEntityException {
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+        List<GenericValue> products = findList("Product", EntityCondition.makeCondition("productId", EntityOperator.IN, productIds));
+        boolean ignoreVariants = "true".equals(EntityUtilProperties.getPropertyValue("prodsearch", "index.ignore.variants", delegator));
+        if (ignoreVariants) {
+            List<GenericValue> indexedProducts = new ArrayList<>(products.size());
+            for (GenericValue product : products) {
+                if (!"Y".equals(product.getString("isVariant"))) {
+                    indexedProducts.add(product);
+                }
+            }
+            products = indexedProducts;
+        }
+        if (products.isEmpty()) {
+            return;
+        }
+        List<String> chunkProductIds = EntityUtil.getFieldListFromEntityList(products, "productId", true);
+
+        // ProductFeature Fields, check that at least one of the fields is set to be indexed
+        Map<String, List<GenericValue>> productFeatureAndApplsByProduct = Collections.emptyMap();
+        Map<String, List<GenericValue>> productFeatureGroupApplsByFeature = Collections.emptyMap();
+        if (isWeighted("index.weight.ProductFeatureAndAppl.description") || isWeighted("index.weight.ProductFeatureAndAppl.abbrev")
+                || isWeighted("index.weight.ProductFeatureAndAppl.idCode")) {
+            productFeatureAndApplsByProduct = findGrouped("ProductFeatureAndAppl", "productId", chunkProductIds, null, nowTimestamp);
+            Set<String> productFeatureIds = new TreeSet<>();
+            for (List<GenericValue> productFeatureAndAppls : productFeatureAndApplsByProduct.values()) {
+                productFeatureIds.addAll(EntityUtil.getFieldListFromEntityList(productFeatureAndAppls, "productFeatureId", true));
+            }
+            productFeatureGroupApplsByFeature = findGrouped("ProductFeatureGroupAppl", "productFeatureId", productFeatureIds, null, nowTimestamp);
+        }
+
+        // ProductAttribute Fields
+        Map<String, List<GenericValue>> productAttributesByProduct = Collections.emptyMap();
+        if (isWeighted("index.weight.ProductAttribute.attrName") || isWeighted("index.weight.ProductAttribute.attrValue")) {
+            productAttributesByProduct = findGrouped("ProductAttribute", "productId", chunkProductIds, null, null);
+        }
+
+        // GoodIdentification
+        Map<String, List<GenericValue>> goodIdentificationsByProduct = Collections.emptyMap();
+        if (isWeighted("index.weight.GoodIdentification.idValue")) {
+            goodIdentificationsByProduct = findGrouped("GoodIdentification", "productId", chunkProductIds, null, null);
+        }
+
+        // Virtual ProductIds
+        Map<String, List<GenericValue>> variantProductAssocsByProduct = Collections.emptyMap();
+        List<String> virtualProductIds = EntityUtil.getFieldListFromEntityList(EntityUtil.filterByAnd(products,
+                UtilMisc.toMap("isVirtual", "Y")), "productId", true);
+        if (UtilValidate.isNotEmpty(virtualProductIds) && isWeighted("index.weight.Variant.Product.productId")) {
+            variantProductAssocsByProduct = findGrouped("ProductAssoc", "productId", virtualProductIds,
+                    EntityCondition.makeCondition("productAssocTypeId", "PRODUCT_VARIANT"), nowTimestamp);
+        }
+
+        // Product content, grouped by productId then by productContentTypeId
+        List<String> productContentTypeIds = new ArrayList<>();
+        String productContentTypes = EntityUtilProperties.getPropertyValue("prodsearch", "index.include.ProductContentTypes", delegator);
+        for (String productContentTypeId : productContentTypes.split(",")) {
+            if (UtilValidate.isNotEmpty(productContentTypeId.trim())) {
+                productContentTypeIds.add(productContentTypeId.trim());
+            }
+        }
+        Map<String, List<GenericValue>> productContentAndInfosByProduct = Collections.emptyMap();
+        if (!productContentTypeIds.isEmpty()) {
+            productContentAndInfosByProduct = findGrouped("ProductContentAndInfo", "productId", chunkProductIds,
+                    EntityCondition.makeCondition("productContentTypeId", EntityOperator.IN, productContentTypeIds), nowTimestamp);
+        }
+
+        Map<String, List<GenericValue>> productCategoryMembersByProduct = findGrouped("ProductCategoryMember", "productId", chunkProductIds,
+                null, nowTimestamp);
+        Map<String, CategoryAncestry> categoryAncestries = getCategoryAncestries(productCategoryMembersByProduct, nowTimestamp);
+        Map<String, List<GenericValue>> productPricesByProduct = findGrouped("ProductPrice", "productId", chunkProductIds, null, nowTimestamp);
+        Map<String, List<GenericValue>> supplierProductsByProduct = findGrouped("SupplierProduct", "productId", chunkProductIds, null, null);
+
+        String defaultCurrencyUomId = EntityUtilProperties.getPropertyValue("general", "currency.uom.id.default", "USD", delegator);
+        for (GenericValue product : products) {
+            String productId = product.getString("productId");
+            Document doc = new Document();
+            Timestamp nextReIndex = null;
+
+            // Product Fields
+            doc.add(new StringField("productId", productId, Field.Store.YES));
+            addTextField(doc, "productName", product.getString("productName"), false, "fullText");
+            addTextField(doc, "internalName", product.getString("internalName"), false, "fullText");
+            addTextField(doc, "brandName", product.getString("brandName"), false, "fullText");
+            addTextField(doc, "description", product.getString("description"), false, "fullText");
+            addTextField(doc, "longDescription", product.getString("longDescription"), false, "fullText");
+            doc.add(new LongPoint("introductionDate", quantizeTimestampToDays(product.getTimestamp("introductionDate"))));
+            nextReIndex = checkSetNextReIndex(getFutureDate(product.getTimestamp("introductionDate"), nowTimestamp), nextReIndex);
+            doc.add(new LongPoint("salesDiscontinuationDate", quantizeTimestampToDays(product.getTimestamp("salesDiscontinuationDate"))));
+            nextReIndex = checkSetNextReIndex(getFutureDate(product.getTimestamp("salesDiscontinuationDate"), nowTimestamp), nextReIndex);
+            doc.add(new StringField("isVariant", product.get("isVariant") != null && product.getBoolean("isVariant") ? "true" : "false",
+                    Field.Store.NO));
+            for (String storedProductField : STORED_PRODUCT_FIELDS) {
+                String value = product.getString(storedProductField);
+                if ("isVirtual".equals(storedProductField)) {
+                    // Always stored, searches use it to tell documents having the stored fields from older ones
+                    doc.add(new StoredField(storedProductField, UtilValidate.isNotEmpty(value) ? value : "N"));
+                } else if (UtilValidate.isNotEmpty(value)) {
+                    doc.add(new StoredField(storedProductField, value));
+                }
+            }
+            // Sort and facet fields
+            doc.add(new NumericDocValuesField("introductionDate", quantizeTimestampToDays(product.getTimestamp("introductionDate"))));
+            String productName = product.getString("productName");
+            if (UtilValidate.isNotEmpty(productName)) {
+                doc.add(new SortedDocValuesField(PRODUCT_NAME_SORT_FIELD, new BytesRef(productName.toLowerCase(Locale.ROOT))));
+            }
+            if (UtilValidate.isNotEmpty(product.getString("brandName"))) {
+                doc.add(new SortedSetDocValuesFacetField("brandName", product.getString("brandName")));
+            }
+
+            for (GenericValue productFeatureAndAppl : getList(productFeatureAndApplsByProduct, productId)) {
+                Timestamp fromDate = productFeatureAndAppl.getTimestamp("fromDate");
+                Timestamp thruDate = productFeatureAndAppl.getTimestamp("thruDate");
+                if (fromDate != null && fromDate.after(nowTimestamp)) {
+                    // fromDate is after now, update reindex date but don't index the feature
+                    nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                    continue;
+                } else if (thruDate != null) {
+                    nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+                }
+                doc.add(new StringField("productFeatureId", productFeatureAndAppl.getString("productFeatureId"), Field.Store.NO));
+                doc.add(new SortedSetDocValuesFacetField("productFeatureId", productFeatureAndAppl.getString("productFeatureId")));
+                doc.add(new StringField("productFeatureCategoryId", productFeatureAndAppl.getString("productFeatureCategoryId"), Field.Store.NO));
+                doc.add(new StringField("productFeatureTypeId", productFeatureAndAppl.getString("productFeatureTypeId"), Field.Store.NO));
+                addTextField(doc, "featureDescription", productFeatureAndAppl.getString("description"), false, "fullText");
+                addTextField(doc, "featureAbbreviation", productFeatureAndAppl.getString("abbrev"), false, "fullText");
+                addTextField(doc, "featureCode", productFeatureAndAppl.getString("idCode"), false, "fullText");
+                // Get the ProductFeatureGroupIds
+                for (GenericValue productFeatureGroupAppl : getList(productFeatureGroupApplsByFeature,
+                        productFeatureAndAppl.getString("productFeatureId"))) {
+                    fromDate = productFeatureGroupAppl.getTimestamp("fromDate");
+                    thruDate = productFeatureGroupAppl.getTimestamp("thruDate");
+                    if (fromDate != null && fromDate.after(nowTimestamp)) {
+                        // fromDate is after now, update reindex date but don't index the feature
+                        nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                        continue;
+                    } else if (thruDate != null) {
+                        nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+                    }
+                    doc.add(new StringField("productFeatureGroupId", productFeatureGroupAppl.getString("productFeatureGroupId"), Field.Store.NO));
+                }
+            }
+
+            for (GenericValue productAttribute : getList(productAttributesByProduct, productId)) {
+                addTextField(doc, "attributeName", productAttribute.getString("attrName"), false, "fullText");
+                addTextField(doc, "attributeValue", productAttribute.getString("attrValue"), false, "fullText");
+            }
+
+            for (GenericValue goodIdentification : getList(goodIdentificationsByProduct, productId)) {
+                String goodIdentificationTypeId = goodIdentification.getString("goodIdentificationTypeId");
+                String idValue = goodIdentification.getString("idValue");
+                doc.add(new StringField("goodIdentificationTypeId", goodIdentificationTypeId, Field.Store.NO));
+                doc.add(new StringField(goodIdentificationTypeId + "_GoodIdentification", idValue, Field.Store.NO));
+                addTextField(doc, "identificationValue", idValue, false, "fullText");
+            }
+
+            for (GenericValue variantProductAssoc : getList(variantProductAssocsByProduct, productId)) {
+                Timestamp fromDate = variantProductAssoc.getTimestamp("fromDate");
+                Timestamp thruDate = variantProductAssoc.getTimestamp("thruDate");
+                if (fromDate != null && fromDate.after(nowTimestamp)) {
+                    // fromDate is after now, update reindex date but don't index the feature
+                    nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                    continue;
+                } else if (thruDate != null) {
+                    nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+                }
+                addTextField(doc, "variantProductId", variantProductAssoc.getString("productIdTo"), false, "fullText");
+            }
+
+            // Index product content, in the order of the configured content types
+            List<GenericValue> productContentAndInfos = getList(productContentAndInfosByProduct, productId);
+            for (String productContentTypeId : productContentTypeIds) {
+                for (GenericValue productContentAndInfo : EntityUtil.filterByAnd(productContentAndInfos,
+                        UtilMisc.toMap("productContentTypeId", productContentTypeId))) {
+                    Timestamp fromDate = productContentAndInfo.getTimestamp("fromDate");
+                    Timestamp thruDate = productContentAndInfo.getTimestamp("thruDate");
+                    if (fromDate != null && fromDate.after(nowTimestamp)) {
+                        // fromDate is after now, update reindex date but don't index the feature
+                        nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                        continue;
+                    } else if (thruDate != null) {
+                        nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+                    }
+                    try {
+                        Map<String, Object> drContext = UtilMisc.<String, Object>toMap("product", product);
+                        String contentText = DataResourceWorker.renderDataResourceAsText(null, delegator, productContentAndInfo.getString(
+                                "dataResourceId"), drContext, null, null, false);
+                        addTextField(doc, "content", contentText, false, "fullText");
+                    } catch (IOException | GeneralException e1) {
+                        Debug.logError(e1, "Error getting content text to index", MODULE);
+                    }
+
+                    // TODO: Not indexing alternate locales, needs special handling
+                }
+            }
+
+            // Index the product's directProductCategoryIds (direct parents), productCategoryIds (all ancestors) and prodCatalogIds
+            nextReIndex = checkSetNextReIndex(populateCategoryData(doc, getList(productCategoryMembersByProduct, productId), categoryAncestries,
+                    nowTimestamp), nextReIndex);
+
+            // Index ProductPrices, uses dynamic fields in the format
+            // ${productPriceTypeId}_${productPricePurposeId}_${currencyUomId}_${productStoreGroupId}_price
+            GenericValue defaultPrice = null;
+            for (GenericValue productPrice : getList(productPricesByProduct, productId)) {
+                Timestamp fromDate = productPrice.getTimestamp("fromDate");
+                Timestamp thruDate = productPrice.getTimestamp("thruDate");
+                if (fromDate != null && fromDate.after(nowTimestamp)) {
+                    // fromDate is after now, update reindex date but don't index the feature
+                    nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                    continue;
+                } else if (thruDate != null) {
+                    nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+                }
+                StringBuilder fieldNameSb = new StringBuilder();
+                fieldNameSb.append(productPrice.getString("productPriceTypeId"));
+                fieldNameSb.append('_');
+                fieldNameSb.append(productPrice.getString("productPricePurposeId"));
+                fieldNameSb.append('_');
+                fieldNameSb.append(productPrice.getString("currencyUomId"));
+                fieldNameSb.append('_');
+                fieldNameSb.append(productPrice.getString("productStoreGroupId"));
+                fieldNameSb.append("_price");
+                doc.add(new DoublePoint(fieldNameSb.toString(), productPrice.getDouble("price")));
+                if (isDefaultPrice(productPrice, defaultCurrencyUomId) && productPrice.get("price") != null && (defaultPrice == null
+                        || isAfter(productPrice.getTimestamp("fromDate"), defaultPrice.getTimestamp("fromDate")))) {
+                    defaultPrice = productPrice;
+                }
+            }
+            // The sort and facet field has a single value, the latest of overlapping default prices is used
+            if (defaultPrice != null) {
+                doc.add(new StoredField(DEFAULT_PRICE_FIELD, defaultPrice.getDouble("price")));
+                doc.add(new DoubleDocValuesField(DEFAULT_PRICE_FIELD, defaultPrice.getDouble("price")));
+                doc.add(new StoredField(CURRENCY_UOM_ID_FIELD, defaultCurrencyUomId));
+            }
+
+            // Index ProductSuppliers
+            List<GenericValue> supplierProducts = filterByThruDate(getList(supplierProductsByProduct, productId), "availableThruDate", nowTimestamp);
+            Set<String> supplierPartyIds = new TreeSet<>();
+            for (GenericValue supplierProduct : supplierProducts) {
+                Timestamp fromDate = supplierProduct.getTimestamp("availableFromDate");
+                Timestamp thruDate = supplierProduct.getTimestamp("availableThruDate");
+                if (fromDate != null && fromDate.after(nowTimestamp)) {
+                    // fromDate is after now, update reindex date but don't index the feature
+                    nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                    continue;
+                } else if (thruDate != null) {
+                    nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+                }
+                supplierPartyIds.add(supplierProduct.getString("partyId"));
+            }
+            for (String supplierPartyId : supplierPartyIds) {
+                doc.add(new StringField("supplierPartyId", supplierPartyId, Field.Store.NO));
+            }
+
+            // The next known from/thru date whose passing will cause a change to the document, the indexDueProducts scheduled service
+            // re-indexes the product once it is passed
+            if (nextReIndex != null) {
+                doc.add(new LongPoint(NEXT_RE_INDEX_FIELD, nextReIndex.getTime()));
+                doc.add(new StoredField(NEXT_RE_INDEX_FIELD, nextReIndex.getTime()));
+                doc.add(new NumericDocValuesField(NEXT_RE_INDEX_FIELD, nextReIndex.getTime()));
+            }
+            documents.put(productId, FACETS_CONFIG.build(doc));
+        }
+    }
+
+    private Timestamp populateCategoryData(Document doc, List<GenericValue> productCategoryMembers,
+                                           Map<String, CategoryAncestry> categoryAncestries, Timestamp nowTimestamp) {
+        Timestamp nextReIndex = null;
+        Set<String> indexedCategoryIds = new TreeSet<>();
+        Set<String> indexedCatalogIds = new TreeSet<>();
+        for (GenericValue productCategoryMember : productCategoryMembers) {
+            String productCategoryId = productCategoryMember.getString("productCategoryId");
+            doc.add(new StringField("productCategoryId", productCategoryId, Field.Store.NO));
+            doc.add(new StringField("directProductCategoryId", productCategoryId, Field.Store.NO));
+            if (indexedCategoryIds.add(productCategoryId)) {
+                doc.add(new SortedSetDocValuesFacetField("productCategoryId", productCategoryId));
+            }
+            Timestamp fromDate = productCategoryMember.getTimestamp("fromDate");
+            Timestamp thruDate = productCategoryMember.getTimestamp("thruDate");
+            if (fromDate != null && fromDate.after(nowTimestamp)) {
+                // fromDate is after now, update reindex date but don't index the feature
+                nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                continue;
+            } else if (thruDate != null) {
+                nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+            }
+            CategoryAncestry categoryAncestry = categoryAncestries.get(productCategoryId);
+            for (String ancestorCategoryId : categoryAncestry.getAncestorCategoryIds()) {
+                if (indexedCategoryIds.add(ancestorCategoryId)) {
+                    doc.add(new StringField("productCategoryId", ancestorCategoryId, Field.Store.NO));
+                    doc.add(new SortedSetDocValuesFacetField("productCategoryId", ancestorCategoryId));
+                }
+            }
+            for (String prodCatalogId : categoryAncestry.getProdCatalogIds()) {
+                if (indexedCatalogIds.add(prodCatalogId)) {
+                    doc.add(new StringField("prodCatalogId", prodCatalogId, Field.Store.NO));
+                }
+            }
+            nextReIndex = checkSetNextReIndex(categoryAncestry.getNextReIndex(), nextReIndex);
+        }
+        return nextReIndex;
+    }
+
+    /**
+     * Gets the ancestries of the categories of the chunk, from the cache when possible. The missing ones are resolved
+     * from the rollups and catalog assignments of the categories and of all their ancestors, loaded with one query
+     * per entity and per level of the category tree.
+     */
+    private Map<String, CategoryAncestry> getCategoryAncestries(Map<String, List<GenericValue>> productCategoryMembersByProduct,
+                                                                Timestamp nowTimestamp) throws GenericEntityException {
+        Map<String, CategoryAncestry> categoryAncestries = new HashMap<>();
+        Set<String> missingCategoryIds = new TreeSet<>();
+        for (List<GenericValue> productCategoryMembers : productCategoryMembersByProduct.values()) {
+            for (GenericValue productCategoryMember : productCategoryMembers) {
+                String productCategoryId = productCategoryMember.getString("productCategoryId");
+                if (categoryAncestries.containsKey(productCategoryId) || missingCategoryIds.contains(productCategoryId)) {
+                    continue;
+                }
+                CategoryAncestry categoryAncestry = CategoryAncestry.getCached(delegator, productCategoryId, nowTimestamp);
+                if (categoryAncestry != null) {
+                    categoryAncestries.put(productCategoryId, categoryAncestry);
+                } else {
+                    missingCategoryIds.add(productCategoryId);
+                }
+            }
+        }
+        if (missingCategoryIds.isEmpty()) {
+            return categoryAncestries;
+        }
+
+        Map<String, List<GenericValue>> productCategoryRollupsByCategory = new HashMap<>();
+        Map<String, List<GenericValue>> prodCatalogCategoriesByCategory = new HashMap<>();
+        Set<String> productCategoryIds = missingCategoryIds;
+        Set<String> loadedCategoryIds = new TreeSet<>();
+        while (!productCategoryIds.isEmpty()) {
+            loadedCategoryIds.addAll(productCategoryIds);
+            Map<String, List<GenericValue>> productCategoryRollups = findGrouped("ProductCategoryRollup", "productCategoryId",
+                    productCategoryIds, null, nowTimestamp);
+            productCategoryRollupsByCategory.putAll(productCategoryRollups);
+            prodCatalogCategoriesByCategory.putAll(findGrouped("ProdCatalogCategory", "productCategoryId", productCategoryIds,
+                    null, nowTimestamp));
+            productCategoryIds = new TreeSet<>();
+            for (List<GenericValue> rollups : productCategoryRollups.values()) {
+                for (GenericValue rollup : rollups) {
+                    String parentProductCategoryId = rollup.getString("parentProductCategoryId");
+                    if (!loadedCategoryIds.contains(parentProductCategoryId)) {
+                        productCategoryIds.add(parentProductCategoryId);
+                    }
+                }
+            }
+        }
+
+        for (String productCategoryId : missingCategoryIds) {
+            CategoryAncestry categoryAncestry = resolveCategoryAncestry(productCategoryId, productCategoryRollupsByCategory,
+                    prodCatalogCategoriesByCategory, nowTimestamp);
+            CategoryAncestry.putCached(delegator, productCategoryId, categoryAncestry);
+            categoryAncestries.put(productCategoryId, categoryAncestry);
+        }
+        return categoryAncestries;
+    }
+
+    private static CategoryAncestry resolveCategoryAncestry(String productCategoryId,
+                                                            Map<String, List<GenericValue>> productCategoryRollupsByCategory,
+                                                            Map<String, List<GenericValue>> prodCatalogCategoriesByCategory,
+                                                            Timestamp nowTimestamp) {
+        Timestamp nextReIndex = null;
+        Set<String> ancestorCategoryIds = new LinkedHashSet<>();
+        Set<String> prodCatalogIds = new LinkedHashSet<>();
+        Set<String> visitedCategoryIds = new TreeSet<>();
+        Deque<String> categoriesToVisit = new ArrayDeque<>();
+        visitedCategoryIds.add(productCategoryId);
+        categoriesToVisit.add(productCategoryId);
+        while (!categoriesToVisit.isEmpty()) {
+            String categoryId = categoriesToVisit.poll();
+            for (GenericValue prodCatalogCategory : getList(prodCatalogCategoriesByCategory, categoryId)) {
+                Timestamp fromDate = prodCatalogCategory.getTimestamp("fromDate");
+                Timestamp thruDate = prodCatalogCategory.getTimestamp("thruDate");
+                if (fromDate != null && fromDate.after(nowTimestamp)) {
+                    // fromDate is after now, update reindex date but don't index now
+                    nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                    continue;
+                } else if (thruDate != null) {
+                    nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+                }
+                prodCatalogIds.add(prodCatalogCategory.getString("prodCatalogId"));
+            }
+            for (GenericValue productCategoryRollup : getList(productCategoryRollupsByCategory, categoryId)) {
+                Timestamp fromDate = productCategoryRollup.getTimestamp("fromDate");
+                Timestamp thruDate = productCategoryRollup.getTimestamp("thruDate");
+                if (fromDate != null && fromDate.after(nowTimestamp)) {
+                    // fromDate is after now, update reindex date but don't index now
+                    nextReIndex = checkSetNextReIndex(fromDate, nextReIndex);
+                    continue;
+                } else if (thruDate != null) {
+                    nextReIndex = checkSetNextReIndex(thruDate, nextReIndex);
+                }
+                // Skip if we've done this category already
+                String parentProductCategoryId = productCategoryRollup.getString("parentProductCategoryId");
+                if (visitedCategoryIds.add(parentProductCategoryId)) {
+                    ancestorCategoryIds.add(parentProductCategoryId);
+                    categoriesToVisit.add(parentProductCategoryId);
+                }
+            }
+        }
+        return new CategoryAncestry(ancestorCategoryIds, prodCatalogIds, nextReIndex);
+    }
+
+    private boolean isWeighted(String weightPropertyName) {
+        return !"0".equals(EntityUtilProperties.getPropertyValue("prodsearch", weightPropertyName, "0", delegator));
+    }
+
+    private List<GenericValue> findList(String entityName, EntityCondition condition) throws GenericEntityException {
+        queryCount++;
+        return EntityQuery.use(delegator).from(entityName).where(condition).queryList();
+    }
+
+    /**
+     * Runs one query for all the given keys and groups the results by the key field, values whose thruDate
+     * is passed are filtered out when a timestamp is given.
+     */
+    private Map<String, List<GenericValue>> findGrouped(String entityName, String keyFieldName, Collection<String> keys,
+                                                        EntityCondition additionalCondition, Timestamp thruDateFilter)
+            throws GenericEntityException {
+        Map<String, List<GenericValue>> groupedValues = new HashMap<>();
+        if (UtilValidate.isEmpty(keys)) {
+            return groupedValues;
+        }
+        EntityCondition condition = EntityCondition.makeCondition(keyFieldName, EntityOperator.IN, keys);
+        if (additionalCondition != null) {
+            condition = EntityCondition.makeCondition(condition, EntityOperator.AND, additionalCondition);
+        }
+        List<GenericValue> values = findList(entityName, condition);
+        if (thruDateFilter != null) {
+            values = filterByThruDate(values, "thruDate", thruDateFilter);
+        }
+        for (GenericValue value : values) {
+            groupedValues.computeIfAbsent(value.getString(keyFieldName), k -> new ArrayList<>()).add(value);
+        }
+        return groupedValues;
+    }
+
+    private static List<GenericValue> getList(Map<String, List<GenericValue>> groupedValues, String key) {
+        List<GenericValue> values = groupedValues.get(key);
+        return values != null ? values : Collections.emptyList();
+    }
+
+    // An attempt to boost/weight values in a similar manner to what OFBiz product search does.
+    private static void addTextField(Document doc, String fieldName, String value, boolean store, String fullTextFieldName) {
+        if (fieldName == null) return;
+
+        Field field = new TextField(fieldName, checkValue(value), (store ? Field.Store.YES : Field.Store.NO));
+        doc.add(field);
+        if (fullTextFieldName != null) {
+            doc.add(new TextField(fullTextFieldName, checkValue(value), Field.Store.NO));
+        }
+    }
+
+    private static String checkValue(String value) {
+        if (UtilValidate.isEmpty(value)) {
+            return NULL_STRING;
+        }
+        return value;
+    }
+
+    private static Timestamp checkSetNextReIndex(Timestamp nextValue, Timestamp currentValue) {
+        // nextValue is null, stick with what we've got
+        if (nextValue == null) return currentValue;
+        // currentValue is null so use nextValue
+        if (currentValue == null) return nextValue;
+        // currentValue is after nextValue so use nextValue
+        if (currentValue.after(nextValue)) return nextValue;
+        // stick with current value
+        return currentValue;
+    }
+
+    private static boolean isDefaultPrice(GenericValue productPrice, String defaultCurrencyUomId) {
+        return "DEFAULT_PRICE".equals(productPrice.getString("productPriceTypeId"))
+                && "PURCHASE".equals(productPrice.getString("productPricePurposeId"))
+                && "_NA_".equals(productPrice.getString("productStoreGroupId"))
+                && defaultCurrencyUomId.equals(productPrice.getString("currencyUomId"));
+    }
+
+    private static boolean isAfter(Timestamp date, Timestamp otherDate) {
+        return otherDate == null || (date != null && date.after(otherDate));
+    }
+
+    private static Timestamp getFutureDate(Timestamp date, Timestamp nowTimestamp) {
+        return date != null && date.after(nowTimestamp) ? date : null;
+    }
+
+    private static List<GenericValue> filterByThruDate(List<GenericValue> values, String thruDateName, Timestamp nowTimestamp) {
+        return EntityUtil.filterByCondition(values, EntityCondition.makeCondition(
+                EntityCondition.makeCondition(thruDateName, EntityOperator.EQUALS, null),
+                EntityOperator.OR,
+                EntityCondition.makeCondition(thruDateName, EntityOperator.GREATER_THAN, nowTimestamp)));
+    }
+
+    private static long quantizeTimestampToDays(Timestamp date) {
+        long quantizedDate = 0;
+        if (date != null) {
+            quantizedDate = date.getTime() / 24 / 3600;
+        }
+        return quantizedDate;
+    }
+}
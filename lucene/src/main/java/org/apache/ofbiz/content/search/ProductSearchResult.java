@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.content.search;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * A page of products found by {@link SearchWorker#searchProducts}, with the facet counts of all the matching products.
+ */
+public final class ProductSearchResult {
+
+    private final List<Map<String, Object>> products;
+    private final long totalHits;
+    private final ScoreDoc lastHit;
+    private final Map<String, Map<String, Long>> facets;
+
+    public ProductSearchResult(List<Map<String, Object>> products, long totalHits, ScoreDoc lastHit, Map<String, Map<String, Long>> facets) {
+        this.products = Collections.unmodifiableList(products);
+        this.totalHits = totalHits;
+        this.lastHit = lastHit;
+        this.facets = Collections.unmodifiableMap(facets);
+    }
+
+    /**
+     * Gets the products of the page, see {@link SearchWorker#getProductProjections}.
+     * @return the products, in the order of the search
+     */
+    public List<Map<String, Object>> getProducts() {
+        return products;
+    }
+
+    /**
+     * Gets the number of products matching the query, across all the pages.
+     * @return the total number of hits
+     */
+    public long getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * Gets the last hit of the page, to be given back to get the next page.
+     * @return the last hit, <code>null</code> if the page is empty
+     */
+    public ScoreDoc getLastHit() {
+        return lastHit;
+    }
+
+    /**
+     * Gets the facet counts by dimension, each one mapping the values of the dimension to their number of matching
+     * products, the most frequent first. The price ranges are under the <code>defaultPrice</code> dimension.
+     * @return the facet counts
+     */
+    public Map<String, Map<String, Long>> getFacets() {
+        return facets;
+    }
+}
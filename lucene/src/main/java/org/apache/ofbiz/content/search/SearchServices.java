@@ -18,25 +18,34 @@
  *******************************************************************************/
 package org.apache.ofbiz.content.search;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
 import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.service.DispatchContext;
-import org.apache.ofbiz.service.GenericServiceException;
 import org.apache.ofbiz.service.ServiceUtil;
 import org.apache.ofbiz.service.LocalDispatcher;
 
-import java.util.HashMap;
-
 /**
  * SearchServices Class
  */
@@ -68,66 +77,77 @@ public class SearchServices {
         return ServiceUtil.returnSuccess();
     }
 
-    public static Map<String, Object> indexProductsFromFeature(DispatchContext dctx, Map<String, ? extends Object> context) {
+    public static Map<String, Object> indexDueProducts(DispatchContext dctx, Map<String, ? extends Object> context) {
         Delegator delegator = dctx.getDelegator();
-        LocalDispatcher dispatcher = dctx.getDispatcher();
+        int productCount = 0;
+        DocumentSearcherManager searcherManager = DocumentSearcherManager.getInstance(delegator, "products");
+        IndexSearcher searcher = null;
         try {
-            // Only re-index the active appls, future dated ones will get picked up on that product's re-index date
-            List<GenericValue> productFeatureAppls = EntityQuery.use(delegator).from("ProductFeatureAppl").where("productFeatureId", context.get(
-                    "productFeatureId")).filterByDate().queryList();
-
-            for (GenericValue productFeatureAppl : productFeatureAppls) {
-                try {
-                    Map<String, Object> result = dispatcher.runSync("indexProduct", UtilMisc.toMap("productId", productFeatureAppl.get("productId")));
-                    if (ServiceUtil.isError(result)) {
-                        return ServiceUtil.returnError(ServiceUtil.getErrorMessage(result));
+            searcher = searcherManager.acquire();
+            if (searcher != null) {
+                // Products whose next from/thru date is passed
+                Query query = LongPoint.newRangeQuery(ProductDocumentBuilder.NEXT_RE_INDEX_FIELD, Long.MIN_VALUE, System.currentTimeMillis());
+                int dueCount = searcher.count(query);
+                if (dueCount > 0) {
+                    Set<String> fieldsToLoad = Collections.singleton("productId");
+                    List<String> productIds = new ArrayList<>(dueCount);
+                    for (ScoreDoc scoreDoc : searcher.search(query, dueCount).scoreDocs) {
+                        productIds.add(searcher.doc(scoreDoc.doc, fieldsToLoad).get("productId"));
                     }
-                } catch (GenericServiceException e) {
-                    Debug.logError(e, MODULE);
+                    queueProducts(delegator, productIds);
+                    productCount = productIds.size();
                 }
             }
-
-        } catch (GenericEntityException e) {
+        } catch (IOException e) {
             Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        } finally {
+            searcherManager.release(searcher);
         }
+        if (productCount > 0 && Debug.infoOn()) {
+            Debug.logInfo("Submitted for indexing " + productCount + " products whose next re-index date is passed", MODULE);
+        }
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("productCount", productCount);
+        return result;
+    }
+
+    public static Map<String, Object> clearCategoryAncestryCache(DispatchContext dctx, Map<String, ? extends Object> context) {
+        CategoryAncestry.clearCacheAfterCommit();
         return ServiceUtil.returnSuccess();
     }
 
-    public static Map<String, Object> indexProductsFromProductAssoc(DispatchContext dctx, Map<String, ? extends Object> context) {
-        LocalDispatcher dispatcher = dctx.getDispatcher();
-        Map<String, Object> result = new HashMap<>();
+    public static Map<String, Object> indexProductsFromFeature(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
         try {
-            result = dispatcher.runSync("indexProduct", UtilMisc.toMap("productId", context.get("productId")));
-            if (ServiceUtil.isError(result)) {
-                return ServiceUtil.returnError(ServiceUtil.getErrorMessage(result));
-            }
-            result = dispatcher.runSync("indexProduct", UtilMisc.toMap("productId", context.get("productIdTo")));
-            if (ServiceUtil.isError(result)) {
-                return ServiceUtil.returnError(ServiceUtil.getErrorMessage(result));
-            }
-        } catch (GenericServiceException e) {
+            // Only re-index the active appls, future dated ones will get picked up on that product's re-index date
+            List<GenericValue> productFeatureAppls = EntityQuery.use(delegator).from("ProductFeatureAppl").where("productFeatureId", context.get(
+                    "productFeatureId")).filterByDate().queryList();
+            queueProducts(delegator, EntityUtil.getFieldListFromEntityList(productFeatureAppls, "productId", true));
+        } catch (GenericEntityException e) {
             Debug.logError(e, MODULE);
         }
         return ServiceUtil.returnSuccess();
     }
 
+    public static Map<String, Object> indexProductsFromProductAssoc(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        queueProducts(delegator, UtilMisc.toSet((String) context.get("productId"), (String) context.get("productIdTo")));
+        return ServiceUtil.returnSuccess();
+    }
+
     public static Map<String, Object> indexProductsFromDataResource(DispatchContext dctx, Map<String, ? extends Object> context) {
         Delegator delegator = dctx.getDelegator();
-        LocalDispatcher dispatcher = dctx.getDispatcher();
-        Map<String, Object> result = new HashMap<>();
         try {
             List<GenericValue> contents =
                     EntityQuery.use(delegator).from("Content").where("dataResourceId", context.get("dataResourceId")).queryList();
-            for (GenericValue content : contents) {
-                result = dispatcher.runSync("indexProductsFromContent",
-                        UtilMisc.toMap(
-                                "userLogin", context.get("userLogin"),
-                                "contentId", content.get("contentId")));
-                if (ServiceUtil.isError(result)) {
-                    return ServiceUtil.returnError(ServiceUtil.getErrorMessage(result));
-                }
+            if (!contents.isEmpty()) {
+                List<String> contentIds = EntityUtil.getFieldListFromEntityList(contents, "contentId", true);
+                List<GenericValue> productContents = EntityQuery.use(delegator).from("ProductContent")
+                        .where(EntityCondition.makeCondition("contentId", EntityOperator.IN, contentIds)).queryList();
+                queueProducts(delegator, EntityUtil.getFieldListFromEntityList(productContents, "productId", true));
             }
-        } catch (GenericEntityException | GenericServiceException e) {
+        } catch (GenericEntityException e) {
             Debug.logError(e, MODULE);
         }
         return ServiceUtil.returnSuccess();
@@ -135,20 +155,10 @@ public class SearchServices {
 
     public static Map<String, Object> indexProductsFromContent(DispatchContext dctx, Map<String, ? extends Object> context) {
         Delegator delegator = dctx.getDelegator();
-        LocalDispatcher dispatcher = dctx.getDispatcher();
         try {
             List<GenericValue> productContents =
                     EntityQuery.use(delegator).from("ProductContent").where("contentId", context.get("contentId")).queryList();
-            for (GenericValue productContent : productContents) {
-                try {
-                    Map<String, Object> result = dispatcher.runSync("indexProduct", UtilMisc.toMap("productId", productContent.get("productId")));
-                    if (ServiceUtil.isError(result)) {
-                        return ServiceUtil.returnError(ServiceUtil.getErrorMessage(result));
-                    }
-                } catch (GenericServiceException e) {
-                    Debug.logError(e, MODULE);
-                }
-            }
+            queueProducts(delegator, EntityUtil.getFieldListFromEntityList(productContents, "productId", true));
         } catch (GenericEntityException e) {
             Debug.logError(e, MODULE);
         }
@@ -157,19 +167,20 @@ public class SearchServices {
 
     public static Map<String, Object> indexProductsFromCategory(DispatchContext dctx, Map<String, Object> context) {
         Delegator delegator = dctx.getDelegator();
-        LocalDispatcher dispatcher = dctx.getDispatcher();
         try {
             String productCategoryId = (String) context.get("productCategoryId");
-            indexProductCategoryMembers(productCategoryId, delegator, dispatcher);
-            indexProductCategoryRollup(productCategoryId, delegator, dispatcher, UtilMisc.<String>toSet(productCategoryId));
+            Set<String> productIds = new LinkedHashSet<>();
+            addProductCategoryMembers(productCategoryId, delegator, productIds);
+            addProductCategoryRollup(productCategoryId, delegator, UtilMisc.<String>toSet(productCategoryId), productIds);
+            queueProducts(delegator, productIds);
         } catch (GenericEntityException e) {
             Debug.logError(e, MODULE);
         }
         return ServiceUtil.returnSuccess();
     }
 
-    private static void indexProductCategoryRollup(String parentProductCategoryId, Delegator delegator, LocalDispatcher dispatcher,
-                                                   Set<String> excludeProductCategoryIds) throws GenericEntityException {
+    private static void addProductCategoryRollup(String parentProductCategoryId, Delegator delegator, Set<String> excludeProductCategoryIds,
+                                                 Set<String> productIds) throws GenericEntityException {
         List<GenericValue> productCategoryRollups = EntityQuery.use(delegator).from("ProductCategoryRollup").where("parentProductCategoryId",
                 parentProductCategoryId).queryList();
         for (GenericValue productCategoryRollup : productCategoryRollups) {
@@ -178,26 +189,39 @@ public class SearchServices {
             if (!excludeProductCategoryIds.add(productCategoryId)) {
                 continue;
             }
-            indexProductCategoryMembers(productCategoryId, delegator, dispatcher);
-            indexProductCategoryRollup(productCategoryId, delegator, dispatcher, excludeProductCategoryIds);
+            addProductCategoryMembers(productCategoryId, delegator, productIds);
+            addProductCategoryRollup(productCategoryId, delegator, excludeProductCategoryIds, productIds);
         }
     }
 
-    private static void indexProductCategoryMembers(String productCategoryId, Delegator delegator, LocalDispatcher dispatcher)
+    private static void addProductCategoryMembers(String productCategoryId, Delegator delegator, Set<String> productIds)
             throws GenericEntityException {
         List<GenericValue> productCategoryMembers = EntityQuery.use(delegator).from("ProductCategoryMember").where("productCategoryId",
                 productCategoryId).queryList();
-        Map<String, Object> result;
         for (GenericValue productCategoryMember : productCategoryMembers) {
-            try {
-                result = dispatcher.runSync("indexProduct", UtilMisc.toMap("productId", productCategoryMember.get("productId")));
-                if (ServiceUtil.isError(result)) {
-                    throw new GenericEntityException(ServiceUtil.getErrorMessage(result));
-                }
-            } catch (GenericServiceException e) {
-                Debug.logError(e, MODULE);
-            }
+            productIds.add(productCategoryMember.getString("productId"));
         }
     }
 
+    /**
+     * Queues products for indexing at once, the products already waiting in the queue are only indexed once.
+     * @param delegator the delegator
+     * @param productIds the ids of the products
+     */
+    private static void queueProducts(Delegator delegator, Collection<String> productIds) {
+        if (productIds.isEmpty()) {
+            return;
+        }
+        List<ProductDocument> productDocuments = new ArrayList<>(productIds.size());
+        for (String productId : productIds) {
+            if (productId != null) {
+                productDocuments.add(new ProductDocument(productId));
+            }
+        }
+        int queuedCount = DocumentIndexer.getInstance(delegator, "products").queue(productDocuments);
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Queued " + productDocuments.size() + " products for indexing, " + (productDocuments.size() - queuedCount)
+                    + " of them were already queued", MODULE);
+        }
+    }
 }
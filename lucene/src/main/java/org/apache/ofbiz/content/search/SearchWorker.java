@@ -18,9 +18,39 @@
  *******************************************************************************/
 package org.apache.ofbiz.content.search;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.Facets;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.facet.range.DoubleRange;
+import org.apache.lucene.facet.range.DoubleRangeFacetCounts;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilDateTime;
@@ -31,6 +61,8 @@ import org.apache.ofbiz.content.content.ContentWorker;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.service.LocalDispatcher;
 
@@ -42,6 +74,18 @@ public final class SearchWorker {
     private static final String MODULE = SearchWorker.class.getName();
 
     private static final Version LUCENE_VERSION = Version.LUCENE_8_5_2;
+    private static final Set<String> PRODUCT_PROJECTION_FIELDS = new HashSet<>();
+    private static final Set<String> CONTENT_ID_FIELDS = Collections.singleton("contentId");
+    private static final Map<IndexReader.CacheKey, SortedSetDocValuesReaderState> FACETS_STATES = new ConcurrentHashMap<>();
+    private static final String HIT_SEPARATOR = ",";
+    private static final String NULL_HIT_VALUE = "~";
+
+    static {
+        PRODUCT_PROJECTION_FIELDS.add("productId");
+        PRODUCT_PROJECTION_FIELDS.addAll(ProductDocumentBuilder.STORED_PRODUCT_FIELDS);
+        PRODUCT_PROJECTION_FIELDS.add(ProductDocumentBuilder.DEFAULT_PRICE_FIELD);
+        PRODUCT_PROJECTION_FIELDS.add(ProductDocumentBuilder.CURRENCY_UOM_ID_FIELD);
+    }
 
     private SearchWorker() { }
 
@@ -92,6 +136,370 @@ public final class SearchWorker {
         }
     }
 
+    /**
+     * Gets the products of search hits from the fields stored in the index. Products indexed before these fields
+     * were stored are completed with a single query.
+     * @param delegator the delegator
+     * @param searcher the searcher which found the hits
+     * @param hits the hits
+     * @return the products of the hits, as maps of their stored fields, in the order of the hits
+     * @throws IOException if the documents can't be read
+     * @throws GenericEntityException if the products can't be queried
+     */
+    public static List<Map<String, Object>> getProductProjections(Delegator delegator, IndexSearcher searcher, ScoreDoc[] hits)
+            throws IOException, GenericEntityException {
+        Map<String, Map<String, Object>> productProjections = new LinkedHashMap<>();
+        List<String> missingProductIds = new ArrayList<>();
+        for (ScoreDoc hit : hits) {
+            Document doc = searcher.doc(hit.doc, PRODUCT_PROJECTION_FIELDS);
+            String productId = doc.get("productId");
+            if (productId == null || productProjections.containsKey(productId)) {
+                continue;
+            }
+            // isVirtual is always stored for documents having a projection
+            if (doc.get("isVirtual") == null) {
+                missingProductIds.add(productId);
+                productProjections.put(productId, null);
+                continue;
+            }
+            Map<String, Object> productProjection = new HashMap<>();
+            productProjection.put("productId", productId);
+            for (String fieldName : ProductDocumentBuilder.STORED_PRODUCT_FIELDS) {
+                productProjection.put(fieldName, doc.get(fieldName));
+            }
+            IndexableField defaultPrice = doc.getField(ProductDocumentBuilder.DEFAULT_PRICE_FIELD);
+            if (defaultPrice != null) {
+                productProjection.put(ProductDocumentBuilder.DEFAULT_PRICE_FIELD, defaultPrice.numericValue());
+                productProjection.put(ProductDocumentBuilder.CURRENCY_UOM_ID_FIELD, doc.get(ProductDocumentBuilder.CURRENCY_UOM_ID_FIELD));
+            }
+            productProjections.put(productId, productProjection);
+        }
+        if (!missingProductIds.isEmpty()) {
+            List<GenericValue> products = EntityQuery.use(delegator).from("Product")
+                    .where(EntityCondition.makeCondition("productId", EntityOperator.IN, missingProductIds)).queryList();
+            for (GenericValue product : products) {
+                Map<String, Object> productProjection = new HashMap<>();
+                productProjection.put("productId", product.getString("productId"));
+                for (String fieldName : ProductDocumentBuilder.STORED_PRODUCT_FIELDS) {
+                    productProjection.put(fieldName, product.get(fieldName));
+                }
+                productProjections.put(product.getString("productId"), productProjection);
+            }
+        }
+        List<Map<String, Object>> productList = new ArrayList<>(productProjections.size());
+        for (Map<String, Object> productProjection : productProjections.values()) {
+            // Products removed since they were indexed have no projection
+            if (productProjection != null) {
+                productList.add(productProjection);
+            }
+        }
+        return productList;
+    }
+
+    /**
+     * Gets the contents of search hits with a single query.
+     * @param delegator the delegator
+     * @param searcher the searcher which found the hits
+     * @param hits the hits
+     * @return the contents of the hits, in the order of the hits
+     * @throws IOException if the documents can't be read
+     * @throws GenericEntityException if the contents can't be queried
+     */
+    public static List<GenericValue> getContents(Delegator delegator, IndexSearcher searcher, ScoreDoc[] hits)
+            throws IOException, GenericEntityException {
+        Set<String> contentIds = new LinkedHashSet<>();
+        for (ScoreDoc hit : hits) {
+            String contentId = searcher.doc(hit.doc, CONTENT_ID_FIELDS).get("contentId");
+            if (contentId != null) {
+                contentIds.add(contentId);
+            }
+        }
+        List<GenericValue> contentList = new ArrayList<>(contentIds.size());
+        if (contentIds.isEmpty()) {
+            return contentList;
+        }
+        Map<String, GenericValue> contents = new HashMap<>();
+        for (GenericValue content : EntityQuery.use(delegator).from("Content")
+                .where(EntityCondition.makeCondition("contentId", EntityOperator.IN, contentIds)).queryList()) {
+            contents.put(content.getString("contentId"), content);
+        }
+        for (String contentId : contentIds) {
+            GenericValue content = contents.get(contentId);
+            if (content != null) {
+                contentList.add(content);
+            }
+        }
+        return contentList;
+    }
+
+    /**
+     * Searches a page of products, sorted by relevance or on a doc values field, along with the facet counts of all
+     * the products matching the query.
+     * @param delegator the delegator
+     * @param query the query
+     * @param sort the sort, see {@link #getProductSort(String, boolean)}, <code>null</code> to sort by relevance
+     * @param after the last hit of the previous page, <code>null</code> for the first page
+     * @param pageSize the number of products of the page
+     * @param facetSize the maximum number of values counted for each facet dimension, 0 for no facets
+     * @return the page of products, empty if nothing has been indexed yet
+     * @throws IOException if the index can't be searched
+     * @throws GenericEntityException if the products can't be queried
+     */
+    public static ProductSearchResult searchProducts(Delegator delegator, Query query, Sort sort, ScoreDoc after, int pageSize, int facetSize)
+            throws IOException, GenericEntityException {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+        }
+        DocumentSearcherManager searcherManager = DocumentSearcherManager.getInstance(delegator, "products");
+        IndexSearcher searcher = searcherManager.acquire();
+        if (searcher == null) {
+            return new ProductSearchResult(Collections.emptyList(), 0, null, Collections.emptyMap());
+        }
+        try {
+            int maxDoc = searcher.getIndexReader().maxDoc();
+            if (after != null && after.doc >= maxDoc) {
+                // A hit carried from a previous request may come from an index holding more documents, the page then
+                // starts after its sort values
+                after = after instanceof FieldDoc ? new FieldDoc(maxDoc - 1, after.score, ((FieldDoc) after).fields)
+                        : new ScoreDoc(maxDoc - 1, after.score);
+            }
+            FacetsCollector facetsCollector = new FacetsCollector();
+            TopDocs topDocs;
+            if (sort != null) {
+                topDocs = FacetsCollector.searchAfter(searcher, after, query, pageSize, sort, facetsCollector);
+            } else {
+                topDocs = FacetsCollector.searchAfter(searcher, after, query, pageSize, facetsCollector);
+            }
+            ScoreDoc[] hits = topDocs.scoreDocs;
+            Map<String, Map<String, Long>> facets = new LinkedHashMap<>();
+            if (facetSize > 0) {
+                countFacets(searcher.getIndexReader(), facetsCollector, facetSize, facets);
+            }
+            return new ProductSearchResult(getProductProjections(delegator, searcher, hits), topDocs.totalHits.value,
+                    hits.length > 0 ? hits[hits.length - 1] : null, facets);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * Gets the sort of a product search on one of the sortable fields.
+     * @param sortField <code>productName</code>, <code>defaultPrice</code> or <code>introductionDate</code>,
+     * anything else sorts by relevance
+     * @param descending if the products are sorted in descending order
+     * @return the sort, <code>null</code> to sort by relevance
+     */
+    public static Sort getProductSort(String sortField, boolean descending) {
+        SortField field;
+        if ("productName".equals(sortField)) {
+            field = new SortField(ProductDocumentBuilder.PRODUCT_NAME_SORT_FIELD, SortField.Type.STRING, descending);
+            field.setMissingValue(descending ? SortField.STRING_FIRST : SortField.STRING_LAST);
+        } else if (ProductDocumentBuilder.DEFAULT_PRICE_FIELD.equals(sortField)) {
+            // Products without price come last
+            field = new SortField(ProductDocumentBuilder.DEFAULT_PRICE_FIELD, SortField.Type.DOUBLE, descending);
+            field.setMissingValue(descending ? -Double.MAX_VALUE : Double.MAX_VALUE);
+        } else if ("introductionDate".equals(sortField)) {
+            field = new SortField("introductionDate", SortField.Type.LONG, descending);
+        } else {
+            return null;
+        }
+        // Ties are broken by document so that searching after the last hit of a page gives the next one
+        return new Sort(field, SortField.FIELD_DOC);
+    }
+
+    /**
+     * Gets the last hit of the pages preceding a page of a product search, to search that page when the last hit
+     * of the previous page is not known.
+     * @param delegator the delegator
+     * @param query the query
+     * @param sort the sort, <code>null</code> to sort by relevance
+     * @param hitCount the number of hits of the preceding pages
+     * @return the last of these hits, <code>null</code> if there are none or nothing has been indexed yet
+     * @throws IOException if the index can't be searched
+     */
+    public static ScoreDoc getLastHit(Delegator delegator, Query query, Sort sort, int hitCount) throws IOException {
+        if (hitCount < 1) {
+            return null;
+        }
+        DocumentSearcherManager searcherManager = DocumentSearcherManager.getInstance(delegator, "products");
+        IndexSearcher searcher = searcherManager.acquire();
+        if (searcher == null) {
+            return null;
+        }
+        try {
+            ScoreDoc[] hits = (sort != null ? searcher.search(query, hitCount, sort) : searcher.search(query, hitCount)).scoreDocs;
+            return hits.length > 0 ? hits[hits.length - 1] : null;
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * Formats a hit, along with its sort values, so that it can be given back in a request parameter to search
+     * the next page, see {@link #parseHit(String, Sort)}.
+     * @param hit the hit
+     * @return the formatted hit
+     */
+    public static String formatHit(ScoreDoc hit) {
+        StringBuilder value = new StringBuilder().append(hit.doc).append(HIT_SEPARATOR).append(hit.score);
+        if (hit instanceof FieldDoc) {
+            for (Object field : ((FieldDoc) hit).fields) {
+                value.append(HIT_SEPARATOR);
+                if (field instanceof BytesRef) {
+                    value.append(Base64.getUrlEncoder().withoutPadding().encodeToString(BytesRef.deepCopyOf((BytesRef) field).bytes));
+                } else {
+                    value.append(field != null ? field : NULL_HIT_VALUE);
+                }
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Parses a hit formatted by {@link #formatHit(ScoreDoc)}.
+     * @param value the formatted hit
+     * @param sort the sort of the search which found the hit, <code>null</code> to sort by relevance
+     * @return the hit, <code>null</code> if the value is empty or is not a hit of a search with this sort
+     */
+    public static ScoreDoc parseHit(String value, Sort sort) {
+        if (UtilValidate.isEmpty(value)) {
+            return null;
+        }
+        String[] values = value.split(HIT_SEPARATOR, -1);
+        SortField[] sortFields = sort != null ? sort.getSort() : new SortField[0];
+        if (values.length != sortFields.length + 2) {
+            return null;
+        }
+        try {
+            int doc = Integer.parseInt(values[0]);
+            float score = Float.parseFloat(values[1]);
+            if (sort == null) {
+                return new ScoreDoc(doc, score);
+            }
+            Object[] fields = new Object[sortFields.length];
+            for (int i = 0; i < sortFields.length; i++) {
+                String fieldValue = values[i + 2];
+                if (NULL_HIT_VALUE.equals(fieldValue)) {
+                    continue;
+                }
+                switch (sortFields[i].getType()) {
+                case STRING:
+                    fields[i] = new BytesRef(Base64.getUrlDecoder().decode(fieldValue));
+                    break;
+                case DOUBLE:
+                    fields[i] = Double.valueOf(fieldValue);
+                    break;
+                case LONG:
+                    fields[i] = Long.valueOf(fieldValue);
+                    break;
+                case DOC:
+                    fields[i] = Integer.valueOf(fieldValue);
+                    break;
+                case SCORE:
+                    fields[i] = Float.valueOf(fieldValue);
+                    break;
+                default:
+                    return null;
+                }
+            }
+            return new FieldDoc(doc, score, fields);
+        } catch (IllegalArgumentException e) {
+            // Thrown for numbers as well as for Base64 values, a value typed in a URL is not a hit
+            return null;
+        }
+    }
+
+    private static void countFacets(IndexReader reader, FacetsCollector facetsCollector, int facetSize, Map<String, Map<String, Long>> facets)
+            throws IOException {
+        SortedSetDocValuesReaderState facetsState = getFacetsState(reader);
+        if (facetsState != null) {
+            Facets facetCounts = new SortedSetDocValuesFacetCounts(facetsState, facetsCollector);
+            for (String dimension : ProductDocumentBuilder.FACET_DIMENSIONS) {
+                if (facetsState.getOrdRange(dimension) == null) {
+                    // No product has a value for this dimension
+                    continue;
+                }
+                putFacetResult(facets, dimension, facetCounts.getTopChildren(facetSize, dimension));
+            }
+        }
+        DoubleRange[] priceRanges = getPriceRanges();
+        if (priceRanges.length > 0) {
+            Facets priceCounts = new DoubleRangeFacetCounts(ProductDocumentBuilder.DEFAULT_PRICE_FIELD, facetsCollector, priceRanges);
+            putFacetResult(facets, ProductDocumentBuilder.DEFAULT_PRICE_FIELD,
+                    priceCounts.getTopChildren(priceRanges.length, ProductDocumentBuilder.DEFAULT_PRICE_FIELD));
+        }
+    }
+
+    private static void putFacetResult(Map<String, Map<String, Long>> facets, String dimension, FacetResult facetResult) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        if (facetResult != null) {
+            for (LabelAndValue labelAndValue : facetResult.labelValues) {
+                if (labelAndValue.value.longValue() > 0) {
+                    counts.put(labelAndValue.label, labelAndValue.value.longValue());
+                }
+            }
+        }
+        facets.put(dimension, counts);
+    }
+
+    /**
+     * Gets the facets state of a reader, it maps the facet values to the ordinals of the reader and is costly
+     * to build, so it is shared by all the searches of the reader until it is closed.
+     */
+    private static SortedSetDocValuesReaderState getFacetsState(IndexReader reader) throws IOException {
+        IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        if (cacheHelper == null) {
+            return createFacetsState(reader);
+        }
+        IndexReader.CacheKey cacheKey = cacheHelper.getKey();
+        SortedSetDocValuesReaderState facetsState = FACETS_STATES.get(cacheKey);
+        if (facetsState == null) {
+            facetsState = createFacetsState(reader);
+            if (facetsState != null) {
+                SortedSetDocValuesReaderState existingFacetsState = FACETS_STATES.putIfAbsent(cacheKey, facetsState);
+                if (existingFacetsState != null) {
+                    facetsState = existingFacetsState;
+                } else {
+                    cacheHelper.addClosedListener(FACETS_STATES::remove);
+                }
+            }
+        }
+        return facetsState;
+    }
+
+    private static SortedSetDocValuesReaderState createFacetsState(IndexReader reader) throws IOException {
+        try {
+            return new DefaultSortedSetDocValuesReaderState(reader);
+        } catch (IllegalArgumentException e) {
+            // The index has no facet yet
+            return null;
+        }
+    }
+
+    private static DoubleRange[] getPriceRanges() {
+        List<DoubleRange> priceRanges = new ArrayList<>();
+        String priceRangesProperty = UtilProperties.getPropertyValue("lucene", "search.facet.priceRanges", "");
+        if (UtilValidate.isEmpty(priceRangesProperty)) {
+            return new DoubleRange[0];
+        }
+        for (String priceRange : priceRangesProperty.split(",")) {
+            int separatorIndex = priceRange.indexOf('-');
+            if (separatorIndex < 0) {
+                Debug.logWarning("Invalid price range " + priceRange + " in search.facet.priceRanges", MODULE);
+                continue;
+            }
+            String min = priceRange.substring(0, separatorIndex).trim();
+            String max = priceRange.substring(separatorIndex + 1).trim();
+            try {
+                priceRanges.add(new DoubleRange(priceRange.trim(), min.isEmpty() ? 0 : Double.parseDouble(min), true,
+                        max.isEmpty() ? Double.POSITIVE_INFINITY : Double.parseDouble(max), false));
+            } catch (IllegalArgumentException e) {
+                Debug.logWarning("Invalid price range " + priceRange + " in search.facet.priceRanges: " + e.getMessage(), MODULE);
+            }
+        }
+        return priceRanges.toArray(new DoubleRange[0]);
+    }
+
     public static Version getLuceneVersion() {
         return LUCENE_VERSION;
     }
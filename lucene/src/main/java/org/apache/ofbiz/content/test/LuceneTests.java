@@ -20,28 +20,67 @@
 package org.apache.ofbiz.content.test;
 
 import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.content.search.CategoryAncestry;
+import org.apache.ofbiz.content.search.DocumentIndexer;
+import org.apache.ofbiz.content.search.DocumentSearcherManager;
+import org.apache.ofbiz.content.search.ProductDocument;
+import org.apache.ofbiz.content.search.ProductDocumentBuilder;
+import org.apache.ofbiz.content.search.ProductSearchResult;
 import org.apache.ofbiz.content.search.SearchWorker;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.service.ServiceUtil;
 import org.apache.ofbiz.service.testtools.OFBizTestCase;
 
 public class LuceneTests extends OFBizTestCase {
 
     private static final String MODULE = LuceneTests.class.getName();
+    private static final long INDEXING_TIMEOUT = 30000L;
+    private static final String TEST_PRODUCT_ID = "LUCENETEST_PROD";
+    /** Queries run for a chunk of products, one per related entity, whatever the number of products */
+    private static final int MAX_CHUNK_QUERIES = 10;
+    /** Queries run per level of the category tree when resolving the category ancestries of a chunk */
+    private static final int CATEGORY_LEVEL_QUERIES = 2;
+    private static final int MAX_CATEGORY_LEVELS = 10;
 
     public LuceneTests(String name) {
         super(name);
@@ -98,4 +137,386 @@ public class LuceneTests extends OFBizTestCase {
 
         assertEquals("Only 1 result expected from the testdata", 1, collector.getTotalHits());
     }
+
+    /**
+     * Test that building product documents by chunk gives the same documents as building them one by one,
+     * with far less entity queries, and keeps the values indexed by the reference per-product building.
+     * @throws Exception the exception
+     */
+    public void testProductDocumentBuilder() throws Exception {
+        List<String> productIds = EntityUtil.getFieldListFromEntityList(EntityQuery.use(getDelegator()).select("productId").from("Product")
+                .orderBy("productId").maxRows(100).queryList(), "productId", true);
+        assertFalse("Products are needed to build product documents", productIds.isEmpty());
+
+        long startTime = System.currentTimeMillis();
+        ProductDocumentBuilder chunkBuilder = new ProductDocumentBuilder(getDelegator());
+        Map<String, Document> chunkDocuments = chunkBuilder.buildDocuments(productIds);
+        long chunkTime = System.currentTimeMillis() - startTime;
+
+        startTime = System.currentTimeMillis();
+        int singleQueryCount = 0;
+        for (String productId : productIds) {
+            ProductDocumentBuilder singleBuilder = new ProductDocumentBuilder(getDelegator());
+            Document document = singleBuilder.buildDocuments(Collections.singletonList(productId)).get(productId);
+            singleQueryCount += singleBuilder.getQueryCount();
+            assertEquals("Same document expected for product " + productId, getFields(document), getFields(chunkDocuments.get(productId)));
+
+            // The searched fields must keep the values indexed by the per-product building, the builder only adds fields
+            Document referenceDocument = ReferenceProductDocument.prepareDocument(getDelegator(), productId);
+            assertEquals("Same presence of the document as the reference expected for product " + productId, referenceDocument != null,
+                    document != null);
+            if (referenceDocument != null) {
+                Set<String> missingValues = getIndexedValues(referenceDocument);
+                missingValues.removeAll(getIndexedValues(document));
+                assertTrue("Values of the reference document missing for product " + productId + ": " + missingValues, missingValues.isEmpty());
+            }
+        }
+        long singleTime = System.currentTimeMillis() - startTime;
+
+        Debug.logInfo("Built " + productIds.size() + " product documents with " + chunkBuilder.getQueryCount() + " queries in "
+                + chunkTime + "ms by chunk, with " + singleQueryCount + " queries in " + singleTime + "ms one by one", MODULE);
+        int maxChunkQueries = MAX_CHUNK_QUERIES + CATEGORY_LEVEL_QUERIES * MAX_CATEGORY_LEVELS;
+        assertTrue("At most " + maxChunkQueries + " queries expected to build " + productIds.size() + " products by chunk, got "
+                + chunkBuilder.getQueryCount(), chunkBuilder.getQueryCount() <= maxChunkQueries);
+        if (productIds.size() > 1) {
+            assertTrue("Less queries expected when building by chunk", chunkBuilder.getQueryCount() < singleQueryCount);
+        }
+    }
+
+    /**
+     * Test the fields of the document of the test product, they must keep the layout searched by the product searches.
+     * @throws Exception the exception
+     */
+    public void testProductDocumentFields() throws Exception {
+        CategoryAncestry.clearCache();
+        ProductDocumentBuilder builder = new ProductDocumentBuilder(getDelegator());
+        Document document = builder.buildDocuments(Collections.singletonList(TEST_PRODUCT_ID)).get(TEST_PRODUCT_ID);
+        assertNotNull("Document expected for product " + TEST_PRODUCT_ID, document);
+
+        assertEquals(TEST_PRODUCT_ID, document.get("productId"));
+        assertValues(document, "productName", "Lucene Test Gizmo");
+        assertValues(document, "internalName", "Lucene Test Gizmo Internal");
+        assertValues(document, "brandName", "Lucene Brand");
+        // Missing texts are indexed as NULL
+        assertValues(document, "description", "NULL");
+        assertValues(document, "longDescription", "NULL");
+        assertValues(document, "fullText", "Lucene Test Gizmo", "Lucene Test Gizmo Internal", "Lucene Brand", "NULL");
+        assertValues(document, "isVariant", "false");
+        assertValues(document, "directProductCategoryId", "LUCENETEST_CAT");
+        assertValues(document, "productCategoryId", "LUCENETEST_CAT", "LUCENETEST_TOP");
+        assertValues(document, "prodCatalogId", "LUCENETEST_CATALOG");
+        assertNotNull("Introduction date expected", document.getField("introductionDate"));
+        assertNotNull("Sales discontinuation date expected", document.getField("salesDiscontinuationDate"));
+        assertNotNull("Default price expected", document.getField("DEFAULT_PRICE_PURCHASE_USD__NA__price"));
+        assertNotNull("List price expected", document.getField("LIST_PRICE_PURCHASE_USD__NA__price"));
+        // Of the two active default prices, only the latest one is the default price of the product
+        IndexableField[] defaultPrices = document.getFields(ProductDocumentBuilder.DEFAULT_PRICE_FIELD);
+        assertEquals("Stored and doc values default price fields expected", 2, defaultPrices.length);
+        assertEquals(11.0, defaultPrices[0].numericValue().doubleValue(), 0);
+        // Doc values hold the bits of the double
+        assertEquals(11.0, Double.longBitsToDouble(defaultPrices[1].numericValue().longValue()), 0);
+        assertEquals("USD", document.get(ProductDocumentBuilder.CURRENCY_UOM_ID_FIELD));
+        assertNull("No re-index date expected", document.getField(ProductDocumentBuilder.NEXT_RE_INDEX_FIELD));
+
+        // The ancestry of the category is resolved level by level, the category then its top category
+        assertTrue("At most " + (MAX_CHUNK_QUERIES + 2 * CATEGORY_LEVEL_QUERIES) + " queries expected, got " + builder.getQueryCount(),
+                builder.getQueryCount() <= MAX_CHUNK_QUERIES + 2 * CATEGORY_LEVEL_QUERIES);
+    }
+
+    /**
+     * Test that the ancestry of a category cached by a previous indexing is not used once a rollup is added
+     * or removed.
+     * @throws Exception the exception
+     */
+    public void testCategoryAncestryChange() throws Exception {
+        CategoryAncestry.clearCache();
+        Document document = new ProductDocumentBuilder(getDelegator()).buildDocuments(Collections.singletonList(TEST_PRODUCT_ID))
+                .get(TEST_PRODUCT_ID);
+        assertValues(document, "productCategoryId", "LUCENETEST_CAT", "LUCENETEST_TOP");
+
+        // The ECAs clear the cached ancestries once the rollup is committed
+        GenericValue rollup = getDelegator().create("ProductCategoryRollup", UtilMisc.toMap("productCategoryId", "LUCENETEST_CAT",
+                "parentProductCategoryId", "LUCENETEST_OTHER", "fromDate", Timestamp.valueOf("2001-05-13 12:00:00")));
+        try {
+            document = new ProductDocumentBuilder(getDelegator()).buildDocuments(Collections.singletonList(TEST_PRODUCT_ID))
+                    .get(TEST_PRODUCT_ID);
+            assertValues(document, "productCategoryId", "LUCENETEST_CAT", "LUCENETEST_TOP", "LUCENETEST_OTHER");
+        } finally {
+            getDelegator().removeValue(rollup);
+        }
+        document = new ProductDocumentBuilder(getDelegator()).buildDocuments(Collections.singletonList(TEST_PRODUCT_ID))
+                .get(TEST_PRODUCT_ID);
+        assertValues(document, "productCategoryId", "LUCENETEST_CAT", "LUCENETEST_TOP");
+    }
+
+    /**
+     * Test that the products of search hits are read from the fields stored in their documents, without querying
+     * the entity engine: no delegator is given to get them.
+     * @throws Exception the exception
+     */
+    public void testProductProjections() throws Exception {
+        Document document = new ProductDocumentBuilder(getDelegator()).buildDocuments(Collections.singletonList(TEST_PRODUCT_ID))
+                .get(TEST_PRODUCT_ID);
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                writer.addDocument(document);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                ScoreDoc[] hits = searcher.search(new TermQuery(new Term("productId", TEST_PRODUCT_ID)), 10).scoreDocs;
+                List<Map<String, Object>> products = SearchWorker.getProductProjections(null, searcher, hits);
+
+                assertEquals("One product expected", 1, products.size());
+                Map<String, Object> product = products.get(0);
+                assertEquals(TEST_PRODUCT_ID, product.get("productId"));
+                assertEquals("Lucene Test Gizmo", product.get("productName"));
+                assertEquals("Lucene Test Gizmo Internal", product.get("internalName"));
+                assertEquals("Lucene Brand", product.get("brandName"));
+                assertEquals("N", product.get("isVirtual"));
+                assertEquals(11.0, ((Number) product.get(ProductDocumentBuilder.DEFAULT_PRICE_FIELD)).doubleValue(), 0);
+                assertEquals("USD", product.get(ProductDocumentBuilder.CURRENCY_UOM_ID_FIELD));
+            }
+        }
+    }
+
+    /**
+     * Test that the pages of a product search, each searched after the last hit of the previous one carried as
+     * a request parameter, give the products of a single search, and that the facets count the matching products.
+     * @throws Exception the exception
+     */
+    public void testSearchProducts() throws Exception {
+        List<String> productIds = EntityUtil.getFieldListFromEntityList(EntityQuery.use(getDelegator()).select("productId").from("Product")
+                .where(EntityCondition.makeCondition("isVariant", EntityOperator.NOT_EQUAL, "Y")).orderBy("productId").maxRows(5)
+                .queryList(), "productId", true);
+        productIds.add(TEST_PRODUCT_ID);
+        List<ProductDocument> documents = new ArrayList<>();
+        for (String productId : productIds) {
+            documents.add(new ProductDocument(productId));
+        }
+        DocumentIndexer.getInstance(getDelegator(), "products").queue(documents);
+        for (String productId : productIds) {
+            assertEquals("Product " + productId + " expected to be indexed", 1, waitForIndexedProduct(productId, 1));
+        }
+        DocumentSearcherManager.getInstance(getDelegator(), "products").maybeRefresh();
+
+        Query query = new MatchAllDocsQuery();
+        for (Sort sort : Arrays.asList(null, SearchWorker.getProductSort("productName", false),
+                SearchWorker.getProductSort(ProductDocumentBuilder.DEFAULT_PRICE_FIELD, true))) {
+            ProductSearchResult allResult = SearchWorker.searchProducts(getDelegator(), query, sort, null, 4, 0);
+            List<Object> allProductIds = getProductIds(allResult);
+            assertEquals("4 products expected", 4, allProductIds.size());
+
+            ProductSearchResult firstPage = SearchWorker.searchProducts(getDelegator(), query, sort, null, 2, 0);
+            ScoreDoc after = SearchWorker.parseHit(SearchWorker.formatHit(firstPage.getLastHit()), sort);
+            assertNotNull("Last hit of the first page expected to be parsed back", after);
+            ProductSearchResult secondPage = SearchWorker.searchProducts(getDelegator(), query, sort, after, 2, 0);
+            List<Object> pagedProductIds = getProductIds(firstPage);
+            pagedProductIds.addAll(getProductIds(secondPage));
+            assertEquals("Pages expected to follow each other with sort " + sort, allProductIds, pagedProductIds);
+
+            // Without the last hit of the previous page, the page is searched after the hits preceding it
+            after = SearchWorker.getLastHit(getDelegator(), query, sort, 2);
+            assertEquals("Same second page expected with sort " + sort, getProductIds(secondPage),
+                    getProductIds(SearchWorker.searchProducts(getDelegator(), query, sort, after, 2, 0)));
+        }
+        assertNull("A hit of a search with another sort expected to be rejected",
+                SearchWorker.parseHit("1,1.0", SearchWorker.getProductSort("productName", false)));
+
+        ProductSearchResult result = SearchWorker.searchProducts(getDelegator(), new TermQuery(new Term("productId", TEST_PRODUCT_ID)),
+                null, null, 10, 10);
+        assertEquals("Test product expected to be found", 1, result.getTotalHits());
+        Map<String, Map<String, Long>> facets = result.getFacets();
+        assertEquals(Long.valueOf(1), facets.get("brandName").get("Lucene Brand"));
+        assertEquals(Long.valueOf(1), facets.get("productCategoryId").get("LUCENETEST_CAT"));
+        assertEquals(Long.valueOf(1), facets.get("productCategoryId").get("LUCENETEST_TOP"));
+    }
+
+    private static List<Object> getProductIds(ProductSearchResult result) {
+        List<Object> productIds = new ArrayList<>();
+        for (Map<String, Object> product : result.getProducts()) {
+            productIds.add(product.get("productId"));
+        }
+        return productIds;
+    }
+
+    private static void assertValues(Document document, String fieldName, String... expectedValues) {
+        Set<String> values = new HashSet<>(Arrays.asList(document.getValues(fieldName)));
+        assertEquals("Values of field " + fieldName, new HashSet<>(Arrays.asList(expectedValues)), values);
+    }
+
+    /**
+     * Test that a product queued several times is indexed once, without waiting for the indexer to be stopped.
+     * @throws Exception the exception
+     */
+    public void testDocumentIndexerQueue() throws Exception {
+        String productId = EntityQuery.use(getDelegator()).select("productId").from("Product").orderBy("productId").queryFirst()
+                .getString("productId");
+        DocumentIndexer indexer = DocumentIndexer.getInstance(getDelegator(), "products");
+        indexer.queue(new ProductDocument(productId));
+        indexer.queue(new ProductDocument(productId));
+
+        assertEquals("Product " + productId + " expected to be indexed once", 1, waitForIndexedProduct(productId, 1));
+    }
+
+    /**
+     * Test that products queued together are indexed and then acknowledged, removing them from the durable queue.
+     * @throws Exception the exception
+     */
+    public void testDocumentIndexerBatchAcknowledge() throws Exception {
+        List<String> productIds = EntityUtil.getFieldListFromEntityList(EntityQuery.use(getDelegator()).select("productId").from("Product")
+                .where(EntityCondition.makeCondition("isVariant", EntityOperator.NOT_EQUAL, "Y")).orderBy("productId").maxRows(5)
+                .queryList(), "productId", true);
+        List<ProductDocument> documents = new ArrayList<>();
+        for (String productId : productIds) {
+            documents.add(new ProductDocument(productId));
+        }
+        DocumentIndexer.getInstance(getDelegator(), "products").queue(documents);
+
+        for (String productId : productIds) {
+            assertEquals("Product " + productId + " expected to be indexed once", 1, waitForIndexedProduct(productId, 1));
+        }
+        if (UtilProperties.getPropertyAsBoolean("lucene", "index.queue.durable", true)) {
+            EntityCondition queuedCondition = EntityCondition.makeCondition(EntityCondition.makeCondition("indexName", "products"),
+                    EntityCondition.makeCondition("documentValue", EntityOperator.IN, productIds));
+            long timeout = System.currentTimeMillis() + INDEXING_TIMEOUT;
+            long queuedCount = EntityQuery.use(getDelegator()).from("LuceneIndexQueue").where(queuedCondition).queryCount();
+            // Committed documents are acknowledged right after the commit
+            while (queuedCount > 0 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(200);
+                queuedCount = EntityQuery.use(getDelegator()).from("LuceneIndexQueue").where(queuedCondition).queryCount();
+            }
+            assertEquals("Committed products expected to be removed from the durable queue", 0, queuedCount);
+        }
+    }
+
+    /**
+     * Test that a product whose document changes at a future date is indexed again by indexDueProducts once
+     * the date is passed.
+     * @throws Exception the exception
+     */
+    public void testIndexDueProducts() throws Exception {
+        // Whole seconds, whatever the precision of the timestamps of the database
+        long reIndexTime = (System.currentTimeMillis() / 1000 + 3) * 1000;
+        GenericValue productPrice = getDelegator().create("ProductPrice", UtilMisc.toMap("productId", TEST_PRODUCT_ID,
+                "productPriceTypeId", "DEFAULT_PRICE", "productPricePurposeId", "PURCHASE", "currencyUomId", "USD",
+                "productStoreGroupId", "_NA_", "fromDate", new Timestamp(reIndexTime), "price", BigDecimal.valueOf(10)));
+        DocumentIndexer indexer = DocumentIndexer.getInstance(getDelegator(), "products");
+        try {
+            indexer.queue(new ProductDocument(TEST_PRODUCT_ID));
+            Query dueQuery = new BooleanQuery.Builder()
+                    .add(new TermQuery(new Term("productId", TEST_PRODUCT_ID)), BooleanClause.Occur.FILTER)
+                    .add(LongPoint.newExactQuery(ProductDocumentBuilder.NEXT_RE_INDEX_FIELD, reIndexTime), BooleanClause.Occur.FILTER)
+                    .build();
+            assertEquals("Product expected to be indexed with the date of the future price", 1, waitForIndexedDocuments(dueQuery, 1));
+
+            Thread.sleep(Math.max(reIndexTime - System.currentTimeMillis() + 100, 0));
+            Map<String, Object> result = getDispatcher().runSync("indexDueProducts", UtilMisc.toMap("userLogin", getUserLogin("system")));
+            assertTrue(ServiceUtil.getErrorMessage(result), ServiceUtil.isSuccess(result));
+            assertTrue("Product expected to be due", (Integer) result.get("productCount") > 0);
+            assertEquals("Product expected to be indexed again once the date is passed", 0, waitForIndexedDocuments(dueQuery, 0));
+            assertEquals("Product expected to stay indexed", 1, waitForIndexedProduct(TEST_PRODUCT_ID, 1));
+        } finally {
+            getDelegator().removeValue(productPrice);
+            indexer.queue(new ProductDocument(TEST_PRODUCT_ID));
+        }
+    }
+
+    /**
+     * Test that the shared searchers see a product indexed after they were opened, once its document is committed.
+     * @throws Exception the exception
+     */
+    public void testSearcherManagerRefresh() throws Exception {
+        String productId = "LUCENETEST_NEW";
+        DocumentSearcherManager searcherManager = DocumentSearcherManager.getInstance(getDelegator(), "products");
+        Query query = new TermQuery(new Term("productId", productId));
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            assertTrue("Product " + productId + " not expected in the index yet", searcher == null || searcher.count(query) == 0);
+        } finally {
+            searcherManager.release(searcher);
+        }
+
+        DocumentIndexer indexer = DocumentIndexer.getInstance(getDelegator(), "products");
+        GenericValue product = getDelegator().create("Product", UtilMisc.toMap("productId", productId, "productTypeId", "FINISHED_GOOD",
+                "productName", "Lucene Test New Gizmo", "isVirtual", "N", "isVariant", "N"));
+        try {
+            indexer.queue(new ProductDocument(productId));
+            int count = 0;
+            long timeout = System.currentTimeMillis() + INDEXING_TIMEOUT;
+            while (count == 0 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(200);
+                searcher = searcherManager.acquire();
+                try {
+                    count = searcher != null ? searcher.count(query) : 0;
+                } finally {
+                    searcherManager.release(searcher);
+                }
+            }
+            assertEquals("Product " + productId + " expected to be seen by the searchers once committed", 1, count);
+        } finally {
+            getDelegator().removeValue(product);
+            indexer.queue(new ProductDocument(productId));
+        }
+    }
+
+    /**
+     * Waits for the committed index of the products to hold some documents of a product.
+     * @return the number of documents of the product in the index when it was reached or the wait timed out
+     */
+    private static int waitForIndexedProduct(String productId, int expectedCount) throws Exception {
+        return waitForIndexedDocuments(new TermQuery(new Term("productId", productId)), expectedCount);
+    }
+
+    /**
+     * Waits for the committed index of the products to hold some documents matching a query.
+     * @return the number of documents matching the query in the index when it was reached or the wait timed out
+     */
+    private static int waitForIndexedDocuments(Query query, int expectedCount) throws Exception {
+        Directory directory = FSDirectory.open(new File(SearchWorker.getIndexPath("products")).toPath());
+        long timeout = System.currentTimeMillis() + INDEXING_TIMEOUT;
+        int count = 0;
+        try {
+            while (true) {
+                if (DirectoryReader.indexExists(directory)) {
+                    try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                        count = new IndexSearcher(reader).count(query);
+                    }
+                }
+                if (count == expectedCount || System.currentTimeMillis() > timeout) {
+                    return count;
+                }
+                Thread.sleep(200);
+            }
+        } finally {
+            directory.close();
+        }
+    }
+
+    /**
+     * Gets the name and value of the fields of a document, whether they are stored or not.
+     */
+    private static Set<String> getIndexedValues(Document document) {
+        Set<String> values = new HashSet<>();
+        for (IndexableField field : document.getFields()) {
+            Object value = field.stringValue();
+            if (value == null) {
+                // The values of points are only available as bytes
+                value = field.binaryValue() != null ? field.binaryValue() : field.numericValue();
+            }
+            values.add(field.name() + "=" + value);
+        }
+        return values;
+    }
+
+    private static List<String> getFields(Document document) {
+        if (document == null) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        for (IndexableField field : document.getFields()) {
+            fields.add(field.toString());
+        }
+        Collections.sort(fields);
+        return fields;
+    }
 }
@@ -0,0 +1,52 @@
+<#--
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+-->
+<#if listSize??>
+  <#-- The next page is searched after the last hit of this one, see SearchProducts.groovy -->
+  <#assign pageParams = "luceneQuery=" + parameters.luceneQuery?url + "&amp;sortField=" + (parameters.sortField!)?url
+      + "&amp;sortDescending=" + (parameters.sortDescending!)?url + "&amp;VIEW_SIZE=" + viewSize?c>
+  <div class="nav-pager">
+    <ul>
+      <#if viewIndex &gt; 0>
+        <li class="nav-previous"><a href="<@ofbizUrl>ProductSearch?${pageParams}&amp;VIEW_INDEX=${(viewIndex - 1)?c}</@ofbizUrl>">${uiLabelMap.CommonPrevious}</a></li>
+      </#if>
+      <li class="nav-displaying">
+        <#if queryResults?has_content>${viewIndex * viewSize + 1} - ${viewIndex * viewSize + queryResults?size} ${uiLabelMap.CommonOf} </#if>${listSize}
+      </li>
+      <#if nextAfterHit??>
+        <li class="nav-next"><a href="<@ofbizUrl>ProductSearch?${pageParams}&amp;VIEW_INDEX=${(viewIndex + 1)?c}&amp;afterHit=${nextAfterHit?url}</@ofbizUrl>">${uiLabelMap.CommonNext}</a></li>
+      </#if>
+    </ul>
+  </div>
+  <#if productFacets?has_content>
+    <#assign facetLabels = {"productCategoryId": uiLabelMap.ProductCategory, "productFeatureId": uiLabelMap.ProductFeatures,
+        "brandName": uiLabelMap.ProductBrandName, "defaultPrice": uiLabelMap.ProductDefaultPrice}>
+    <table class="basic-table">
+      <#list productFacets as dimension, counts>
+        <tr>
+          <td class="label">${facetLabels[dimension]!dimension}</td>
+          <td>
+            <#list counts as value, count>
+              <span>${value} (${count})</span><#sep>, </#sep>
+            </#list>
+          </td>
+        </tr>
+      </#list>
+    </table>
+  </#if>
+</#if>
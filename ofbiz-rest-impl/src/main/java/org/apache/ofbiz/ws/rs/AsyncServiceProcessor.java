@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.service.GenericRequester;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.response.Success;
+import org.apache.ofbiz.ws.rs.spi.impl.JacksonConfig;
+import org.apache.ofbiz.ws.rs.util.ErrorUtil;
+import org.apache.ofbiz.ws.rs.util.RestApiUtil;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Runs the services called with a <code>Prefer: respond-async</code> header, or through a DSL operation declared with
+ * <code>async="true"</code>, as jobs of the job manager instead of holding the request thread, see
+ * <code>rest.async.*</code>.
+ * <p>
+ * The IN parameters are validated before the job is queued, so an invalid call still fails immediately. The call then
+ * returns <code>202 Accepted</code> with the job, whose <code>Location</code> can be polled until the job is done, the
+ * job then giving the response the synchronous call would have returned. A job is kept in memory until it is done, then
+ * for <code>rest.async.job.expireTime</code> ms, and can only be read by the UserLogin which submitted it. The ids of
+ * the last <code>rest.async.job.idMaxSize</code> jobs are kept longer, so that a job whose result has expired is told
+ * apart from a job which does not exist. When the call gives an <code>X-Callback-URL</code> header on a host of
+ * <code>rest.async.callback.allowedHosts</code>, the job is also posted to that URL once done.
+ */
+public final class AsyncServiceProcessor {
+
+    private static final String MODULE = AsyncServiceProcessor.class.getName();
+    private static final String REST_CONFIG_NAME = "rest.properties";
+    public static final String PREFER_HEADER = "Prefer";
+    public static final String PREFERENCE_APPLIED_HEADER = "Preference-Applied";
+    public static final String RESPOND_ASYNC = "respond-async";
+    public static final String CALLBACK_HEADER = "X-Callback-URL";
+    public static final String JOBS_PATH = "jobs";
+    private static final ObjectMapper MAPPER = new JacksonConfig().getContext(Object.class);
+
+    // The pending jobs are not evicted, the job manager bounding their number
+    private static final Map<String, ServiceJob> PENDING_JOBS = new ConcurrentHashMap<>();
+    private static final UtilCache<String, ServiceJob> JOBS = UtilCache.createUtilCache("rest.AsyncServiceJobs",
+            UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.async.job.maxSize", 10000), 0,
+            UtilProperties.getPropertyAsLong(REST_CONFIG_NAME, "rest.async.job.expireTime", 3600000L), false);
+    // The UserLogin ids of the submitted jobs, an empty string for the jobs submitted without UserLogin
+    private static final UtilCache<String, String> JOB_IDS = UtilCache.createUtilCache("rest.AsyncServiceJobIds",
+            UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.async.job.idMaxSize", 100000), 0, 0, false);
+    private static final ExecutorService CALLBACK_SENDERS;
+
+    static {
+        AtomicInteger senderCount = new AtomicInteger();
+        CALLBACK_SENDERS = Executors.newFixedThreadPool(
+                Math.max(1, UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.async.callback.threads", 2)), runnable -> {
+                    Thread sender = new Thread(runnable, "ServiceJobCallback_" + senderCount.incrementAndGet());
+                    sender.setDaemon(true);
+                    return sender;
+                });
+    }
+
+    private AsyncServiceProcessor() { }
+
+    /**
+     * Tells whether a call runs asynchronously.
+     * @param request the request
+     * @param declared <code>true</code> if the operation is declared asynchronous
+     * @return <code>true</code> if asynchronous calls are enabled and the operation or the client asks for one
+     */
+    public static boolean isAsync(HttpServletRequest request, boolean declared) {
+        if (!UtilProperties.getPropertyAsBoolean(REST_CONFIG_NAME, "rest.async.enabled", true)) {
+            return false;
+        }
+        if (declared) {
+            return true;
+        }
+        String prefer = request.getHeader(PREFER_HEADER);
+        return prefer != null && Arrays.stream(prefer.split("[,;]")).anyMatch(preference -> RESPOND_ASYNC.equalsIgnoreCase(preference.trim()));
+    }
+
+    /**
+     * Validates the IN parameters of a request and queues the service.
+     * @param route the route of the service
+     * @param requestMap the request parameters
+     * @param userLogin the UserLogin of the request
+     * @param dispatcher the dispatcher
+     * @param request the request
+     * @return the <code>202 Accepted</code> response with the job
+     * @throws GenericServiceException if a parameter is invalid or the service could not be queued
+     * @throws BadRequestException if the callback URL is invalid or not allowed
+     */
+    public static Response submit(ServiceRoute route, Map<String, Object> requestMap, GenericValue userLogin, LocalDispatcher dispatcher,
+            HttpServletRequest request) throws GenericServiceException {
+        return submit(route, requestMap, userLogin, dispatcher, request.getHeader(CALLBACK_HEADER), request.getLocale());
+    }
+
+    /**
+     * Validates the IN parameters of a call and queues the service.
+     * @param route the route of the service
+     * @param requestMap the request parameters
+     * @param userLogin the UserLogin of the call
+     * @param dispatcher the dispatcher
+     * @param callbackHeader the <code>X-Callback-URL</code> header of the call, or <code>null</code>
+     * @param locale the locale of the error messages
+     * @return the <code>202 Accepted</code> response with the job
+     * @throws GenericServiceException if a parameter is invalid or the service could not be queued
+     * @throws BadRequestException if the callback URL is invalid or not allowed
+     */
+    public static Response submit(ServiceRoute route, Map<String, Object> requestMap, GenericValue userLogin, LocalDispatcher dispatcher,
+            String callbackHeader, Locale locale) throws GenericServiceException {
+        URL callbackUrl = getCallbackUrl(callbackHeader);
+        Map<String, Object> serviceContext = route.makeValidInContext(requestMap);
+        serviceContext.put("userLogin", userLogin);
+        ServiceJob job = new ServiceJob(route, userLogin != null ? userLogin.getString("userLoginId") : null, callbackUrl, locale);
+        PENDING_JOBS.put(job.jobId, job);
+        try {
+            dispatcher.runAsync(route.getServiceName(), serviceContext, new JobRequester(job), false);
+        } catch (GenericServiceException e) {
+            PENDING_JOBS.remove(job.jobId);
+            throw e;
+        }
+        JOB_IDS.put(job.jobId, job.userLoginId != null ? job.userLoginId : "");
+        Success success = new Success(Response.Status.ACCEPTED.getStatusCode(), Response.Status.ACCEPTED.getReasonPhrase(),
+                "Job " + job.jobId + " submitted.", job.toMap());
+        return Response.status(Response.Status.ACCEPTED).type(MediaType.APPLICATION_JSON).location(URI.create(JOBS_PATH + "/" + job.jobId))
+                .header(PREFERENCE_APPLIED_HEADER, RESPOND_ASYNC).entity(success).build();
+    }
+
+    /**
+     * Gets a job submitted by a UserLogin.
+     * @param jobId the job id
+     * @param userLogin the UserLogin of the request
+     * @return the job, or <code>null</code> if it does not exist, has expired or was submitted by another UserLogin
+     */
+    public static ServiceJob getJob(String jobId, GenericValue userLogin) {
+        ServiceJob job = PENDING_JOBS.get(jobId);
+        if (job == null) {
+            job = JOBS.get(jobId);
+        }
+        if (job == null || !isOwner(job.userLoginId, userLogin)) {
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * Tells whether a job submitted by a UserLogin is not kept anymore.
+     * @param jobId the job id
+     * @param userLogin the UserLogin of the request
+     * @return <code>true</code> if the result of the job has expired, <code>false</code> if the job is still kept, was
+     *         submitted by another UserLogin or its id is not known
+     */
+    public static boolean isExpired(String jobId, GenericValue userLogin) {
+        String userLoginId = JOB_IDS.get(jobId);
+        return userLoginId != null && isOwner(userLoginId.isEmpty() ? null : userLoginId, userLogin) && getJob(jobId, userLogin) == null;
+    }
+
+    private static boolean isOwner(String jobUserLoginId, GenericValue userLogin) {
+        return jobUserLoginId == null || (userLogin != null && jobUserLoginId.equals(userLogin.getString("userLoginId")));
+    }
+
+    private static URL getCallbackUrl(String callbackHeader) {
+        if (UtilValidate.isEmpty(callbackHeader)) {
+            return null;
+        }
+        URL callbackUrl;
+        try {
+            callbackUrl = new URL(callbackHeader.trim());
+        } catch (MalformedURLException e) {
+            throw new BadRequestException("Invalid " + CALLBACK_HEADER + " header: " + e.getMessage());
+        }
+        String allowedHosts = UtilProperties.getPropertyValue(REST_CONFIG_NAME, "rest.async.callback.allowedHosts", "");
+        boolean allowed = ("http".equals(callbackUrl.getProtocol()) || "https".equals(callbackUrl.getProtocol()))
+                && Arrays.stream(allowedHosts.split(",")).map(String::trim).anyMatch(callbackUrl.getHost()::equalsIgnoreCase);
+        if (!allowed) {
+            throw new BadRequestException("The " + CALLBACK_HEADER + " host is not allowed: " + callbackUrl.getHost());
+        }
+        return callbackUrl;
+    }
+
+    private static void sendCallback(ServiceJob job) {
+        CALLBACK_SENDERS.execute(() -> {
+            int timeout = UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.async.callback.timeout", 10000);
+            HttpURLConnection connection = null;
+            try {
+                byte[] body = MAPPER.writeValueAsBytes(job.toMap());
+                connection = (HttpURLConnection) job.callbackUrl.openConnection();
+                connection.setConnectTimeout(timeout);
+                connection.setReadTimeout(timeout);
+                connection.setInstanceFollowRedirects(false);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", MediaType.APPLICATION_JSON);
+                connection.setDoOutput(true);
+                try (OutputStream output = connection.getOutputStream()) {
+                    output.write(body);
+                }
+                int status = connection.getResponseCode();
+                if (status >= 300) {
+                    Debug.logWarning("Callback of job " + job.jobId + " to " + job.callbackUrl + " returned HTTP " + status, MODULE);
+                }
+            } catch (IOException e) {
+                Debug.logWarning(e, "Could not send the callback of job " + job.jobId + " to " + job.callbackUrl, MODULE);
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * A service call queued in the job manager.
+     */
+    public static final class ServiceJob {
+        private final String jobId = UUID.randomUUID().toString();
+        private final ServiceRoute route;
+        private final String userLoginId;
+        private final URL callbackUrl;
+        private final Locale locale;
+        private final Timestamp createdDate = UtilDateTime.nowTimestamp();
+        private volatile Timestamp finishedDate;
+        private volatile Response response;
+
+        private ServiceJob(ServiceRoute route, String userLoginId, URL callbackUrl, Locale locale) {
+            this.route = route;
+            this.userLoginId = userLoginId;
+            this.callbackUrl = callbackUrl;
+            this.locale = locale;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        /**
+         * @return <code>true</code> if the service has not returned yet
+         */
+        public boolean isPending() {
+            return response == null;
+        }
+
+        /**
+         * @return the job, with the response of the service once done
+         */
+        public Map<String, Object> toMap() {
+            Response jobResponse = response;
+            Map<String, Object> job = new LinkedHashMap<>();
+            job.put("jobId", jobId);
+            job.put("service", route.getServiceName());
+            job.put("status", jobResponse == null ? "PENDING"
+                    : jobResponse.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL ? "COMPLETED" : "FAILED");
+            job.put("createdDate", createdDate);
+            if (jobResponse != null) {
+                job.put("finishedDate", finishedDate);
+                job.put("resultStatusCode", jobResponse.getStatus());
+                job.put("result", jobResponse.getEntity());
+            }
+            return job;
+        }
+
+        private void complete(Response jobResponse) {
+            finishedDate = UtilDateTime.nowTimestamp();
+            response = jobResponse;
+            // Keep the result for the whole expire time from now on
+            JOBS.put(jobId, this);
+            PENDING_JOBS.remove(jobId);
+            if (callbackUrl != null) {
+                sendCallback(this);
+            }
+        }
+    }
+
+    /**
+     * Receives the result of the job from the job manager.
+     */
+    private static final class JobRequester implements GenericRequester {
+        private static final long serialVersionUID = 1L;
+        private final transient ServiceJob job;
+
+        private JobRequester(ServiceJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void receiveResult(Map<String, Object> result) {
+            job.complete(ServiceRequestProcessor.toResponse(job.route, result, job.locale));
+        }
+
+        @Override
+        public void receiveThrowable(Throwable t) {
+            Debug.logError(t, "Job " + job.jobId + " of service " + job.route.getServiceName() + " failed", MODULE);
+            if (t instanceof GenericServiceException) {
+                job.complete(ErrorUtil.buildErrorFromServiceException(job.route.getServiceName(), (GenericServiceException) t, job.locale));
+            } else {
+                job.complete(RestApiUtil.error(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+                        Response.Status.INTERNAL_SERVER_ERROR.getReasonPhrase(), t.getMessage()));
+            }
+        }
+    }
+}
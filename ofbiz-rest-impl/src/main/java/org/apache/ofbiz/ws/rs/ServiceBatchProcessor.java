@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.ws.rs.core.ResponseStatus;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.spi.impl.JacksonConfig;
+import org.apache.ofbiz.ws.rs.util.ErrorUtil;
+import org.apache.ofbiz.ws.rs.util.RestApiUtil;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Runs many service calls sent in one request, see <code>rest.batch.*</code>.
+ * <p>
+ * The request is a JSON object with a <code>requests</code> array, each request giving the <code>service</code> to
+ * call, unless the endpoint is bound to a service, its <code>inParams</code>, the HTTP <code>method</code> it is called
+ * with, <code>POST</code> by default, and an optional <code>id</code> echoed in its result. Each call is validated and
+ * run as a single call of the service would be, and its result is the response the single call would return. The
+ * optional <code>parallelism</code> is the number of calls run at the same time, each in its own transaction, and the
+ * results are streamed back in the order of the requests as they complete. When <code>transaction</code> is
+ * <code>true</code> the calls run one after the other in a shared transaction instead: the first failed call rolls back
+ * the whole batch, and the calls before and after it are reported as failed dependencies.
+ */
+public final class ServiceBatchProcessor {
+
+    private static final String MODULE = ServiceBatchProcessor.class.getName();
+    private static final String REST_CONFIG_NAME = "rest.properties";
+    private static final ObjectMapper MAPPER = new JacksonConfig().getContext(Object.class);
+    private static final int THREAD_COUNT = Math.max(1, UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.batch.threads",
+            Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService WORKERS;
+
+    static {
+        AtomicInteger workerCount = new AtomicInteger();
+        WORKERS = Executors.newFixedThreadPool(THREAD_COUNT, runnable -> {
+            Thread worker = new Thread(runnable, "ServiceBatchWorker_" + workerCount.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    private final LocalDispatcher dispatcher;
+    private final GenericValue userLogin;
+    private final Locale locale;
+
+    public ServiceBatchProcessor(LocalDispatcher dispatcher, GenericValue userLogin, Locale locale) {
+        this.dispatcher = dispatcher;
+        this.userLogin = userLogin;
+        this.locale = locale;
+    }
+
+    /**
+     * Runs the calls of a batch request.
+     * @param batchRequest the request body
+     * @param serviceName the service the endpoint is bound to, or <code>null</code> if each request gives it
+     * @param routes resolves the route of a service called with an HTTP method, throwing a {@link WebApplicationException}
+     *            if it cannot be called with that method
+     * @return the response, streaming the results of the calls
+     * @throws BadRequestException if the batch is missing or too large
+     */
+    public Response process(Map<String, Object> batchRequest, String serviceName, BiFunction<String, String, ServiceRoute> routes) {
+        Object requests = batchRequest != null ? batchRequest.get("requests") : null;
+        if (!(requests instanceof List) || UtilValidate.isEmpty((List<?>) requests)) {
+            throw new BadRequestException("The request body must have a non-empty 'requests' array.");
+        }
+        int maxSize = UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.batch.maxSize", 1000);
+        if (((List<?>) requests).size() > maxSize) {
+            throw new BadRequestException("A batch can not have more than " + maxSize + " requests.");
+        }
+        List<BatchItem> items = new ArrayList<>();
+        for (Object request : (List<?>) requests) {
+            items.add(resolve(items.size(), request, serviceName, routes));
+        }
+        if (Boolean.TRUE.equals(batchRequest.get("transaction"))) {
+            List<BatchResult> results = runInTransaction(items);
+            return stream(output -> {
+                for (BatchResult result : results) {
+                    output.write(result);
+                }
+            });
+        }
+        int parallelism = getParallelism(batchRequest.get("parallelism"));
+        return stream(output -> {
+            if (parallelism <= 1) {
+                for (BatchItem item : items) {
+                    output.write(run(item));
+                }
+                return;
+            }
+            // Keep at most parallelism calls running, the results being written in the order of the requests
+            Deque<Future<BatchResult>> running = new ArrayDeque<>();
+            int next = 0;
+            while (next < items.size() || !running.isEmpty()) {
+                while (next < items.size() && running.size() < parallelism) {
+                    BatchItem item = items.get(next++);
+                    running.add(WORKERS.submit(() -> run(item)));
+                }
+                output.write(getResult(running.poll()));
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BatchItem resolve(int index, Object request, String serviceName, BiFunction<String, String, ServiceRoute> routes) {
+        if (!(request instanceof Map)) {
+            return new BatchItem(index, null, serviceName, null, null, error(Response.Status.BAD_REQUEST, "A request must be a JSON object."));
+        }
+        Map<String, Object> requestMap = (Map<String, Object>) request;
+        Object id = requestMap.get("id");
+        Object requestedService = serviceName != null ? serviceName : requestMap.get("service");
+        if (!(requestedService instanceof String) || UtilValidate.isEmpty((String) requestedService)) {
+            return new BatchItem(index, id, null, null, null, error(Response.Status.BAD_REQUEST, "Missing Parameter: 'service'"));
+        }
+        String service = (String) requestedService;
+        Object inParams = requestMap.get("inParams");
+        if (inParams != null && !(inParams instanceof Map)) {
+            return new BatchItem(index, id, service, null, null, error(Response.Status.BAD_REQUEST, "'inParams' must be a JSON object."));
+        }
+        Object method = requestMap.getOrDefault("method", HttpMethod.POST);
+        if (!(method instanceof String)) {
+            return new BatchItem(index, id, service, null, null, error(Response.Status.BAD_REQUEST, "'method' must be a string."));
+        }
+        try {
+            ServiceRoute route = routes.apply(service, ((String) method).toUpperCase(Locale.ROOT));
+            return new BatchItem(index, id, service, route, inParams != null ? (Map<String, Object>) inParams : Collections.emptyMap(), null);
+        } catch (WebApplicationException e) {
+            return new BatchItem(index, id, service, null, null, error(e.getResponse().getStatusInfo(), e.getMessage()));
+        }
+    }
+
+    private BatchResult run(BatchItem item) {
+        if (item.error != null) {
+            return new BatchResult(item, item.error);
+        }
+        try {
+            return new BatchResult(item, ServiceRequestProcessor.invoke(item.route, item.inParams, userLogin, dispatcher, locale));
+        } catch (GenericServiceException e) {
+            Debug.logError(e, "Batch request " + item.index + " to service " + item.service + " failed", MODULE);
+            return new BatchResult(item, ErrorUtil.buildErrorFromServiceException(item.service, e, locale));
+        } catch (RuntimeException e) {
+            Debug.logError(e, "Batch request " + item.index + " to service " + item.service + " failed", MODULE);
+            return new BatchResult(item, error(Response.Status.INTERNAL_SERVER_ERROR, e.getMessage()));
+        }
+    }
+
+    private List<BatchResult> runInTransaction(List<BatchItem> items) {
+        List<BatchResult> results = new ArrayList<>(items.size());
+        boolean beganTransaction = false;
+        try {
+            beganTransaction = TransactionUtil.begin();
+            BatchResult failed = null;
+            for (BatchItem item : items) {
+                if (failed != null) {
+                    results.add(new BatchResult(item, error(ResponseStatus.Custom.FAILED_DEPENDENCY,
+                            "Not run, request " + failed.item.index + " of the batch failed.")));
+                    continue;
+                }
+                BatchResult result = run(item);
+                if (result.response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                    failed = result;
+                }
+                results.add(result);
+            }
+            if (failed == null) {
+                TransactionUtil.commit(beganTransaction);
+                return results;
+            }
+            TransactionUtil.rollback(beganTransaction, "Batch request " + failed.item.index + " to service " + failed.item.service
+                    + " failed", null);
+            for (int i = 0; i < failed.item.index; i++) {
+                results.set(i, new BatchResult(items.get(i), error(ResponseStatus.Custom.FAILED_DEPENDENCY,
+                        "Rolled back, request " + failed.item.index + " of the batch failed.")));
+            }
+            return results;
+        } catch (GenericTransactionException e) {
+            Debug.logError(e, "Could not run the batch in a transaction", MODULE);
+            try {
+                TransactionUtil.rollback(beganTransaction, e.getMessage(), e);
+            } catch (GenericTransactionException e2) {
+                Debug.logError(e2, "Could not roll back the batch transaction", MODULE);
+            }
+            throw new InternalServerErrorException("Could not run the batch in a transaction: " + e.getMessage());
+        }
+    }
+
+    private static int getParallelism(Object requested) {
+        int parallelism = requested instanceof Number ? ((Number) requested).intValue()
+                : UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.batch.parallelism", 4);
+        return Math.max(1, Math.min(parallelism, THREAD_COUNT));
+    }
+
+    private static BatchResult getResult(Future<BatchResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a batch request", e);
+        } catch (ExecutionException e) {
+            // run() handles the failures of the calls
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Response error(Response.StatusType status, String message) {
+        return RestApiUtil.error(status.getStatusCode(), status.getReasonPhrase(), message);
+    }
+
+    private static Response stream(BatchWriter writer) {
+        StreamingOutput output = outputStream -> {
+            JsonGenerator generator = MAPPER.getFactory().createGenerator(outputStream);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeNumberField("statusCode", Response.Status.OK.getStatusCode());
+            generator.writeStringField("statusDescription", Response.Status.OK.getReasonPhrase());
+            generator.writeArrayFieldStart("results");
+            writer.writeResults(result -> {
+                generator.writeStartObject();
+                generator.writeNumberField("index", result.item.index);
+                if (result.item.id != null) {
+                    generator.writeObjectField("id", result.item.id);
+                }
+                if (result.item.service != null) {
+                    generator.writeStringField("service", result.item.service);
+                }
+                generator.writeNumberField("statusCode", result.response.getStatus());
+                generator.writeObjectField("result", result.response.getEntity());
+                generator.writeEndObject();
+                generator.flush();
+            });
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.close();
+        };
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+
+    @FunctionalInterface
+    private interface BatchWriter {
+        void writeResults(ResultOutput output) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ResultOutput {
+        void write(BatchResult result) throws IOException;
+    }
+
+    private static final class BatchItem {
+        private final int index;
+        private final Object id;
+        private final String service;
+        private final ServiceRoute route;
+        private final Map<String, Object> inParams;
+        private final Response error;
+
+        private BatchItem(int index, Object id, String service, ServiceRoute route, Map<String, Object> inParams, Response error) {
+            this.index = index;
+            this.id = id;
+            this.service = service;
+            this.route = route;
+            this.inParams = inParams;
+            this.error = error;
+        }
+    }
+
+    private static final class BatchResult {
+        private final BatchItem item;
+        private final Response response;
+
+        private BatchResult(BatchItem item, Response response) {
+            this.item = item;
+            this.response = response;
+        }
+    }
+}
@@ -25,7 +25,6 @@ import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.HttpMethod;
-import javax.ws.rs.NotFoundException;
 import javax.ws.rs.Priorities;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
@@ -36,10 +35,9 @@ import javax.ws.rs.ext.Provider;
 
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilValidate;
-import org.apache.ofbiz.service.GenericServiceException;
-import org.apache.ofbiz.service.ModelService;
-import org.apache.ofbiz.webapp.WebAppUtil;
 import org.apache.ofbiz.ws.rs.annotation.ServiceRequestValidator;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.core.ServiceRouteTable;
 import org.apache.ofbiz.ws.rs.util.RestApiUtil;
 
 @Provider
@@ -74,31 +72,15 @@ public class ServiceRequestFilter implements ContainerRequestFilter {
         String method = requestContext.getMethod();
         String action = null;
         if (UtilValidate.isNotEmpty(service)) {
-            ModelService mdService = null;
-            try {
-                mdService = WebAppUtil.getDispatcher(servletContext).getDispatchContext().getModelService(service);
-            } catch (GenericServiceException e) {
-                Debug.logError(e.getMessage(), MODULE);
-            }
-
-            if (mdService == null) {
-                throw new ServiceNotFoundException(service);
-            }
-
-            if (mdService != null && !mdService.isExport()) {
-                throw new NotFoundException("Service '" + service + "' is not exportable.");
-            }
-
-            action = mdService.getAction();
-            if (mdService != null && UtilValidate.isEmpty(action)) {
-                throw new NotFoundException("Service '" + service + "' does not have HTTP action defined.");
-            }
+            ServiceRoute route = ServiceRequestProcessor.checkExported(
+                    ServiceRouteTable.getInstance(servletContext).resolve(requestContext, service), service);
 
+            action = route.getVerb();
             if (!action.equalsIgnoreCase(method)) {
                 throw new MethodNotAllowedException("HTTP " + method + " is not allowed on service '" + service + "'");
             }
 
-            if (action.equalsIgnoreCase(HttpMethod.GET) && UtilValidate.isNotEmpty(mdService.getInParamNamesMap())
+            if (action.equalsIgnoreCase(HttpMethod.GET) && route.isInParamsRequired()
                     && UtilValidate.isEmpty(httpRequest.getParameter(SVC_IN_PARAMS))) {
                 throw new BadRequestException("Missing Parameter: 'inParams'");
             }
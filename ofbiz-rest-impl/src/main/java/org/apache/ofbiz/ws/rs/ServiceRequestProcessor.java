@@ -18,9 +18,8 @@
  *******************************************************************************/
 package org.apache.ofbiz.ws.rs;
 
-import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.NotFoundException;
@@ -28,12 +27,12 @@ import javax.ws.rs.core.Response;
 
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.GenericValue;
-import org.apache.ofbiz.service.DispatchContext;
 import org.apache.ofbiz.service.GenericServiceException;
 import org.apache.ofbiz.service.LocalDispatcher;
-import org.apache.ofbiz.service.ModelParam;
 import org.apache.ofbiz.service.ModelService;
 import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.core.ServiceRouteTable;
 import org.apache.ofbiz.ws.rs.util.ErrorUtil;
 import org.apache.ofbiz.ws.rs.util.RestApiUtil;
 
@@ -52,34 +51,90 @@ public class ServiceRequestProcessor {
         LocalDispatcher dispatcher = (LocalDispatcher) requestContext.get("dispatcher");
         HttpServletRequest request = (HttpServletRequest) requestContext.get("request");
         GenericValue userLogin = (GenericValue) request.getAttribute("userLogin");
-        DispatchContext dispatchContext = dispatcher.getDispatchContext();
-        ModelService service = null;
-        try {
-            service = dispatchContext.getModelService(serviceName);
-        } catch (GenericServiceException gse) {
-            throw new NotFoundException(gse.getMessage());
+        // The route is resolved by the request filters, the Jersey request properties being the request attributes
+        ServiceRoute route = (ServiceRoute) request.getAttribute(ServiceRouteTable.REQUEST_PROPERTY);
+        if (route == null || !route.getServiceName().equals(serviceName)) {
+            route = ServiceRouteTable.getInstance(request.getServletContext()).getRoute(serviceName);
+            if (route == null) {
+                throw new NotFoundException("Service '" + serviceName + "' not found.");
+            }
         }
-        if (UtilValidate.isNotEmpty(service.getAction()) && !service.getAction().equalsIgnoreCase(httpVerb)) {
+        if (!route.allows(httpVerb)) {
             throw new MethodNotAllowedException("HTTP " + httpVerb + " is not allowed on this service.");
         }
-        Map<String, Object> serviceContext = dispatchContext.makeValidContext(serviceName, ModelService.IN_PARAM, requestMap);
+        if (AsyncServiceProcessor.isAsync(request, false)) {
+            return AsyncServiceProcessor.submit(route, requestMap, userLogin, dispatcher, request);
+        }
+        return invoke(route, requestMap, userLogin, dispatcher, request.getLocale());
+    }
+
+    /**
+     * Checks that a service can be called through the API.
+     * @param route the route of the service
+     * @param serviceName the service name
+     * @return the route
+     * @throws NotFoundException if the service does not exist, is not exported or has no HTTP action
+     */
+    public static ServiceRoute checkExported(ServiceRoute route, String serviceName) throws NotFoundException {
+        if (route == null) {
+            throw new ServiceNotFoundException(serviceName);
+        }
+        if (!route.isExportable()) {
+            throw new NotFoundException("Service '" + serviceName + "' is not exportable.");
+        }
+        if (UtilValidate.isEmpty(route.getVerb())) {
+            throw new NotFoundException("Service '" + serviceName + "' does not have HTTP action defined.");
+        }
+        return route;
+    }
+
+    /**
+     * Checks that a service can be called through the API with an HTTP method.
+     * @param route the route of the service
+     * @param serviceName the service name
+     * @param httpVerb the HTTP method of the call
+     * @return the route
+     * @throws NotFoundException if the service does not exist or is not exported
+     * @throws MethodNotAllowedException if the service is not exported on the method
+     */
+    public static ServiceRoute checkAllowed(ServiceRoute route, String serviceName, String httpVerb) throws NotFoundException {
+        checkExported(route, serviceName);
+        if (!route.allows(httpVerb)) {
+            throw new MethodNotAllowedException("HTTP " + httpVerb + " is not allowed on service '" + serviceName + "'");
+        }
+        return route;
+    }
+
+    /**
+     * Validates the IN parameters of a request and runs the service.
+     * @param route the route of the service
+     * @param requestMap the request parameters
+     * @param userLogin the UserLogin of the request
+     * @param dispatcher the dispatcher
+     * @param locale the locale of the error messages
+     * @return the response with the OUT parameters, or the error of the service
+     * @throws GenericServiceException if a parameter is invalid or the service could not be run
+     */
+    public static Response invoke(ServiceRoute route, Map<String, Object> requestMap, GenericValue userLogin, LocalDispatcher dispatcher,
+            Locale locale) throws GenericServiceException {
+        Map<String, Object> serviceContext = route.makeValidInContext(requestMap);
         serviceContext.put("userLogin", userLogin);
-        Map<String, Object> result = dispatcher.runSync(serviceName, serviceContext);
-        Map<String, Object> responseData = new LinkedHashMap<>();
+        Map<String, Object> result = dispatcher.runSync(route.getServiceName(), serviceContext);
+        return toResponse(route, result, locale);
+    }
+
+    /**
+     * Builds the response of a service result.
+     * @param route the route of the service
+     * @param result the service result
+     * @param locale the locale of the error messages
+     * @return the response with the OUT parameters, or the error of the service
+     */
+    public static Response toResponse(ServiceRoute route, Map<String, Object> result, Locale locale) {
         if (ServiceUtil.isSuccess(result)) {
-            Set<String> outParams = service.getOutParamNames();
-            for (String outParamName : outParams) {
-                ModelParam outParam = service.getParam(outParamName);
-                if (!outParam.isInternal()) {
-                    Object value = result.get(outParamName);
-                    if (UtilValidate.isNotEmpty(value)) {
-                        responseData.put(outParamName, value);
-                    }
-                }
-            }
-            return RestApiUtil.success((String) result.get(ModelService.SUCCESS_MESSAGE), responseData);
+            return RestApiUtil.success((String) result.get(ModelService.SUCCESS_MESSAGE), route.extractOutParams(result));
         } else {
-            return ErrorUtil.buildErrorFromServiceResult(serviceName, result, request.getLocale());
+            return ErrorUtil.buildErrorFromServiceResult(route.getServiceName(), result, locale);
         }
     }
 }
@@ -38,6 +38,7 @@ import org.apache.ofbiz.ws.rs.model.ModelApi;
 import org.apache.ofbiz.ws.rs.model.ModelApiReader;
 import org.apache.ofbiz.ws.rs.model.ModelOperation;
 import org.apache.ofbiz.ws.rs.model.ModelResource;
+import org.apache.ofbiz.ws.rs.process.ServiceBatchRequestHandler;
 import org.apache.ofbiz.ws.rs.process.ServiceRequestHandler;
 import org.apache.ofbiz.ws.rs.security.Secured;
 import org.glassfish.jersey.jackson.JacksonFeature;
@@ -123,7 +124,8 @@ public class OFBizApiConfig extends ResourceConfig {
                                 methodBuilder.nameBindings(Secured.class);
                             }
                             String serviceName = op.getService();
-                            methodBuilder.handledBy(new ServiceRequestHandler(serviceName));
+                            methodBuilder.handledBy(op.isBatch() ? new ServiceBatchRequestHandler(serviceName)
+                                    : new ServiceRequestHandler(serviceName, op.isAsync()));
                         } else {
                             Resource.Builder childResourceBuilder = resourceBuilder.addChildResource(op.getPath());
                             ResourceMethod.Builder childResourceMethodBuilder = childResourceBuilder.addMethod(verb);
@@ -135,7 +137,8 @@ public class OFBizApiConfig extends ResourceConfig {
                                 childResourceMethodBuilder.nameBindings(Secured.class);
                             }
                             String serviceName = op.getService();
-                            childResourceMethodBuilder.handledBy(new ServiceRequestHandler(serviceName));
+                            childResourceMethodBuilder.handledBy(op.isBatch() ? new ServiceBatchRequestHandler(serviceName)
+                                    : new ServiceRequestHandler(serviceName, op.isAsync()));
                         }
                     }
                     registerResources(resourceBuilder.build());
@@ -28,7 +28,12 @@ public final class ResponseStatus {
          * 422 Unprocessable Entity, see <a href=
          * "https://tools.ietf.org/html/rfc4918#section-11.2">https://tools.ietf.org/html/rfc4918#section-11.2</a>
          */
-        UNPROCESSABLE_ENTITY(422, "Unprocessable Entity");
+        UNPROCESSABLE_ENTITY(422, "Unprocessable Entity"),
+        /**
+         * 424 Failed Dependency, see <a href=
+         * "https://tools.ietf.org/html/rfc4918#section-11.4">https://tools.ietf.org/html/rfc4918#section-11.4</a>
+         */
+        FAILED_DEPENDENCY(424, "Failed Dependency");
 
         private final int code;
         private final String reason;
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.ModelParam;
+import org.apache.ofbiz.service.ModelService;
+
+/**
+ * The resolved definition of a service called through the API, see {@link ServiceRouteTable}.
+ */
+public final class ServiceRoute {
+
+    private final String serviceName;
+    private final ModelService modelService;
+    private final String verb;
+    private final boolean auth;
+    private final boolean exportable;
+    private final boolean inParamsRequired;
+    private final List<String> outParamNames;
+
+    ServiceRoute(ModelService modelService) {
+        this.serviceName = modelService.getName();
+        this.modelService = modelService;
+        this.verb = UtilValidate.isNotEmpty(modelService.getAction()) ? modelService.getAction().toUpperCase() : null;
+        this.auth = modelService.isAuth();
+        this.exportable = modelService.isExport();
+        this.inParamsRequired = UtilValidate.isNotEmpty(modelService.getInParamNamesMap());
+        List<String> outParamNames = new ArrayList<>();
+        for (String outParamName : modelService.getOutParamNames()) {
+            ModelParam outParam = modelService.getParam(outParamName);
+            if (!outParam.isInternal()) {
+                outParamNames.add(outParamName);
+            }
+        }
+        this.outParamNames = Collections.unmodifiableList(outParamNames);
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public ModelService getModelService() {
+        return modelService;
+    }
+
+    /**
+     * @return the HTTP verb the service is exported on, upper case, or <code>null</code> if it has no action
+     */
+    public String getVerb() {
+        return verb;
+    }
+
+    public boolean isAuth() {
+        return auth;
+    }
+
+    public boolean isExportable() {
+        return exportable;
+    }
+
+    /**
+     * @return <code>true</code> if the service has IN parameters, which a GET request must give
+     */
+    public boolean isInParamsRequired() {
+        return inParamsRequired;
+    }
+
+    /**
+     * @return the non-internal OUT parameters returned to the client
+     */
+    public List<String> getOutParamNames() {
+        return outParamNames;
+    }
+
+    /**
+     * @param method the HTTP method of the request
+     * @return <code>true</code> if the service has no action or its action is the method
+     */
+    public boolean allows(String method) {
+        return verb == null || verb.equalsIgnoreCase(method);
+    }
+
+    /**
+     * Keeps the valid IN parameters of a request, converted to their declared types.
+     * @param requestMap the request parameters
+     * @return the service context
+     * @throws GenericServiceException if a parameter could not be converted
+     */
+    public Map<String, Object> makeValidInContext(Map<String, ? extends Object> requestMap) throws GenericServiceException {
+        return DispatchContext.makeValidContext(modelService, ModelService.IN_PARAM, requestMap);
+    }
+
+    /**
+     * Keeps the non-empty exportable OUT parameters of a service result.
+     * @param result the service result
+     * @return the response data
+     */
+    public Map<String, Object> extractOutParams(Map<String, Object> result) {
+        Map<String, Object> responseData = new LinkedHashMap<>();
+        for (String outParamName : outParamNames) {
+            Object value = result.get(outParamName);
+            if (UtilValidate.isNotEmpty(value)) {
+                responseData.put(outParamName, value);
+            }
+        }
+        return responseData;
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.container.ContainerRequestContext;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.cache.CacheListener;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.ModelService;
+import org.apache.ofbiz.webapp.WebAppUtil;
+
+/**
+ * The routes of the services callable through the API, resolved once instead of looking up the service definition in
+ * every filter and handler of a request.
+ * <p>
+ * The table is built when the webapp starts and is shared through the <code>serviceRouteTable</code> servlet context
+ * attribute. It is rebuilt on first use after the service definitions are reloaded, which clears the
+ * <code>service.ModelServiceMapByModel</code> cache. The route of a request is kept in the <code>serviceRoute</code>
+ * request property by the first filter resolving it, so that the next filters and the handler reuse it.
+ */
+public final class ServiceRouteTable {
+
+    private static final String MODULE = ServiceRouteTable.class.getName();
+    public static final String ATTRIBUTE_NAME = "serviceRouteTable";
+    public static final String REQUEST_PROPERTY = "serviceRoute";
+    private static final String MODEL_SERVICE_CACHE_NAME = "service.ModelServiceMapByModel";
+
+    private final DispatchContext dispatchContext;
+    private volatile Map<String, ServiceRoute> routes;
+
+    public ServiceRouteTable(DispatchContext dispatchContext) {
+        this.dispatchContext = dispatchContext;
+        UtilCache<String, Map<String, ModelService>> modelServiceCache = UtilCache.findCache(MODEL_SERVICE_CACHE_NAME);
+        if (modelServiceCache != null) {
+            modelServiceCache.addListener(new ReloadListener());
+        } else {
+            Debug.logWarning("Cache " + MODEL_SERVICE_CACHE_NAME + " not found, the service routes will not follow the service reloads", MODULE);
+        }
+        this.routes = build();
+    }
+
+    /**
+     * @param servletContext the servlet context of the API webapp
+     * @return the table of the webapp, built if the webapp listener did not
+     */
+    public static ServiceRouteTable getInstance(ServletContext servletContext) {
+        ServiceRouteTable routeTable = (ServiceRouteTable) servletContext.getAttribute(ATTRIBUTE_NAME);
+        if (routeTable == null) {
+            synchronized (ServiceRouteTable.class) {
+                routeTable = (ServiceRouteTable) servletContext.getAttribute(ATTRIBUTE_NAME);
+                if (routeTable == null) {
+                    routeTable = new ServiceRouteTable(WebAppUtil.getDispatcher(servletContext).getDispatchContext());
+                    servletContext.setAttribute(ATTRIBUTE_NAME, routeTable);
+                }
+            }
+        }
+        return routeTable;
+    }
+
+    /**
+     * @param serviceName the service name
+     * @return the route of the service, or <code>null</code> if the service does not exist
+     */
+    public ServiceRoute getRoute(String serviceName) {
+        return currentRoutes().get(serviceName);
+    }
+
+    /**
+     * @return all the routes
+     */
+    public Collection<ServiceRoute> getRoutes() {
+        return currentRoutes().values();
+    }
+
+    /**
+     * Gets the route of the service of a request, from the request property if it was already resolved.
+     * @param requestContext the request
+     * @param serviceName the service name
+     * @return the route of the service, or <code>null</code> if the service does not exist
+     */
+    public ServiceRoute resolve(ContainerRequestContext requestContext, String serviceName) {
+        Object route = requestContext.getProperty(REQUEST_PROPERTY);
+        if (route instanceof ServiceRoute && ((ServiceRoute) route).getServiceName().equals(serviceName)) {
+            return (ServiceRoute) route;
+        }
+        ServiceRoute serviceRoute = getRoute(serviceName);
+        if (serviceRoute != null) {
+            requestContext.setProperty(REQUEST_PROPERTY, serviceRoute);
+        }
+        return serviceRoute;
+    }
+
+    private Map<String, ServiceRoute> currentRoutes() {
+        Map<String, ServiceRoute> currentRoutes = routes;
+        if (currentRoutes == null) {
+            currentRoutes = build();
+            routes = currentRoutes;
+        }
+        return currentRoutes;
+    }
+
+    private Map<String, ServiceRoute> build() {
+        long startTime = System.currentTimeMillis();
+        Map<String, ServiceRoute> newRoutes = new HashMap<>();
+        for (String serviceName : dispatchContext.getAllServiceNames()) {
+            try {
+                ModelService modelService = dispatchContext.getModelService(serviceName);
+                if (modelService != null) {
+                    newRoutes.put(serviceName, new ServiceRoute(modelService));
+                }
+            } catch (GenericServiceException e) {
+                Debug.logError(e, "Could not resolve the route of service " + serviceName, MODULE);
+            }
+        }
+        Debug.logInfo("Resolved " + newRoutes.size() + " service routes in " + (System.currentTimeMillis() - startTime) + " ms", MODULE);
+        return Collections.unmodifiableMap(newRoutes);
+    }
+
+    /**
+     * Drops the routes when the service definitions change, they are rebuilt on first use.
+     */
+    private final class ReloadListener implements CacheListener<String, Map<String, ModelService>> {
+
+        @Override
+        public void noteKeyRemoval(UtilCache<String, Map<String, ModelService>> cache, String key, Map<String, ModelService> oldValue) {
+            routes = null;
+        }
+
+        @Override
+        public void noteKeyAddition(UtilCache<String, Map<String, ModelService>> cache, String key, Map<String, ModelService> newValue) {
+            routes = null;
+        }
+
+        @Override
+        public void noteKeyUpdate(UtilCache<String, Map<String, ModelService>> cache, String key, Map<String, ModelService> newValue,
+                Map<String, ModelService> oldValue) {
+            routes = null;
+        }
+    }
+}
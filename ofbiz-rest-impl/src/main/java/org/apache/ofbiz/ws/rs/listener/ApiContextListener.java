@@ -26,6 +26,7 @@ import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.service.LocalDispatcher;
 import org.apache.ofbiz.webapp.WebAppUtil;
+import org.apache.ofbiz.ws.rs.core.ServiceRouteTable;
 
 public class ApiContextListener implements ServletContextListener {
 
@@ -42,6 +43,7 @@ public class ApiContextListener implements ServletContextListener {
         servletContext.setAttribute("delegator", delegator);
         servletContext.setAttribute("dispatcher", dispatcher);
         servletContext.setAttribute("security", WebAppUtil.getSecurity(servletContext));
+        servletContext.setAttribute(ServiceRouteTable.ATTRIBUTE_NAME, new ServiceRouteTable(dispatcher.getDispatchContext()));
     }
 
     /**
@@ -52,6 +54,7 @@ public class ApiContextListener implements ServletContextListener {
         context.removeAttribute("delegator");
         context.removeAttribute("dispatcher");
         context.removeAttribute("security");
+        context.removeAttribute(ServiceRouteTable.ATTRIBUTE_NAME);
         context = null;
     }
 
@@ -78,7 +78,9 @@ public final class ModelApiReader {
                     .produces(UtilXml.checkEmpty(operationEle.getAttribute("produces")).intern())
                     .consumes(UtilXml.checkEmpty(operationEle.getAttribute("consumes")).intern())
                     .description(UtilXml.checkEmpty(operationEle.getAttribute("description")).intern())
-                    .auth(Boolean.parseBoolean(UtilXml.checkEmpty(operationEle.getAttribute("auth")).intern()));
+                    .auth(Boolean.parseBoolean(UtilXml.checkEmpty(operationEle.getAttribute("auth")).intern()))
+                    .batch(Boolean.parseBoolean(UtilXml.checkEmpty(operationEle.getAttribute("batch")).intern()))
+                    .async(Boolean.parseBoolean(UtilXml.checkEmpty(operationEle.getAttribute("async")).intern()));
             resource.addOperation(op);
         }
     }
@@ -27,6 +27,8 @@ public class ModelOperation {
     private String path;
     private String description;
     private boolean auth;
+    private boolean batch;
+    private boolean async;
 
     /**
      * @return the auth
@@ -51,6 +53,52 @@ public class ModelOperation {
         return this;
     }
 
+    /**
+     * @return <code>true</code> if the operation calls its service once per request of a batch
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * @param batch the batch to set
+     */
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * @param batch
+     * @return ModelOperation
+     */
+    public ModelOperation batch(boolean batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    /**
+     * @return <code>true</code> if the operation always runs its service as a job
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @param async the async to set
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * @param async
+     * @return ModelOperation
+     */
+    public ModelOperation async(boolean async) {
+        this.async = async;
+        return this;
+    }
+
     /**
      * Gets the value of the service property.
      *
@@ -232,7 +280,7 @@ public class ModelOperation {
     public String toString() {
         // TODO Auto-generated method stub
         return "service: " + service + ", path: " + path + ", verb: " + verb + ", description: " + description
-                + ", produces: " + produces;
+                + ", produces: " + produces + ", batch: " + batch + ", async: " + async;
     }
 
 }
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.process;
+
+import java.util.Map;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Response;
+
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.ws.rs.ServiceBatchProcessor;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.core.ServiceRouteTable;
+
+/**
+ * Handles the DSL operations declared with <code>batch="true"</code>, calling their service once per request of the
+ * batch, see {@link ServiceBatchProcessor}.
+ */
+public final class ServiceBatchRequestHandler extends RestRequestHandler {
+
+    private String service;
+
+    public ServiceBatchRequestHandler(String service) {
+        this.service = service;
+    }
+
+    /**
+     * @param ctx ContainerRequestContext
+     * @param arguments Map
+     * @return Response
+     */
+    @Override
+    protected Response execute(ContainerRequestContext ctx, Map<String, Object> arguments) {
+        ctx.setProperty("requestForService", service);
+        LocalDispatcher dispatcher = (LocalDispatcher) getServletContext().getAttribute("dispatcher");
+        ServiceRoute route = ServiceRouteTable.getInstance(getServletContext()).resolve(ctx, service);
+        if (route == null) {
+            throw new NotFoundException("Service '" + service + "' not found.");
+        }
+        ServiceBatchProcessor processor = new ServiceBatchProcessor(dispatcher,
+                (GenericValue) getHttpRequest().getAttribute("userLogin"), getHttpRequest().getLocale());
+        // The operation is called with the HTTP method of the DSL, whatever the method of its requests
+        return processor.process(arguments, service, (serviceName, method) -> route);
+    }
+}
@@ -18,9 +18,7 @@
  *******************************************************************************/
 package org.apache.ofbiz.ws.rs.process;
 
-import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
 
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.container.ContainerRequestContext;
@@ -28,14 +26,14 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.ExceptionMapper;
 
 import org.apache.ofbiz.base.util.Debug;
-import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.GenericValue;
-import org.apache.ofbiz.service.DispatchContext;
 import org.apache.ofbiz.service.GenericServiceException;
 import org.apache.ofbiz.service.LocalDispatcher;
-import org.apache.ofbiz.service.ModelParam;
 import org.apache.ofbiz.service.ModelService;
 import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.ws.rs.AsyncServiceProcessor;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.core.ServiceRouteTable;
 import org.apache.ofbiz.ws.rs.util.ErrorUtil;
 import org.apache.ofbiz.ws.rs.util.RestApiUtil;
 
@@ -43,9 +41,20 @@ public final class ServiceRequestHandler extends RestRequestHandler {
 
     private static final String MODULE = ServiceRequestHandler.class.getName();
     private String service;
+    private boolean async;
 
     public ServiceRequestHandler(String service) {
+        this(service, false);
+    }
+
+    /**
+     * @param service the service name
+     * @param async <code>true</code> if the operation always runs the service asynchronously, see
+     *            {@link AsyncServiceProcessor}
+     */
+    public ServiceRequestHandler(String service, boolean async) {
         this.service = service;
+        this.async = async;
     }
 
     /**
@@ -57,15 +66,28 @@ public final class ServiceRequestHandler extends RestRequestHandler {
     protected Response execute(ContainerRequestContext ctx, Map<String, Object> arguments) {
         ctx.setProperty("requestForService", service);
         LocalDispatcher dispatcher = (LocalDispatcher) getServletContext().getAttribute("dispatcher");
+        ServiceRoute route = ServiceRouteTable.getInstance(getServletContext()).resolve(ctx, service);
+        if (route == null) {
+            throw new NotFoundException("Service '" + service + "' not found.");
+        }
+        if (AsyncServiceProcessor.isAsync(getHttpRequest(), async)) {
+            try {
+                return AsyncServiceProcessor.submit(route, arguments, (GenericValue) getHttpRequest().getAttribute("userLogin"), dispatcher,
+                        getHttpRequest());
+            } catch (GenericServiceException e) {
+                Debug.logError(e, MODULE);
+                final ExceptionMapper<GenericServiceException> mapper = getMappers().get().findMapping(e);
+                return mapper.toResponse(e);
+            }
+        }
         Map<String, Object> serviceContext = null;
         try {
-            serviceContext = dispatcher.getDispatchContext().makeValidContext(service, ModelService.IN_PARAM, arguments);
+            serviceContext = route.makeValidInContext(arguments);
         } catch (GenericServiceException e) {
             Debug.logError(e, MODULE);
             final ExceptionMapper<GenericServiceException> mapper = getMappers().get().findMapping(e);
             return mapper.toResponse(e);
         }
-        ModelService svc = getModelService(dispatcher.getDispatchContext());
         GenericValue userLogin = (GenericValue) getHttpRequest().getAttribute("userLogin");
         serviceContext.put("userLogin", userLogin);
         Map<String, Object> result = null;
@@ -76,31 +98,10 @@ public final class ServiceRequestHandler extends RestRequestHandler {
             final ExceptionMapper<GenericServiceException> mapper = getMappers().get().findMapping(e);
             return mapper.toResponse(e);
         }
-        Map<String, Object> responseData = new LinkedHashMap<>();
         if (ServiceUtil.isSuccess(result)) {
-            Set<String> outParams = svc.getOutParamNames();
-            for (String outParamName : outParams) {
-                ModelParam outParam = svc.getParam(outParamName);
-                if (!outParam.isInternal()) {
-                    Object value = result.get(outParamName);
-                    if (UtilValidate.isNotEmpty(value)) {
-                        responseData.put(outParamName, value);
-                    }
-                }
-            }
-            return RestApiUtil.success((String) result.get(ModelService.SUCCESS_MESSAGE), responseData);
+            return RestApiUtil.success((String) result.get(ModelService.SUCCESS_MESSAGE), route.extractOutParams(result));
         } else {
             return ErrorUtil.buildErrorFromServiceResult(service, result, getHttpRequest().getLocale());
         }
     }
-
-    private ModelService getModelService(DispatchContext dispatchContext) {
-        ModelService svc = null;
-        try {
-            svc = dispatchContext.getModelService(service);
-        } catch (GenericServiceException gse) {
-            throw new NotFoundException(gse.getMessage());
-        }
-        return svc;
-    }
 }
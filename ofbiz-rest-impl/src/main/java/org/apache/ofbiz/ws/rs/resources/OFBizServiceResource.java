@@ -20,11 +20,11 @@ package org.apache.ofbiz.ws.rs.resources;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.BadRequestException;
@@ -48,13 +48,15 @@ import javax.ws.rs.ext.Provider;
 import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.GenericEntityException;
-import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.service.GenericServiceException;
-import org.apache.ofbiz.service.LocalDispatcher;
 import org.apache.ofbiz.service.ModelService;
 import org.apache.ofbiz.ws.rs.ApiServiceRequest;
+import org.apache.ofbiz.ws.rs.ServiceBatchProcessor;
 import org.apache.ofbiz.ws.rs.ServiceRequestProcessor;
 import org.apache.ofbiz.ws.rs.annotation.ServiceRequestValidator;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.core.ServiceRouteTable;
 import org.apache.ofbiz.ws.rs.response.Success;
 import org.apache.ofbiz.ws.rs.security.Secured;
 
@@ -79,13 +81,12 @@ public class OFBizServiceResource extends OFBizResource {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public Response serviceList() throws GenericServiceException {
-        LocalDispatcher dispatcher = getDispatcher();
-        DispatchContext context = dispatcher.getDispatchContext();
-        Set<String> serviceNames = context.getAllServiceNames();
+        List<ServiceRoute> routes = new ArrayList<>(ServiceRouteTable.getInstance(httpRequest.getServletContext()).getRoutes());
+        routes.sort(Comparator.comparing(ServiceRoute::getServiceName));
         List<Map<String, Object>> serviceList = new ArrayList<>();
-        for (String serviceName : serviceNames) {
-            ModelService service = context.getModelService(serviceName);
-            if (service != null && service.isExport() && UtilValidate.isNotEmpty(service.getAction())) {
+        for (ServiceRoute route : routes) {
+            if (route.isExportable() && route.getVerb() != null) {
+                ModelService service = route.getModelService();
                 Map<String, Object> serviceMap = new LinkedHashMap<String, Object>();
                 serviceMap.put("name", service.getName());
                 serviceMap.put("description", service.getDescription());
@@ -100,6 +101,23 @@ public class OFBizServiceResource extends OFBizResource {
         return Response.status(Response.Status.OK).type(MediaType.APPLICATION_JSON).entity(success).build();
     }
 
+    /**
+     * Runs many exported services in one request, each with the HTTP method it is exported on, see
+     * {@link ServiceBatchProcessor}.
+     * @param batchRequest
+     * @return
+     */
+    @POST
+    @Path("/batch")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response doBatch(HashMap<String, Object> batchRequest) {
+        ServiceRouteTable routeTable = ServiceRouteTable.getInstance(httpRequest.getServletContext());
+        ServiceBatchProcessor processor = new ServiceBatchProcessor(getDispatcher(),
+                (GenericValue) httpRequest.getAttribute("userLogin"), httpRequest.getLocale());
+        return processor.process(batchRequest, null,
+                (serviceName, method) -> ServiceRequestProcessor.checkAllowed(routeTable.getRoute(serviceName), serviceName, method));
+    }
+
     /**
      * @param serviceRequest
      * @param serviceName
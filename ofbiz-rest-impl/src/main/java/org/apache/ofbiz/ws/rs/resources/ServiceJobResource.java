@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.resources;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.ws.rs.AsyncServiceProcessor;
+import org.apache.ofbiz.ws.rs.AsyncServiceProcessor.ServiceJob;
+import org.apache.ofbiz.ws.rs.response.Success;
+import org.apache.ofbiz.ws.rs.security.Secured;
+
+/**
+ * The jobs of the services called asynchronously, see {@link AsyncServiceProcessor}.
+ */
+@Secured
+@Path(ServiceJobResource.BASE_PATH)
+@Provider
+public class ServiceJobResource extends OFBizResource {
+
+    public static final String BASE_PATH = "/" + AsyncServiceProcessor.JOBS_PATH;
+
+    @Context
+    private HttpServletRequest httpRequest;
+
+    /**
+     * Polls a job, the response of its service being returned once done. A job whose result has expired is
+     * <code>410 Gone</code>.
+     * @param jobId
+     * @return
+     */
+    @GET
+    @Path("/{jobId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getJob(@PathParam(value = "jobId") String jobId) {
+        ServiceJob job = AsyncServiceProcessor.getJob(jobId, (GenericValue) httpRequest.getAttribute("userLogin"));
+        if (job == null) {
+            if (AsyncServiceProcessor.isExpired(jobId, (GenericValue) httpRequest.getAttribute("userLogin"))) {
+                throw new ClientErrorException("Job '" + jobId + "' has expired.", Response.Status.GONE);
+            }
+            throw new NotFoundException("Job '" + jobId + "' not found.");
+        }
+        boolean pending = job.isPending();
+        Success success = new Success(Response.Status.OK.getStatusCode(), Response.Status.OK.getReasonPhrase(),
+                pending ? "Job " + jobId + " is pending." : "Job " + jobId + " is done.", job.toMap());
+        Response.ResponseBuilder builder = Response.status(Response.Status.OK).type(MediaType.APPLICATION_JSON).entity(success);
+        if (pending) {
+            builder.header(HttpHeaders.RETRY_AFTER, UtilProperties.getPropertyAsInteger("rest.properties", "rest.async.job.retryAfter", 2));
+        }
+        return builder.build();
+    }
+}
@@ -40,12 +40,13 @@ import org.apache.ofbiz.entity.Delegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
 import org.apache.ofbiz.entity.util.EntityQuery;
-import org.apache.ofbiz.service.GenericServiceException;
 import org.apache.ofbiz.service.ModelService;
-import org.apache.ofbiz.webapp.WebAppUtil;
 import org.apache.ofbiz.webapp.control.JWTManager;
 import org.apache.ofbiz.ws.rs.common.AuthenticationScheme;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.core.ServiceRouteTable;
 import org.apache.ofbiz.ws.rs.resources.OFBizServiceResource;
+import org.apache.ofbiz.ws.rs.resources.ServiceJobResource;
 import org.apache.ofbiz.ws.rs.security.Secured;
 import org.apache.ofbiz.ws.rs.util.RestApiUtil;
 
@@ -79,30 +80,42 @@ public class APIAuthFilter implements ContainerRequestFilter {
         if (isServiceResource()) {
             String service = (String) RestApiUtil.extractParams(uriInfo.getPathParameters()).get("serviceName");
             if (UtilValidate.isNotEmpty(service)) {
-                ModelService mdService = null;
-                try {
-                    mdService = WebAppUtil.getDispatcher(servletContext).getDispatchContext().getModelService(service);
-                } catch (GenericServiceException e) {
-                    Debug.logError(e.getMessage(), MODULE);
-                }
+                ServiceRoute route = ServiceRouteTable.getInstance(servletContext).resolve(requestContext, service);
                 // Skip auth for services auth=false in service definition and if Authorization header is absent
                 // Still validate the token if it is present even if service being called is auth=false
-                if (mdService != null && !mdService.isAuth() && authorizationHeader == null) {
+                if (route != null && !route.isAuth() && authorizationHeader == null) {
                     return;
                 }
             }
         }
+        // The jobs of anonymous calls are polled anonymously, the other jobs only by their UserLogin
+        if (isJobResource() && authorizationHeader == null) {
+            return;
+        }
         Delegator delegator = (Delegator) servletContext.getAttribute("delegator");
         if (!isTokenBasedAuthentication(authorizationHeader)) {
             abortWithUnauthorized(requestContext, false, "Unauthorized: Access is denied due to invalid or absent Authorization header.");
             return;
         }
         String jwtToken = JWTManager.getHeaderAuthBearerToken(httpRequest);
+        boolean useCache = ApiAuthCache.isEnabled() && UtilValidate.isNotEmpty(jwtToken);
+        if (useCache) {
+            ApiAuthCache.AuthEntry authEntry = ApiAuthCache.get(jwtToken);
+            if (authEntry != null) {
+                httpRequest.setAttribute("userLogin", authEntry.getUserLogin());
+                return;
+            }
+        }
         Map<String, Object> claims = JWTManager.validateToken(jwtToken, JWTManager.getJWTKey(delegator));
         if (claims.containsKey(ModelService.ERROR_MESSAGE)) {
             abortWithUnauthorized(requestContext, true, "Unauthorized: " + (String) claims.get(ModelService.ERROR_MESSAGE));
         } else {
             GenericValue userLogin = extractUserLoginFromJwtClaim(delegator, claims);
+            // Only the tokens of an existing UserLogin are kept, so that a UserLogin created afterwards is found
+            if (useCache && userLogin != null) {
+                ApiAuthCache.put(jwtToken, claims, userLogin);
+                userLogin = (GenericValue) userLogin.clone();
+            }
             httpRequest.setAttribute("userLogin", userLogin);
         }
     }
@@ -154,4 +167,8 @@ public class APIAuthFilter implements ContainerRequestFilter {
         return OFBizServiceResource.class.isAssignableFrom(resourceInfo.getResourceClass());
     }
 
+    private boolean isJobResource() {
+        return resourceInfo.getResourceClass() != null && ServiceJobResource.class.isAssignableFrom(resourceInfo.getResourceClass());
+    }
+
 }
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.security.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.GenericValue;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.exceptions.JWTDecodeException;
+
+/**
+ * Caches the verified JWT tokens of the API with their claims and UserLogin, see <code>rest.auth.cache.*</code>.
+ * <p>
+ * A token is cached under the SHA-256 hash of the whole token, signature included, so a forged or altered token never
+ * hits the cache and the tokens themselves are not kept. An entry expires with its token, or after
+ * <code>rest.auth.cache.expireTime</code> ms if sooner, and the least recently used ones are evicted beyond
+ * <code>rest.auth.cache.maxSize</code> tokens. The entries of a UserLogin, and its {@link BasicCredentialCache}
+ * entries, are dropped by the <code>clearApiAuthCache</code> entity ECA when it is disabled, removed or its password
+ * changes, once the change is committed. Both caches index their keys by UserLogin, so the ECA, which runs on every
+ * login, only reads the entries of the stored UserLogin.
+ */
+public final class ApiAuthCache {
+
+    private static final String MODULE = ApiAuthCache.class.getName();
+    private static final String REST_CONFIG_NAME = "rest.properties";
+    private static final long MAX_TIME_TO_LIVE = UtilProperties.getPropertyAsLong(REST_CONFIG_NAME, "rest.auth.cache.expireTime", 1800000L);
+
+    private static final UtilCache<String, AuthEntry> AUTH_CACHE = UtilCache.createUtilCache("rest.AuthTokenCache",
+            UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.auth.cache.maxSize", 10000), 0, MAX_TIME_TO_LIVE, false);
+    private static final UserLoginKeyIndex<AuthEntry> USER_LOGIN_KEYS = new UserLoginKeyIndex<>(AUTH_CACHE, AuthEntry::getUserLoginId);
+
+    private ApiAuthCache() { }
+
+    public static boolean isEnabled() {
+        return UtilProperties.getPropertyAsBoolean(REST_CONFIG_NAME, "rest.auth.cache.enabled", true);
+    }
+
+    /**
+     * Gets a verified token.
+     * @param jwtToken the token of the request
+     * @return the cached entry, or <code>null</code> if the token was not verified yet or has expired
+     */
+    public static AuthEntry get(String jwtToken) {
+        AuthEntry entry = AUTH_CACHE.get(hash(jwtToken));
+        if (entry != null && entry.isExpired()) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a token after its signature was verified, until it expires.
+     * @param jwtToken the token of the request
+     * @param claims the claims of the token
+     * @param userLogin the UserLogin of the token
+     */
+    public static void put(String jwtToken, Map<String, Object> claims, GenericValue userLogin) {
+        long expiresAt;
+        try {
+            Date expiresDate = JWT.decode(jwtToken).getExpiresAt();
+            expiresAt = expiresDate != null ? expiresDate.getTime() : Long.MAX_VALUE;
+        } catch (JWTDecodeException e) {
+            Debug.logWarning(e, "Could not read the expiry of a verified JWT token, it is not cached", MODULE);
+            return;
+        }
+        long timeToLive = Math.min(expiresAt - System.currentTimeMillis(), MAX_TIME_TO_LIVE > 0 ? MAX_TIME_TO_LIVE : Long.MAX_VALUE);
+        if (timeToLive <= 0) {
+            return;
+        }
+        AUTH_CACHE.put(hash(jwtToken), new AuthEntry(claims, userLogin, expiresAt), timeToLive);
+    }
+
+    /**
+     * Drops the tokens of a UserLogin whose cached value is stale.
+     * @param userLoginId the UserLogin id
+     * @param stale tells whether the cached UserLogin of a token is stale
+     * @return the number of tokens dropped
+     */
+    public static int removeUserLogin(String userLoginId, Predicate<GenericValue> stale) {
+        int removed = 0;
+        for (String key : USER_LOGIN_KEYS.getKeys(userLoginId)) {
+            AuthEntry entry = AUTH_CACHE.get(key);
+            if (entry != null && stale.test(entry.userLogin) && AUTH_CACHE.remove(key) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public static void clearCache() {
+        AUTH_CACHE.clear();
+    }
+
+    private static String hash(String jwtToken) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(jwtToken.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The claims and UserLogin of a verified token.
+     */
+    public static final class AuthEntry {
+        private final Map<String, Object> claims;
+        private final GenericValue userLogin;
+        private final long expiresAt;
+
+        private AuthEntry(Map<String, Object> claims, GenericValue userLogin, long expiresAt) {
+            this.claims = Collections.unmodifiableMap(new HashMap<>(claims));
+            this.userLogin = userLogin;
+            this.expiresAt = expiresAt;
+        }
+
+        public Map<String, Object> getClaims() {
+            return claims;
+        }
+
+        /**
+         * Gets a copy of the UserLogin of the token, which the request is free to change.
+         * @return the UserLogin
+         */
+        public GenericValue getUserLogin() {
+            return (GenericValue) userLogin.clone();
+        }
+
+        public String getUserLoginId() {
+            return userLogin.getString("userLoginId");
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
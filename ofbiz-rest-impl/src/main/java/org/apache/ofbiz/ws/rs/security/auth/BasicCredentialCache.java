@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.security.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.function.Predicate;
+
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.GenericValue;
+
+/**
+ * Caches the Basic credentials successfully checked by the <code>userLogin</code> service, see
+ * <code>rest.auth.basic.cache.*</code>, so that a client sending the same credentials again within
+ * <code>rest.auth.basic.cache.expireTime</code> ms is not charged the password hashing and login history of the
+ * service.
+ * <p>
+ * Only a salted SHA-256 hash of the password is kept, with a random salt per entry, under the user name. A password
+ * that does not match the cached hash is checked by the service again, so the failed logins are still counted. The
+ * entries of a UserLogin are dropped with its API tokens, see {@link ApiAuthCache}.
+ */
+public final class BasicCredentialCache {
+
+    private static final String REST_CONFIG_NAME = "rest.properties";
+    private static final int SALT_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final UtilCache<String, CredentialEntry> CREDENTIAL_CACHE = UtilCache.createUtilCache("rest.BasicCredentialCache",
+            UtilProperties.getPropertyAsInteger(REST_CONFIG_NAME, "rest.auth.basic.cache.maxSize", 1000), 0,
+            UtilProperties.getPropertyAsLong(REST_CONFIG_NAME, "rest.auth.basic.cache.expireTime", 300000L), false);
+    private static final UserLoginKeyIndex<CredentialEntry> USER_LOGIN_KEYS = new UserLoginKeyIndex<>(CREDENTIAL_CACHE,
+            entry -> entry.userLogin.getString("userLoginId"));
+
+    private BasicCredentialCache() { }
+
+    public static boolean isEnabled() {
+        return UtilProperties.getPropertyAsBoolean(REST_CONFIG_NAME, "rest.auth.basic.cache.enabled", true);
+    }
+
+    /**
+     * Checks credentials against the cache.
+     * @param userName the user name
+     * @param password the password
+     * @return a copy of the UserLogin of the credentials, or <code>null</code> if they must be checked by the service
+     */
+    public static GenericValue verify(String userName, String password) {
+        CredentialEntry entry = CREDENTIAL_CACHE.get(userName);
+        if (entry == null || !MessageDigest.isEqual(entry.passwordHash, hash(entry.salt, password))) {
+            return null;
+        }
+        return (GenericValue) entry.userLogin.clone();
+    }
+
+    /**
+     * Caches credentials after the service accepted them.
+     * @param userName the user name
+     * @param password the password
+     * @param userLogin the UserLogin returned by the service
+     */
+    public static void put(String userName, String password, GenericValue userLogin) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        CREDENTIAL_CACHE.put(userName, new CredentialEntry(salt, hash(salt, password), (GenericValue) userLogin.clone()));
+    }
+
+    /**
+     * Drops the credentials of a UserLogin whose cached value is stale.
+     * @param userLoginId the UserLogin id
+     * @param stale tells whether the cached UserLogin of an entry is stale
+     * @return the number of entries dropped
+     */
+    public static int removeUserLogin(String userLoginId, Predicate<GenericValue> stale) {
+        int removed = 0;
+        for (String key : USER_LOGIN_KEYS.getKeys(userLoginId)) {
+            CredentialEntry entry = CREDENTIAL_CACHE.get(key);
+            if (entry != null && stale.test(entry.userLogin) && CREDENTIAL_CACHE.remove(key) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public static void clearCache() {
+        CREDENTIAL_CACHE.clear();
+    }
+
+    private static byte[] hash(byte[] salt, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class CredentialEntry {
+        private final byte[] salt;
+        private final byte[] passwordHash;
+        private final GenericValue userLogin;
+
+        private CredentialEntry(byte[] salt, byte[] passwordHash, GenericValue userLogin) {
+            this.salt = salt;
+            this.passwordHash = passwordHash;
+            this.userLogin = userLogin;
+        }
+    }
+}
@@ -44,7 +44,10 @@ import org.apache.ofbiz.ws.rs.common.AuthenticationScheme;
 import org.apache.ofbiz.ws.rs.security.AuthToken;
 import org.apache.ofbiz.ws.rs.util.RestApiUtil;
 
-
+/**
+ * Checks the Basic credentials of the token requests, see {@link BasicCredentialCache} for the credentials checked
+ * again within a short delay.
+ */
 @AuthToken
 @Provider
 public class HttpBasicAuthFilter implements ContainerRequestFilter {
@@ -108,6 +111,14 @@ public class HttpBasicAuthFilter implements ContainerRequestFilter {
     }
 
     private void authenticate(String userName, String password) throws ForbiddenException {
+        boolean useCache = BasicCredentialCache.isEnabled();
+        if (useCache) {
+            GenericValue userLogin = BasicCredentialCache.verify(userName, password);
+            if (userLogin != null) {
+                httpRequest.setAttribute("userLogin", userLogin);
+                return;
+            }
+        }
         Map<String, Object> result = null;
         LocalDispatcher dispatcher = (LocalDispatcher) servletContext.getAttribute("dispatcher");
         try {
@@ -123,6 +134,9 @@ public class HttpBasicAuthFilter implements ContainerRequestFilter {
         }
 
         GenericValue userLogin = (GenericValue) result.get("userLogin");
+        if (useCache) {
+            BasicCredentialCache.put(userName, password, userLogin);
+        }
         httpRequest.setAttribute("userLogin", userLogin);
     }
 
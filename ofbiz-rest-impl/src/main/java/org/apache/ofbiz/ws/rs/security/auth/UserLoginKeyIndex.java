@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.security.auth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.apache.ofbiz.base.util.cache.CacheListener;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+
+/**
+ * The keys of the entries of a cache by the UserLogin they were cached for, so that the entries of a UserLogin are
+ * found without going through the whole cache.
+ * <p>
+ * The index follows the additions and removals of the cache. The least recently used entries are evicted without
+ * notice, so the keys whose entry is gone are also dropped when the keys of a UserLogin are read, and each time the
+ * number of keys of a UserLogin doubles.
+ */
+final class UserLoginKeyIndex<V> implements CacheListener<String, V> {
+
+    private static final int MIN_PRUNED_SIZE = 16;
+
+    private final UtilCache<String, V> cache;
+    private final Function<V, String> userLoginIdOf;
+    private final Map<String, Set<String>> keysByUserLogin = new ConcurrentHashMap<>();
+
+    UserLoginKeyIndex(UtilCache<String, V> cache, Function<V, String> userLoginIdOf) {
+        this.cache = cache;
+        this.userLoginIdOf = userLoginIdOf;
+        cache.addListener(this);
+    }
+
+    /**
+     * @param userLoginId the UserLogin id
+     * @return the keys of the entries of the UserLogin
+     */
+    List<String> getKeys(String userLoginId) {
+        Set<String> keys = keysByUserLogin.get(userLoginId);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        keys.removeIf(key -> !cache.containsKey(key));
+        return new ArrayList<>(keys);
+    }
+
+    @Override
+    public void noteKeyAddition(UtilCache<String, V> cache, String key, V newValue) {
+        add(key, newValue);
+    }
+
+    @Override
+    public void noteKeyRemoval(UtilCache<String, V> cache, String key, V oldValue) {
+        remove(key, oldValue);
+    }
+
+    @Override
+    public void noteKeyUpdate(UtilCache<String, V> cache, String key, V newValue, V oldValue) {
+        remove(key, oldValue);
+        add(key, newValue);
+    }
+
+    private void add(String key, V value) {
+        if (value == null) {
+            return;
+        }
+        keysByUserLogin.compute(userLoginIdOf.apply(value), (userLoginId, keys) -> {
+            Set<String> userLoginKeys = keys != null ? keys : ConcurrentHashMap.newKeySet();
+            userLoginKeys.add(key);
+            int size = userLoginKeys.size();
+            if (size >= MIN_PRUNED_SIZE && (size & (size - 1)) == 0) {
+                userLoginKeys.removeIf(userLoginKey -> !cache.containsKey(userLoginKey));
+            }
+            return userLoginKeys;
+        });
+    }
+
+    private void remove(String key, V value) {
+        if (value == null) {
+            return;
+        }
+        keysByUserLogin.computeIfPresent(userLoginIdOf.apply(value), (userLoginId, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+}
@@ -19,15 +19,29 @@
 package org.apache.ofbiz.ws.rs.services;
 
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
 
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionFactoryLoader;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.entity.util.EntityUtilProperties;
 import org.apache.ofbiz.service.DispatchContext;
 import org.apache.ofbiz.service.ServiceUtil;
 import org.apache.ofbiz.webapp.control.JWTManager;
+import org.apache.ofbiz.ws.rs.security.auth.ApiAuthCache;
+import org.apache.ofbiz.ws.rs.security.auth.BasicCredentialCache;
 
 public final class RestServices {
 
@@ -47,4 +61,73 @@ public final class RestServices {
         success.put("token_type", "Bearer");
         return success;
     }
+
+    /**
+     * Drops the cached API tokens and Basic credentials of a UserLogin which was removed, disabled or whose password changed, called by an
+     * entity ECA on every change of a UserLogin. The UserLogin is read in the transaction of the change, and the entries are dropped once it
+     * is completed: a request verified meanwhile still reads the previous UserLogin, dropping the entries before would let it cache them again.
+     */
+    public static Map<String, Object> clearApiAuthCache(DispatchContext ctx, Map<String, Object> context) {
+        String userLoginId = (String) context.get("userLoginId");
+        if (!ApiAuthCache.isEnabled() && !BasicCredentialCache.isEnabled()) {
+            return ServiceUtil.returnSuccess();
+        }
+        StaleUserLogin stale;
+        try {
+            stale = new StaleUserLogin(EntityQuery.use(ctx.getDelegator()).from("UserLogin").where("userLoginId", userLoginId).queryOne());
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+            stale = new StaleUserLogin(null);
+        }
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                Transaction transaction = TransactionFactoryLoader.getInstance().getTransactionManager().getTransaction();
+                if (transaction != null) {
+                    StaleUserLogin afterCommitStale = stale;
+                    transaction.registerSynchronization(new Synchronization() {
+                        @Override
+                        public void beforeCompletion() {
+                        }
+
+                        @Override
+                        public void afterCompletion(int status) {
+                            removeUserLogin(userLoginId, afterCommitStale);
+                        }
+                    });
+                    return ServiceUtil.returnSuccess();
+                }
+            }
+        } catch (GenericTransactionException | SystemException | RollbackException e) {
+            Debug.logWarning(e, "Could not wait for the transaction to commit, removing the cached API tokens now", MODULE);
+        }
+        removeUserLogin(userLoginId, stale);
+        return ServiceUtil.returnSuccess();
+    }
+
+    private static void removeUserLogin(String userLoginId, Predicate<GenericValue> stale) {
+        int removed = ApiAuthCache.removeUserLogin(userLoginId, stale);
+        removed += BasicCredentialCache.removeUserLogin(userLoginId, stale);
+        if (removed > 0) {
+            Debug.logInfo("Removed " + removed + " cached API tokens and credentials of userLogin: " + userLoginId, MODULE);
+        }
+    }
+
+    /**
+     * Tells whether a cached UserLogin was removed, disabled or its password changed.
+     */
+    private static final class StaleUserLogin implements Predicate<GenericValue> {
+        private final GenericValue currentUserLogin;
+
+        private StaleUserLogin(GenericValue currentUserLogin) {
+            this.currentUserLogin = currentUserLogin;
+        }
+
+        @Override
+        public boolean test(GenericValue cachedUserLogin) {
+            return currentUserLogin == null
+                    || !Objects.equals(cachedUserLogin.get("enabled"), currentUserLogin.get("enabled"))
+                    || !Objects.equals(cachedUserLogin.get("disabledDateTime"), currentUserLogin.get("disabledDateTime"))
+                    || !Objects.equals(cachedUserLogin.get("currentPassword"), currentUserLogin.get("currentPassword"));
+        }
+    }
 }
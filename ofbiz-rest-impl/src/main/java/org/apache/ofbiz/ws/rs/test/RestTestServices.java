@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.test;
+
+import java.util.Map;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.ServiceUtil;
+
+/**
+ * Services called through the API by {@link RestTests}.
+ */
+public final class RestTestServices {
+
+    private static final String MODULE = RestTestServices.class.getName();
+
+    private RestTestServices() { }
+
+    public static Map<String, Object> echo(DispatchContext ctx, Map<String, Object> context) {
+        Map<String, Object> success = ServiceUtil.returnSuccess();
+        success.put("echo", context.get("message"));
+        return success;
+    }
+
+    public static Map<String, Object> storePreference(DispatchContext ctx, Map<String, Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        String userPrefValue = (String) context.get("userPrefValue");
+        if ("fail".equals(userPrefValue)) {
+            return ServiceUtil.returnError("Preference " + context.get("userPrefTypeId") + " not stored");
+        }
+        try {
+            delegator.createOrStore(delegator.makeValue("UserPreference", UtilMisc.toMap("userLoginId", "system",
+                    "userPrefTypeId", context.get("userPrefTypeId"), "userPrefValue", userPrefValue)));
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+}
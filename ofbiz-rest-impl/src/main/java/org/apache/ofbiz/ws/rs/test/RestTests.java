@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.ws.rs.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.ofbiz.base.util.UtilGenerics;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.testtools.OFBizTestCase;
+import org.apache.ofbiz.webapp.control.JWTManager;
+import org.apache.ofbiz.ws.rs.AsyncServiceProcessor;
+import org.apache.ofbiz.ws.rs.AsyncServiceProcessor.ServiceJob;
+import org.apache.ofbiz.ws.rs.ServiceBatchProcessor;
+import org.apache.ofbiz.ws.rs.ServiceRequestProcessor;
+import org.apache.ofbiz.ws.rs.core.ResponseStatus;
+import org.apache.ofbiz.ws.rs.core.ServiceRoute;
+import org.apache.ofbiz.ws.rs.core.ServiceRouteTable;
+import org.apache.ofbiz.ws.rs.response.Success;
+import org.apache.ofbiz.ws.rs.security.auth.ApiAuthCache;
+import org.apache.ofbiz.ws.rs.security.auth.BasicCredentialCache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class RestTests extends OFBizTestCase {
+
+    private static final String ECHO_SERVICE = "restTestEcho";
+    private static final String NOT_EXPORTED_SERVICE = "restTestNotExported";
+    private static final String STORE_PREFERENCE_SERVICE = "restTestStorePreference";
+    private static final String TEST_USER_LOGIN_ID = "RESTTEST_USER";
+    private static final List<String> TEST_PREF_TYPE_IDS = UtilMisc.toList("RESTTEST_PREF1", "RESTTEST_PREF2", "RESTTEST_PREF3");
+    private static final long JOB_TIMEOUT = 30000L;
+    private static final int FAILED_DEPENDENCY = ResponseStatus.Custom.FAILED_DEPENDENCY.getStatusCode();
+
+    public RestTests(String name) {
+        super(name);
+    }
+
+    /**
+     * Test that the route of a service is resolved from its definition and follows the service reloads.
+     * @throws Exception the exception
+     */
+    public void testServiceRouteResolution() throws Exception {
+        ServiceRouteTable routeTable = new ServiceRouteTable(getDispatcher().getDispatchContext());
+        ServiceRoute route = routeTable.getRoute(ECHO_SERVICE);
+        assertNotNull("Route not resolved", route);
+        assertSame("Route resolved again", route, routeTable.getRoute(ECHO_SERVICE));
+        assertEquals("Wrong verb", "GET", route.getVerb());
+        assertTrue("Route not allowing its verb", route.allows("get"));
+        assertFalse("Route allowing another verb", route.allows("POST"));
+        assertTrue("Route not exportable", route.isExportable());
+        assertTrue("IN parameters not required", route.isInParamsRequired());
+        assertEquals("Wrong OUT parameters", Collections.singletonList("echo"), route.getOutParamNames());
+        assertSame("Exported route not callable", route, ServiceRequestProcessor.checkExported(route, ECHO_SERVICE));
+
+        assertNull("Route of a missing service", routeTable.getRoute(ECHO_SERVICE + "Missing"));
+        try {
+            ServiceRequestProcessor.checkExported(routeTable.getRoute(NOT_EXPORTED_SERVICE), NOT_EXPORTED_SERVICE);
+            fail("Service not exported is callable");
+        } catch (NotFoundException e) {
+            // expected
+        }
+
+        // Reloading the service definitions drops the resolved routes
+        UtilCache.clearCache("service.ModelServiceMapByModel");
+        ServiceRoute reloadedRoute = routeTable.getRoute(ECHO_SERVICE);
+        assertNotNull("Route not resolved after the reload", reloadedRoute);
+        assertNotSame("Route not resolved again after the reload", route, reloadedRoute);
+        assertEquals("Wrong verb after the reload", "GET", reloadedRoute.getVerb());
+    }
+
+    /**
+     * Test that cached credentials are hit until their UserLogin is disabled or its password changes.
+     * @throws Exception the exception
+     */
+    public void testCredentialCacheInvalidation() throws Exception {
+        Delegator delegator = getDelegator();
+        GenericValue userLogin = delegator.makeValue("UserLogin", UtilMisc.toMap("userLoginId", TEST_USER_LOGIN_ID,
+                "currentPassword", "{SHA}test", "enabled", "Y"));
+        delegator.createOrStore(userLogin);
+        try {
+            String jwtToken = JWTManager.createJwt(delegator, UtilMisc.toMap("userLoginId", TEST_USER_LOGIN_ID));
+            ApiAuthCache.put(jwtToken, UtilMisc.toMap("userLoginId", TEST_USER_LOGIN_ID), (GenericValue) userLogin.clone());
+            BasicCredentialCache.put(TEST_USER_LOGIN_ID, "password", userLogin);
+            assertNotNull("Token not cached", ApiAuthCache.get(jwtToken));
+            assertEquals("Wrong cached UserLogin", TEST_USER_LOGIN_ID, ApiAuthCache.get(jwtToken).getUserLoginId());
+            assertNotNull("Credentials not cached", BasicCredentialCache.verify(TEST_USER_LOGIN_ID, "password"));
+            assertNull("Wrong password accepted", BasicCredentialCache.verify(TEST_USER_LOGIN_ID, "wrong"));
+
+            // A login stores the UserLogin without changing its password
+            userLogin.set("lastLocale", "fr");
+            userLogin.store();
+            assertNotNull("Token dropped by a login", ApiAuthCache.get(jwtToken));
+            assertNotNull("Credentials dropped by a login", BasicCredentialCache.verify(TEST_USER_LOGIN_ID, "password"));
+
+            userLogin.set("currentPassword", "{SHA}changed");
+            userLogin.store();
+            assertNull("Token kept after a password change", ApiAuthCache.get(jwtToken));
+            assertNull("Credentials kept after a password change", BasicCredentialCache.verify(TEST_USER_LOGIN_ID, "password"));
+
+            BasicCredentialCache.put(TEST_USER_LOGIN_ID, "password", userLogin);
+            userLogin.set("enabled", "N");
+            userLogin.store();
+            assertNull("Credentials kept after the UserLogin was disabled", BasicCredentialCache.verify(TEST_USER_LOGIN_ID, "password"));
+        } finally {
+            delegator.removeByAnd("UserLogin", UtilMisc.toMap("userLoginId", TEST_USER_LOGIN_ID));
+        }
+    }
+
+    /**
+     * Test that a failed call of a transactional batch rolls back the calls before it and skips the calls after it.
+     * @throws Exception the exception
+     */
+    public void testBatchTransactionRollback() throws Exception {
+        List<Object> requests = new ArrayList<>();
+        requests.add(storePreferenceRequest(TEST_PREF_TYPE_IDS.get(0), "stored"));
+        requests.add(storePreferenceRequest(TEST_PREF_TYPE_IDS.get(1), "fail"));
+        requests.add(storePreferenceRequest(TEST_PREF_TYPE_IDS.get(2), "stored"));
+        try {
+            List<Map<String, Object>> results = runBatch(UtilMisc.toMap("requests", requests, "transaction", Boolean.TRUE));
+            assertEquals("Wrong result count", 3, results.size());
+            assertEquals("Call before the failure not rolled back", FAILED_DEPENDENCY, results.get(0).get("statusCode"));
+            int failedStatus = (Integer) results.get(1).get("statusCode");
+            assertTrue("Failed call not reported", failedStatus >= 400 && failedStatus != FAILED_DEPENDENCY);
+            assertEquals("Call after the failure not skipped", FAILED_DEPENDENCY, results.get(2).get("statusCode"));
+            assertEquals("Preferences stored by a rolled back batch", 0, EntityQuery.use(getDelegator()).from("UserPreference")
+                    .where(EntityCondition.makeCondition("userPrefTypeId", EntityOperator.IN, TEST_PREF_TYPE_IDS)).queryCount());
+
+            requests.remove(1);
+            results = runBatch(UtilMisc.toMap("requests", requests, "transaction", Boolean.TRUE));
+            assertEquals("Call of a successful batch failed", 200, results.get(0).get("statusCode"));
+            assertEquals("Call of a successful batch failed", 200, results.get(1).get("statusCode"));
+            assertEquals("Preferences of a successful batch not stored", 2, EntityQuery.use(getDelegator()).from("UserPreference")
+                    .where(EntityCondition.makeCondition("userPrefTypeId", EntityOperator.IN, TEST_PREF_TYPE_IDS)).queryCount());
+        } finally {
+            getDelegator().removeByCondition("UserPreference",
+                    EntityCondition.makeCondition("userPrefTypeId", EntityOperator.IN, TEST_PREF_TYPE_IDS));
+        }
+    }
+
+    /**
+     * Test that each call of a batch must use the HTTP method its service is exported on.
+     * @throws Exception the exception
+     */
+    public void testBatchMethod() throws Exception {
+        Map<String, Object> postRequest = UtilMisc.toMap("service", ECHO_SERVICE, "inParams", UtilMisc.toMap("message", "hello"));
+        Map<String, Object> getRequest = UtilMisc.toMap("service", ECHO_SERVICE, "method", "get", "inParams", UtilMisc.toMap("message", "hello"));
+        List<Map<String, Object>> results = runBatch(UtilMisc.toMap("requests", UtilMisc.toList(postRequest, getRequest)));
+        assertEquals("Call with another method run", 405, results.get(0).get("statusCode"));
+        assertEquals("Call with the exported method failed", 200, results.get(1).get("statusCode"));
+    }
+
+    /**
+     * Test that a job is polled by the UserLogin which submitted it until it is done, then reported as expired.
+     * @throws Exception the exception
+     */
+    public void testAsyncJobPolling() throws Exception {
+        ServiceRoute route = new ServiceRouteTable(getDispatcher().getDispatchContext()).getRoute(ECHO_SERVICE);
+        GenericValue userLogin = EntityQuery.use(getDelegator()).from("UserLogin").where("userLoginId", "system").queryOne();
+        GenericValue otherUserLogin = getDelegator().makeValue("UserLogin", UtilMisc.toMap("userLoginId", TEST_USER_LOGIN_ID));
+        Response response = AsyncServiceProcessor.submit(route, UtilMisc.toMap("message", "hello"), userLogin, getDispatcher(), null,
+                Locale.getDefault());
+        assertEquals("Job not accepted", Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+        Map<String, Object> submittedJob = UtilGenerics.cast(((Success) response.getEntity()).getData());
+        String jobId = (String) submittedJob.get("jobId");
+        assertNotNull("No job id", jobId);
+
+        ServiceJob job = AsyncServiceProcessor.getJob(jobId, userLogin);
+        assertNotNull("Job not found", job);
+        assertNull("Job read by another UserLogin", AsyncServiceProcessor.getJob(jobId, otherUserLogin));
+        long timeout = System.currentTimeMillis() + JOB_TIMEOUT;
+        while (job.isPending() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertFalse("Job not done", job.isPending());
+        Map<String, Object> doneJob = job.toMap();
+        assertEquals("Job failed", "COMPLETED", doneJob.get("status"));
+        assertEquals("Wrong job result status", 200, doneJob.get("resultStatusCode"));
+        assertSame("Done job not kept", job, AsyncServiceProcessor.getJob(jobId, userLogin));
+        assertFalse("Kept job expired", AsyncServiceProcessor.isExpired(jobId, userLogin));
+
+        UtilCache.clearCache("rest.AsyncServiceJobs");
+        assertNull("Expired job found", AsyncServiceProcessor.getJob(jobId, userLogin));
+        assertTrue("Expired job not told apart", AsyncServiceProcessor.isExpired(jobId, userLogin));
+        assertFalse("Expired job of another UserLogin told apart", AsyncServiceProcessor.isExpired(jobId, otherUserLogin));
+        assertFalse("Unknown job expired", AsyncServiceProcessor.isExpired(jobId + "0", userLogin));
+    }
+
+    private static Map<String, Object> storePreferenceRequest(String userPrefTypeId, String userPrefValue) {
+        return UtilMisc.toMap("service", STORE_PREFERENCE_SERVICE, "inParams",
+                UtilMisc.toMap("userPrefTypeId", userPrefTypeId, "userPrefValue", userPrefValue));
+    }
+
+    /**
+     * Runs a batch as the batch endpoint would and reads the results it streams.
+     */
+    private List<Map<String, Object>> runBatch(Map<String, Object> batchRequest) throws Exception {
+        ServiceRouteTable routeTable = new ServiceRouteTable(getDispatcher().getDispatchContext());
+        GenericValue userLogin = EntityQuery.use(getDelegator()).from("UserLogin").where("userLoginId", "system").queryOne();
+        Response response = new ServiceBatchProcessor(getDispatcher(), userLogin, Locale.getDefault()).process(batchRequest, null,
+                (serviceName, method) -> ServiceRequestProcessor.checkAllowed(routeTable.getRoute(serviceName), serviceName, method));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        Map<String, Object> body = UtilGenerics.cast(new ObjectMapper().readValue(output.toByteArray(), Map.class));
+        return UtilGenerics.cast(body.get("results"));
+    }
+}
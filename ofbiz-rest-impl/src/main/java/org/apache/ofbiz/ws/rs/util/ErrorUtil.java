@@ -29,11 +29,18 @@ import java.util.Map;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericEntityNotFoundException;
+import org.apache.ofbiz.entity.GenericNoSuchEntityException;
+import org.apache.ofbiz.service.GenericServiceException;
 import org.apache.ofbiz.service.ModelService;
+import org.apache.ofbiz.service.ServiceValidationException;
 import org.apache.ofbiz.ws.rs.core.ResponseStatus;
 import org.apache.ofbiz.ws.rs.response.Error;
+import org.codehaus.groovy.runtime.InvokerInvocationException;
 
 public final class ErrorUtil {
 
@@ -67,6 +74,59 @@ public final class ErrorUtil {
                 .entity(error).build();
     }
 
+    /**
+     * Builds the error response of a service which could not be called or threw an exception.
+     * @param service the service name
+     * @param gse the exception
+     * @param locale the locale of the messages
+     * @return the error response
+     */
+    public static Response buildErrorFromServiceException(String service, GenericServiceException gse, Locale locale) {
+        Response.ResponseBuilder builder = null;
+        Throwable actualCause = gse.getCause();
+        if (actualCause == null) {
+            actualCause = gse;
+        } else if (actualCause instanceof InvokerInvocationException) {
+            actualCause = actualCause.getCause();
+        }
+        if (actualCause instanceof ServiceValidationException) {
+            ServiceValidationException validationException = (ServiceValidationException) actualCause;
+            Error error = new Error().type(actualCause.getClass().getSimpleName())
+                    .code(Response.Status.BAD_REQUEST.getStatusCode())
+                    .description(Response.Status.BAD_REQUEST.getReasonPhrase())
+                    .message(getErrorMessage(service, "GenericServiceValidationErrorMessage", locale))
+                    .errorDesc((validationException.getMessage()))
+                    .additionalErrors(validationException.getMessageList());
+            builder = Response.status(Response.Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON).entity(error);
+        } else if (actualCause instanceof GenericNoSuchEntityException
+                || actualCause instanceof GenericEntityNotFoundException) {
+            Error error = new Error().type(actualCause.getClass().getSimpleName())
+                    .code(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode())
+                    .description(Response.Status.INTERNAL_SERVER_ERROR.getReasonPhrase())
+                    .message(getErrorMessage(service, "NoSuchEntityDefaultMessage", locale))
+                    .errorDesc(ExceptionUtils.getRootCauseMessage(gse));
+            builder = Response.status(Response.Status.INTERNAL_SERVER_ERROR).type(MediaType.APPLICATION_JSON)
+                    .entity(error);
+        } else if (actualCause instanceof GenericEntityException) {
+            Error error = new Error().type(actualCause.getClass().getSimpleName())
+                    .code(ResponseStatus.Custom.UNPROCESSABLE_ENTITY.getStatusCode())
+                    .description(ResponseStatus.Custom.UNPROCESSABLE_ENTITY.getReasonPhrase())
+                    .message(getErrorMessage(service, "GenericServiceExecutionGenericEntityOperationErrorMessage", locale))
+                    .errorDesc(ExceptionUtils.getRootCauseMessage(gse));
+            builder = Response.status(ResponseStatus.Custom.UNPROCESSABLE_ENTITY).type(MediaType.APPLICATION_JSON)
+                    .entity(error);
+        } else {
+            Error error = new Error().type(actualCause.getClass().getSimpleName())
+                    .code(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode())
+                    .description(Response.Status.INTERNAL_SERVER_ERROR.getReasonPhrase())
+                    .message(getErrorMessage(service, "GenericServiceExecutionGenericExceptionErrorMessage", locale))
+                    .errorDesc(ExceptionUtils.getRootCauseMessage(gse));
+            builder = Response.status(Response.Status.INTERNAL_SERVER_ERROR).type(MediaType.APPLICATION_JSON)
+                    .entity(error);
+        }
+        return builder.build();
+    }
+
     public static String getErrorMessage(String serviceName, String errorKey, Locale locale) {
         String error = UtilProperties.getMessage(DEFAULT_MSG_UI_LABEL_RESOURCE, errorKey, locale);
         error = error.replace("${service}", serviceName);
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionFactoryLoader;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityListIterator;
+import org.apache.ofbiz.entity.util.EntityQuery;
+
+/**
+ * The product category tree loaded in memory, to resolve the trails and catalogs of the categories of the Solr
+ * documents without querying the rollups and catalog assignments for each product.
+ * <p>
+ * The graph is loaded with one query on <code>ProductCategoryRollup</code> and one on <code>ProdCatalogCategory</code>,
+ * and the trails of each category are resolved once. It is cached until the next from/thru date of a rollup, and
+ * the cache is cleared by ECAs on both entities, once their transaction is committed, and at the start of each index
+ * rebuild.
+ */
+public final class CategoryGraph {
+
+    private static final String MODULE = CategoryGraph.class.getName();
+    private static final UtilCache<String, CategoryGraph> CATEGORY_GRAPH_CACHE = UtilCache.createUtilCache("solr.CategoryGraph",
+            0, 0, 0, false);
+
+    private final Map<String, List<String>> parentIdsByCategory;
+    private final Map<String, List<String>> catalogIdsByCategory;
+    private final Timestamp nextChange;
+    private final Map<String, List<List<String>>> trailsByCategory = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> trailPathsByCategory = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> trailCatalogIdsByCategory = new ConcurrentHashMap<>();
+
+    private CategoryGraph(Map<String, List<String>> parentIdsByCategory, Map<String, List<String>> catalogIdsByCategory,
+            Timestamp nextChange) {
+        this.parentIdsByCategory = parentIdsByCategory;
+        this.catalogIdsByCategory = catalogIdsByCategory;
+        this.nextChange = nextChange;
+    }
+
+    /**
+     * Gets the cached graph, loading it if it is not cached or a rollup became effective or expired since it was loaded.
+     * @param delegator the delegator
+     * @return the category graph
+     * @throws GenericEntityException if the graph could not be loaded
+     */
+    public static CategoryGraph getInstance(Delegator delegator) throws GenericEntityException {
+        CategoryGraph categoryGraph = CATEGORY_GRAPH_CACHE.get(delegator.getDelegatorName());
+        if (categoryGraph == null || (categoryGraph.nextChange != null && !UtilDateTime.nowTimestamp().before(categoryGraph.nextChange))) {
+            categoryGraph = reload(delegator);
+        }
+        return categoryGraph;
+    }
+
+    /**
+     * Loads the graph from the database and caches it.
+     * @param delegator the delegator
+     * @return the loaded category graph
+     * @throws GenericEntityException if the graph could not be loaded
+     */
+    public static CategoryGraph reload(Delegator delegator) throws GenericEntityException {
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+        Timestamp nextChange = null;
+        Map<String, Set<String>> parentIds = new HashMap<>();
+        try (EntityListIterator rollups = EntityQuery.use(delegator).select("productCategoryId", "parentProductCategoryId", "fromDate", "thruDate")
+                .from("ProductCategoryRollup").orderBy("-fromDate").queryIterator()) {
+            GenericValue rollup;
+            while ((rollup = rollups.next()) != null) {
+                Timestamp fromDate = rollup.getTimestamp("fromDate");
+                Timestamp thruDate = rollup.getTimestamp("thruDate");
+                if (fromDate != null && fromDate.after(nowTimestamp)) {
+                    nextChange = earliest(nextChange, fromDate);
+                } else if (thruDate == null || thruDate.after(nowTimestamp)) {
+                    nextChange = earliest(nextChange, thruDate);
+                    parentIds.computeIfAbsent(rollup.getString("productCategoryId"), id -> new LinkedHashSet<>())
+                            .add(rollup.getString("parentProductCategoryId"));
+                }
+            }
+        }
+        Map<String, Set<String>> catalogIds = new HashMap<>();
+        try (EntityListIterator prodCatalogCategories = EntityQuery.use(delegator).select("productCategoryId", "prodCatalogId")
+                .from("ProdCatalogCategory").queryIterator()) {
+            GenericValue prodCatalogCategory;
+            while ((prodCatalogCategory = prodCatalogCategories.next()) != null) {
+                catalogIds.computeIfAbsent(prodCatalogCategory.getString("productCategoryId"), id -> new LinkedHashSet<>())
+                        .add(prodCatalogCategory.getString("prodCatalogId"));
+            }
+        }
+        CategoryGraph categoryGraph = new CategoryGraph(toLists(parentIds), toLists(catalogIds), nextChange);
+        CATEGORY_GRAPH_CACHE.put(delegator.getDelegatorName(), categoryGraph);
+        return categoryGraph;
+    }
+
+    public static void clearCache() {
+        CATEGORY_GRAPH_CACHE.clear();
+    }
+
+    /**
+     * Clears the cache once the current transaction is completed, or now if there is none: a graph loaded by another
+     * thread before the commit still holds the previous rollups, clearing the cache before would let it cache them again.
+     */
+    public static void clearCacheAfterCommit() {
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                Transaction transaction = TransactionFactoryLoader.getInstance().getTransactionManager().getTransaction();
+                if (transaction != null) {
+                    transaction.registerSynchronization(new Synchronization() {
+                        @Override
+                        public void beforeCompletion() {
+                        }
+
+                        @Override
+                        public void afterCompletion(int status) {
+                            clearCache();
+                        }
+                    });
+                    return;
+                }
+            }
+        } catch (GenericTransactionException | SystemException | RollbackException e) {
+            Debug.logWarning(e, "Solr: could not wait for the transaction to commit, clearing the category graph now", MODULE);
+        }
+        clearCache();
+    }
+
+    /**
+     * Gets the trails of a category, each one listing the categories from a top category down to the category.
+     * @param productCategoryId the category id
+     * @return the trails, the category alone if it has no parent
+     */
+    public List<List<String>> getTrails(String productCategoryId) {
+        List<List<String>> trails = trailsByCategory.get(productCategoryId);
+        if (trails == null) {
+            trails = Collections.unmodifiableList(resolveTrails(productCategoryId, new HashSet<>()));
+            trailsByCategory.put(productCategoryId, trails);
+        }
+        return trails;
+    }
+
+    /**
+     * Gets the trail a category is searched by, the first of its trails: its paths are always among the
+     * {@link #getTrailPaths(String) indexed paths} of the category, even when it has several parents.
+     * @param productCategoryId the category id
+     * @return the trail, the category alone if it has no parent
+     */
+    public List<String> getTrail(String productCategoryId) {
+        return getTrails(productCategoryId).get(0);
+    }
+
+    /**
+     * Gets the depth prefixed paths of every level of the trails of a category, as indexed in the <code>cat</code>
+     * field: for the trail <code>A, B</code> the paths are <code>0/A</code> and <code>1/A/B</code>.
+     * @param productCategoryId the category id
+     * @return the paths, without duplicates
+     */
+    public List<String> getTrailPaths(String productCategoryId) {
+        List<String> trailPaths = trailPathsByCategory.get(productCategoryId);
+        if (trailPaths == null) {
+            Set<String> paths = new LinkedHashSet<>();
+            for (List<String> trail : getTrails(productCategoryId)) {
+                StringBuilder path = new StringBuilder();
+                for (int depth = 0; depth < trail.size(); depth++) {
+                    if (depth > 0) {
+                        path.append('/');
+                    }
+                    path.append(trail.get(depth));
+                    paths.add(depth + "/" + path);
+                }
+            }
+            trailPaths = Collections.unmodifiableList(new ArrayList<>(paths));
+            trailPathsByCategory.put(productCategoryId, trailPaths);
+        }
+        return trailPaths;
+    }
+
+    /**
+     * Gets the catalogs of the top categories of the trails of a category.
+     * @param productCategoryId the category id
+     * @return the catalog ids, without duplicates
+     */
+    public List<String> getTrailCatalogIds(String productCategoryId) {
+        List<String> trailCatalogIds = trailCatalogIdsByCategory.get(productCategoryId);
+        if (trailCatalogIds == null) {
+            Set<String> catalogIds = new LinkedHashSet<>();
+            for (List<String> trail : getTrails(productCategoryId)) {
+                catalogIds.addAll(getCatalogIds(trail.get(0)));
+            }
+            trailCatalogIds = Collections.unmodifiableList(new ArrayList<>(catalogIds));
+            trailCatalogIdsByCategory.put(productCategoryId, trailCatalogIds);
+        }
+        return trailCatalogIds;
+    }
+
+    /**
+     * Gets the catalogs a category is directly assigned to.
+     * @param productCategoryId the category id
+     * @return the catalog ids
+     */
+    public List<String> getCatalogIds(String productCategoryId) {
+        return catalogIdsByCategory.getOrDefault(productCategoryId, Collections.emptyList());
+    }
+
+    /**
+     * Resolves the trails of a category from the trails of its parents, ignoring the parents which are already
+     * descendants of the category in the trail being resolved.
+     */
+    private List<List<String>> resolveTrails(String productCategoryId, Set<String> descendantIds) {
+        List<List<String>> trails = new ArrayList<>();
+        descendantIds.add(productCategoryId);
+        for (String parentProductCategoryId : parentIdsByCategory.getOrDefault(productCategoryId, Collections.emptyList())) {
+            if (descendantIds.contains(parentProductCategoryId)) {
+                continue;
+            }
+            for (List<String> parentTrail : resolveTrails(parentProductCategoryId, descendantIds)) {
+                List<String> trail = new ArrayList<>(parentTrail.size() + 1);
+                trail.addAll(parentTrail);
+                trail.add(productCategoryId);
+                trails.add(trail);
+            }
+        }
+        descendantIds.remove(productCategoryId);
+        if (trails.isEmpty()) {
+            trails.add(Collections.singletonList(productCategoryId));
+        }
+        return trails;
+    }
+
+    private static Timestamp earliest(Timestamp current, Timestamp candidate) {
+        return candidate != null && (current == null || candidate.before(current)) ? candidate : current;
+    }
+
+    private static Map<String, List<String>> toLists(Map<String, Set<String>> sets) {
+        Map<String, List<String>> lists = new HashMap<>();
+        sets.forEach((key, values) -> lists.put(key, Collections.unmodifiableList(new ArrayList<>(values))));
+        return lists;
+    }
+}
@@ -19,19 +19,13 @@
 package org.apache.ofbiz.solr;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilMisc;
-import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.Delegator;
-import org.apache.ofbiz.entity.GenericDelegator;
 import org.apache.ofbiz.entity.GenericEntityException;
-import org.apache.ofbiz.entity.GenericValue;
-import org.apache.ofbiz.entity.condition.EntityCondition;
-import org.apache.ofbiz.entity.util.EntityUtil;
 import org.apache.ofbiz.service.DispatchContext;
 
 /**
@@ -49,106 +43,61 @@ public final class CategoryUtil {
      * This method is a supplement to CatalogWorker methods.
      */
     public static List<String> getCatalogIdsByCategoryId(Delegator delegator, String productCategoryId) {
-        List<String> catalogIds = new ArrayList<>();
-        List<GenericValue> catalogs = null;
         try {
-            EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toMap("productCategoryId", productCategoryId));
-            // catalogs = delegator.findList("ProdCatalog", null, null, UtilMisc.toList("catalogName"), null, false);
-            catalogs = delegator.findList("ProdCatalogCategory", condition, null, null, null, false);
+            return new ArrayList<>(CategoryGraph.getInstance(delegator).getCatalogIds(productCategoryId));
         } catch (GenericEntityException e) {
             Debug.logError(e, "Error looking up all catalogs", MODULE);
+            return new ArrayList<>();
         }
-        if (catalogs != null) {
-            for (GenericValue c : catalogs) {
-                catalogIds.add(c.getString("prodCatalogId"));
-            }
-        }
-        return catalogIds;
     }
-    public static List<List<String>> getCategoryTrail(String productCategoryId, DispatchContext dctx) {
-        GenericDelegator delegator = (GenericDelegator) dctx.getDelegator();
-        List<List<String>> trailElements = new ArrayList<>();
-        String parentProductCategoryId = productCategoryId;
-        while (UtilValidate.isNotEmpty(parentProductCategoryId)) {
-            // find product category rollup
-            try {
-                List<EntityCondition> rolllupConds = new ArrayList<>();
-                rolllupConds.add(EntityCondition.makeCondition("productCategoryId", parentProductCategoryId));
-                rolllupConds.add(EntityUtil.getFilterByDateExpr());
-                List<GenericValue> productCategoryRollups = delegator.findList("ProductCategoryRollup",
-                        EntityCondition.makeCondition(rolllupConds), null, UtilMisc.toList("-fromDate"), null, true);
-                if (UtilValidate.isNotEmpty(productCategoryRollups)) {
-                    List<List<String>> trailElementsAux = new ArrayList<>();
-                    trailElementsAux.addAll(trailElements);
-                    // add only categories that belong to the top category to trail
-                    for (GenericValue productCategoryRollup : productCategoryRollups) {
-                        String trailCategoryId = productCategoryRollup.getString("parentProductCategoryId");
-                        parentProductCategoryId = trailCategoryId;
-                        List<String> trailElement = new ArrayList<>();
-                        if (!trailElements.isEmpty()) {
-                            for (List<String> trailList : trailElementsAux) {
-                                trailElement.add(trailCategoryId);
-                                trailElement.addAll(trailList);
-                                trailElements.remove(trailList);
-                                trailElements.add(trailElement);
-                            }
-                        } else {
-                            trailElement.add(trailCategoryId);
-                            trailElement.add(productCategoryId);
-                            trailElements.add(trailElement);
-                        }
-                    }
-                } else {
-                    parentProductCategoryId = null;
-                }
 
-            } catch (GenericEntityException e) {
-                Debug.logError(e, "Cannot generate trail from product category", MODULE);
-            }
+    /**
+     * Gets the trails of a product category, each one listing the categories from a top category down to the category,
+     * see {@link CategoryGraph#getTrails(String)}.
+     */
+    public static List<List<String>> getCategoryTrail(String productCategoryId, DispatchContext dctx) {
+        try {
+            return CategoryGraph.getInstance(dctx.getDelegator()).getTrails(productCategoryId);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Cannot generate trail from product category", MODULE);
+            List<List<String>> trailElements = new ArrayList<>();
+            trailElements.add(UtilMisc.toList(productCategoryId));
+            return trailElements;
         }
-        if (trailElements.isEmpty()) {
-            List<String> trailElement = new ArrayList<>();
-            trailElement.add(productCategoryId);
-            trailElements.add(trailElement);
+    }
+
+    /**
+     * Gets the trail a product category is searched by, from a top category down to the category, see
+     * {@link CategoryGraph#getTrail(String)}.
+     */
+    public static List<String> getSearchCategoryTrail(String productCategoryId, DispatchContext dctx) {
+        try {
+            return CategoryGraph.getInstance(dctx.getDelegator()).getTrail(productCategoryId);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Cannot generate trail from product category", MODULE);
+            return UtilMisc.toList(productCategoryId);
         }
-        return trailElements;
     }
 
     /**
-     * Returns categoryName with trail
+     * Returns categoryName with trail, the depth prefixed path of the category as indexed in the <code>cat</code> field.
+     * <p>
+     * A category with several parents is indexed under each of its trails, its path is taken from a single one of them
+     * so that it matches one of the indexed paths.
      */
     public static String getCategoryNameWithTrail(String productCategoryId, DispatchContext dctx) {
         return getCategoryNameWithTrail(productCategoryId, true, dctx);
     }
 
     public static String getCategoryNameWithTrail(String productCategoryId, Boolean showDepth, DispatchContext dctx) {
-        List<List<String>> trailElements = CategoryUtil.getCategoryTrail(productCategoryId, dctx);
-        //Debug.log("trailElements ======> " + trailElements.toString());
-        StringBuilder catMember = new StringBuilder();
-        String cm = "";
-        int i = 0;
-        for (List<String> trailElement : trailElements) {
-            for (Iterator<String> trailIter = trailElement.iterator(); trailIter.hasNext();) {
-                String trailString = trailIter.next();
-                if (catMember.length() > 0) {
-                    catMember.append("/");
-                    i++;
-                }
-
-                catMember.append(trailString);
-            }
-        }
-
-        if (catMember.length() == 0) {
-            catMember.append(productCategoryId);
-        }
+        List<String> trailElement = CategoryUtil.getSearchCategoryTrail(productCategoryId, dctx);
+        String catMember = StringUtils.join(trailElement, "/");
         if (showDepth) {
-            cm = i + "/" + catMember.toString();
-        } else {
-            cm = catMember.toString();
+            return (trailElement.size() - 1) + "/" + catMember;
         }
-        return cm;
+        return catMember;
     }
+
     /**Returns nextLevel from trailed category.
      * <p>
      * Ie for "1/SYRACUS2_CATEGORY/FICTION_C/" the returned value would be 2.
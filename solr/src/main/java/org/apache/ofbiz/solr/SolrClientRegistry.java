@@ -0,0 +1,434 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.ServiceUnavailableRetryStrategy;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.util.EntityUtils;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CoreContainer;
+
+/**
+ * Long-lived, thread-safe Solr clients, one per index.
+ * <p>
+ * When the Solr webapp runs in this JVM, the clients are by default embedded servers bound to its core container,
+ * which saves the HTTP round-trip and the login, see <code>solr.client.transport</code>.
+ * <p>
+ * Otherwise all the clients share one pooled HTTP client whose connections are kept alive between requests, and the OFBiz
+ * session of the Solr webapp: the client logs in with <code>solr.client.username</code> the first time a request
+ * is rejected with a 401 status, or an admin request gets the login page of the webapp, and transparently replays
+ * the request once logged in. Requests whose body is streamed, like the updates, cannot be replayed by the HTTP client
+ * and are sent again by the Solr client instead.
+ */
+public final class SolrClientRegistry {
+
+    private static final String MODULE = SolrClientRegistry.class.getName();
+    private static final String SOLR_CONFIG_NAME = "solrconfig.properties";
+    private static final String LOGIN_COUNT_ATTRIBUTE = SolrClientRegistry.class.getName() + ".loginCount";
+    private static final String ADMIN_PATH = "/admin/";
+    private static final String ADMIN_LOGIN_MARKER = "\"ofbizLogin\"";
+
+    private static volatile SolrClientRegistry instance;
+    private static volatile CoreContainer localCoreContainer;
+
+    private final String solrUrl;
+    private final String loginUrl;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final CloseableHttpClient loginClient;
+    private final CookieStore cookieStore;
+    private final String transport;
+    private final Map<String, HttpSolrClient> clients = new ConcurrentHashMap<>();
+    private final Map<String, EmbeddedSolrServer> embeddedClients = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private volatile HttpSolrClient adminClient;
+    private volatile EmbeddedSolrServer embeddedAdminClient;
+    private final AtomicLong loginCount = new AtomicLong();
+
+    private SolrClientRegistry() {
+        solrUrl = SolrUtil.makeSolrWebappUrl();
+        transport = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.transport", "auto");
+        loginUrl = solrUrl + "/control/login?USERNAME=" + encode(UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.username"))
+                + "&PASSWORD=" + encode(UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.password"));
+
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = createSocketFactoryRegistry();
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        connectionManager.setMaxTotal(UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.client.pool.maxTotal", 100));
+        connectionManager.setDefaultMaxPerRoute(UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.client.pool.maxPerRoute", 50));
+        connectionManager.setValidateAfterInactivity(UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME,
+                "solr.client.pool.validateAfterInactivity", 2000));
+
+        long keepAlive = UtilProperties.getPropertyAsLong(SOLR_CONFIG_NAME, "solr.client.keepAlive", 60000L);
+        cookieStore = new BasicCookieStore();
+        RequestConfig requestConfig = createRequestConfig();
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setDefaultCookieStore(cookieStore)
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+                })
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .addInterceptorFirst((HttpRequestInterceptor) (request, context) -> {
+                    requestCount.incrementAndGet();
+                    // Remembers the session the request is sent with, see retryRequest
+                    context.setAttribute(LOGIN_COUNT_ATTRIBUTE, loginCount.get());
+                })
+                .addInterceptorLast((HttpResponseInterceptor) (response, context) -> {
+                    if (isAdminLoginPage(response, context)) {
+                        // Handled as the 401 of the other paths, so that the request is replayed once logged in
+                        response.setStatusCode(HttpStatus.SC_UNAUTHORIZED);
+                    }
+                })
+                .setServiceUnavailableRetryStrategy(new LoginRetryStrategy())
+                .build();
+        // Logins use their own connection so that they never wait for the pool while a rejected request holds a connection
+        loginClient = HttpClients.custom()
+                .setConnectionManager(new BasicHttpClientConnectionManager(socketFactoryRegistry))
+                .setDefaultRequestConfig(requestConfig)
+                .setDefaultCookieStore(cookieStore)
+                .build();
+    }
+
+    public static SolrClientRegistry getInstance() {
+        SolrClientRegistry registry = instance;
+        if (registry == null) {
+            synchronized (SolrClientRegistry.class) {
+                registry = instance;
+                if (registry == null) {
+                    registry = new SolrClientRegistry();
+                    instance = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Sets the core container of the Solr webapp running in this JVM, if any.
+     * @param coreContainer the core container, <code>null</code> when the webapp is stopped
+     */
+    public static void setLocalCoreContainer(CoreContainer coreContainer) {
+        localCoreContainer = coreContainer;
+        SolrClientRegistry registry = instance;
+        if (registry != null) {
+            // Embedded servers are bound to the previous container
+            registry.embeddedClients.clear();
+            registry.embeddedAdminClient = null;
+        }
+    }
+
+    /**
+     * Gets the client of an index, embedded if the configured transport allows it and the index is served by
+     * this JVM, HTTP otherwise. The client is shared and must not be closed.
+     * @param solrIndexName the index name
+     * @return the client
+     */
+    public SolrClient getClient(String solrIndexName) {
+        if (!"http".equals(transport)) {
+            CoreContainer coreContainer = localCoreContainer;
+            if (coreContainer != null && !coreContainer.isShutDown() && coreContainer.getAllCoreNames().contains(solrIndexName)) {
+                return embeddedClients.computeIfAbsent(solrIndexName, name -> new EmbeddedSolrServer(coreContainer, name));
+            }
+            if ("embedded".equals(transport)) {
+                Debug.logWarning("Solr: index " + solrIndexName + " is not served by this JVM, falling back to HTTP", MODULE);
+            }
+        }
+        return getHttpClient(solrIndexName);
+    }
+
+    /**
+     * Gets the HTTP client of an index, whatever the configured transport. The client is shared and must not be closed.
+     * @param solrIndexName the index name
+     * @return the client
+     */
+    public HttpSolrClient getHttpClient(String solrIndexName) {
+        return clients.computeIfAbsent(solrIndexName, name -> new LoginSolrClient(new HttpSolrClient.Builder(solrUrl + "/" + name)
+                .withHttpClient(httpClient)));
+    }
+
+    /**
+     * Gets the client of the core administration handler (CoreAdmin), embedded under the same conditions as
+     * the index clients. The client is shared and must not be closed.
+     * @return the client
+     */
+    public SolrClient getAdminClient() {
+        CoreContainer coreContainer = localCoreContainer;
+        if (!"http".equals(transport) && coreContainer != null && !coreContainer.isShutDown()) {
+            EmbeddedSolrServer client = embeddedAdminClient;
+            if (client == null) {
+                // Admin requests are handled by the container, no default core is needed
+                client = new EmbeddedSolrServer(coreContainer, null);
+                embeddedAdminClient = client;
+            }
+            return client;
+        }
+        HttpSolrClient client = adminClient;
+        if (client == null) {
+            synchronized (this) {
+                client = adminClient;
+                if (client == null) {
+                    client = new LoginSolrClient(new HttpSolrClient.Builder(solrUrl).withHttpClient(httpClient));
+                    adminClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Gets the metrics of the connection pool and of the session.
+     * @return the number of leased, available and pending connections, the maximum number of connections,
+     * the number of requests, logins and clients
+     */
+    public Map<String, Object> getMetrics() {
+        PoolStats poolStats = connectionManager.getTotalStats();
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("leasedConnections", poolStats.getLeased());
+        metrics.put("availableConnections", poolStats.getAvailable());
+        metrics.put("pendingConnections", poolStats.getPending());
+        metrics.put("maxConnections", poolStats.getMax());
+        metrics.put("requestCount", requestCount.get());
+        metrics.put("loginCount", loginCount.get());
+        metrics.put("clientCount", clients.size());
+        metrics.put("embeddedClientCount", embeddedClients.size());
+        return metrics;
+    }
+
+    /**
+     * Closes the clients and their connections, a new registry is created by the next {@link #getInstance()}.
+     */
+    public static synchronized void shutdown() {
+        SolrClientRegistry registry = instance;
+        instance = null;
+        if (registry == null) {
+            return;
+        }
+        for (HttpSolrClient client : registry.clients.values()) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                Debug.logError(e, MODULE);
+            }
+        }
+        registry.clients.clear();
+        if (registry.adminClient != null) {
+            try {
+                registry.adminClient.close();
+            } catch (IOException e) {
+                Debug.logError(e, MODULE);
+            }
+        }
+        // Closing an embedded server would shut down the core container of the webapp
+        registry.embeddedClients.clear();
+        registry.embeddedAdminClient = null;
+        try {
+            registry.httpClient.close();
+            registry.loginClient.close();
+        } catch (IOException e) {
+            Debug.logError(e, MODULE);
+        }
+    }
+
+    /**
+     * Forgets the session of the Solr webapp, as when it expires: the next HTTP request is rejected and logs in again.
+     */
+    public void logout() {
+        cookieStore.clear();
+    }
+
+    /**
+     * Logs in the Solr webapp unless another request already did it since the session was rejected.
+     * @param rejectedLoginCount the number of logins when the rejected request was sent
+     * @return <code>true</code> if the session is logged in
+     */
+    private synchronized boolean login(long rejectedLoginCount) {
+        if (loginCount.get() != rejectedLoginCount) {
+            return true;
+        }
+        HttpGet httpLogin = new HttpGet(loginUrl);
+        try (CloseableHttpResponse loginResponse = loginClient.execute(httpLogin)) {
+            EntityUtils.consume(loginResponse.getEntity());
+            if (loginResponse.getStatusLine().getStatusCode() >= HttpStatus.SC_BAD_REQUEST) {
+                Debug.logWarning("Solr: login to " + solrUrl + " failed with status " + loginResponse.getStatusLine(), MODULE);
+                return false;
+            }
+            loginCount.incrementAndGet();
+            if (Debug.verboseOn()) {
+                Debug.logVerbose("Solr: logged in to " + solrUrl, MODULE);
+            }
+            return true;
+        } catch (IOException e) {
+            Debug.logError(e, "Solr: could not login to " + solrUrl, MODULE);
+            return false;
+        }
+    }
+
+    /**
+     * Tells whether a response is the page the Solr webapp returns, with a 200 status, to an admin request which is not
+     * logged in. Admin requests of SolrJ get binary responses, only that page is JSON.
+     */
+    private static boolean isAdminLoginPage(HttpResponse response, HttpContext context) throws IOException {
+        HttpRequest request = HttpCoreContext.adapt(context).getRequest();
+        HttpEntity entity = response.getEntity();
+        if (request == null || !request.getRequestLine().getUri().contains(ADMIN_PATH) || entity == null
+                || response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            return false;
+        }
+        ContentType contentType = ContentType.get(entity);
+        if (contentType == null || !ContentType.APPLICATION_JSON.getMimeType().equals(contentType.getMimeType())) {
+            return false;
+        }
+        BufferedHttpEntity bufferedEntity = new BufferedHttpEntity(entity);
+        response.setEntity(bufferedEntity);
+        return EntityUtils.toString(bufferedEntity, StandardCharsets.UTF_8).contains(ADMIN_LOGIN_MARKER);
+    }
+
+    private static RequestConfig createRequestConfig() {
+        RequestConfig.Builder requestConfig = RequestConfig.custom().setRedirectsEnabled(true);
+        String socketTimeout = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.socket.timeout");
+        if (UtilValidate.isNotEmpty(socketTimeout)) {
+            requestConfig.setSocketTimeout(Integer.parseInt(socketTimeout));
+        }
+        String connectionTimeout = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.connection.timeout");
+        if (UtilValidate.isNotEmpty(connectionTimeout)) {
+            requestConfig.setConnectTimeout(Integer.parseInt(connectionTimeout));
+        }
+        return requestConfig.build();
+    }
+
+    private static Registry<ConnectionSocketFactory> createSocketFactoryRegistry() {
+        SSLConnectionSocketFactory sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+        if (UtilProperties.getPropertyAsBoolean(SOLR_CONFIG_NAME, "solr.client.trust.selfsigned.cert", false)) {
+            try {
+                SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, (chain, authType) -> true).build();
+                sslSocketFactory = new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE);
+            } catch (GeneralSecurityException e) {
+                Debug.logError(e, "Solr: could not trust self signed certificates", MODULE);
+            }
+        }
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory)
+                .build();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value != null ? value : "", StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends again, once logged in, a request rejected because the session is not logged in and whose body could not be
+     * replayed by {@link LoginRetryStrategy}: the retry strategy is only asked once the request is rejected, and the
+     * streamed body of an update is then already consumed.
+     */
+    private final class LoginSolrClient extends HttpSolrClient {
+        private LoginSolrClient(HttpSolrClient.Builder builder) {
+            super(builder);
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest request, ResponseParser processor, String collection)
+                throws SolrServerException, IOException {
+            long sentLoginCount = loginCount.get();
+            try {
+                return super.request(request, processor, collection);
+            } catch (SolrException e) {
+                if (e.code() != HttpStatus.SC_UNAUTHORIZED || !login(sentLoginCount)) {
+                    throw e;
+                }
+                return super.request(request, processor, collection);
+            }
+        }
+    }
+
+    /**
+     * Replays once a request rejected because the session is not logged in, after logging in.
+     */
+    private final class LoginRetryStrategy implements ServiceUnavailableRetryStrategy {
+        @Override
+        public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
+            if (executionCount > 1 || response.getStatusLine().getStatusCode() != HttpStatus.SC_UNAUTHORIZED) {
+                return false;
+            }
+            Object rejectedLoginCount = context.getAttribute(LOGIN_COUNT_ATTRIBUTE);
+            return login(rejectedLoginCount instanceof Long ? (Long) rejectedLoginCount : loginCount.get());
+        }
+
+        @Override
+        public long getRetryInterval() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Sends documents to a Solr index in batches from a background thread, so that the next documents are built
+ * while the previous batch is indexed.
+ * <p>
+ * At most <code>queueSize</code> batches wait for the sender: when the queue is full the caller sends the batch
+ * itself, which bounds the memory used whatever the number of documents. The first send error stops the batcher
+ * and is thrown by the next call.
+ */
+public final class SolrDocumentBatcher implements AutoCloseable {
+
+    private final SolrClient client;
+    private final int batchSize;
+    private final int commitWithinMs;
+    private final ThreadPoolExecutor sender;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final AtomicLong sentCount = new AtomicLong();
+    private List<SolrInputDocument> batch;
+
+    /**
+     * Creates a batcher.
+     * @param client the client of the index
+     * @param batchSize the number of documents sent at once
+     * @param queueSize the number of batches waiting for the sender
+     * @param commitWithinMs the time in which Solr has to commit the sent documents, -1 to let the caller commit
+     */
+    public SolrDocumentBatcher(SolrClient client, int batchSize, int queueSize, int commitWithinMs) {
+        this.client = client;
+        this.batchSize = batchSize;
+        this.commitWithinMs = commitWithinMs;
+        this.batch = new ArrayList<>(batchSize);
+        this.sender = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(queueSize, 1)), runnable -> {
+            Thread thread = new Thread(runnable, "SolrDocumentBatcher");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Adds a document to the current batch, which is handed over to the sender once full.
+     * @param document the document
+     * @throws SolrServerException if a previous batch could not be indexed
+     * @throws IOException if a previous batch could not be sent
+     */
+    public void add(SolrInputDocument document) throws SolrServerException, IOException {
+        checkFailure();
+        batch.add(document);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Hands over the current batch to the sender.
+     * @throws SolrServerException if a previous batch could not be indexed
+     * @throws IOException if a previous batch could not be sent
+     */
+    public void flush() throws SolrServerException, IOException {
+        if (!batch.isEmpty()) {
+            List<SolrInputDocument> documents = batch;
+            batch = new ArrayList<>(batchSize);
+            sender.execute(() -> send(documents));
+        }
+        checkFailure();
+    }
+
+    /**
+     * Gets the number of documents sent so far.
+     * @return the number of sent documents
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Sends the current batch and waits for all the batches to be sent.
+     * @throws SolrServerException if a batch could not be indexed
+     * @throws IOException if a batch could not be sent
+     */
+    @Override
+    public void close() throws SolrServerException, IOException {
+        try {
+            flush();
+        } finally {
+            sender.shutdown();
+            try {
+                // The documents have to be sent before the caller commits
+                sender.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                sender.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending documents to Solr", e);
+            }
+        }
+        checkFailure();
+    }
+
+    private void send(List<SolrInputDocument> documents) {
+        if (failure.get() != null) {
+            return;
+        }
+        try {
+            if (commitWithinMs > 0) {
+                client.add(documents, commitWithinMs);
+            } else {
+                client.add(documents);
+            }
+            sentCount.addAndGet(documents.size());
+        } catch (SolrServerException | IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void checkFailure() throws SolrServerException, IOException {
+        Exception e = failure.get();
+        if (e instanceof SolrServerException) {
+            throw (SolrServerException) e;
+        } else if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw (RuntimeException) e;
+        }
+    }
+}
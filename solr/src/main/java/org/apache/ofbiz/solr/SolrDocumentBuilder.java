@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.product.config.ProductConfigWrapper;
+import org.apache.ofbiz.product.product.ProductContentWrapper;
+import org.apache.ofbiz.product.product.ProductWorker;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.schema.SchemaRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Builds the Solr documents of products, concurrently on a pool of <code>solr.index.builder.threads</code> threads.
+ * <p>
+ * The localized title and descriptions are extracted for the locales of <code>solr.index.locales</code>. When the
+ * builder is given the client of an index, the extractions whose fields are not in the schema of the index are
+ * skipped: for instance the inventory service is not called when the schema has no <code>inStock</code> field.
+ */
+public final class SolrDocumentBuilder implements AutoCloseable {
+
+    private static final String MODULE = SolrDocumentBuilder.class.getName();
+    private static final String SOLR_CONFIG_NAME = "solrconfig.properties";
+
+    private final DispatchContext dctx;
+    private final GenericValue userLogin;
+    private final List<Locale> locales;
+    private final Set<String> schemaFields;
+    private final List<String> schemaDynamicFields;
+    private final ExecutorService builders;
+    private final int threadCount;
+
+    /**
+     * Creates a builder.
+     * @param dctx the dispatch context
+     * @param context the service context, giving the user login of the price calculations
+     * @param client the client of the index whose schema is used to skip extractions, <code>null</code> to extract all
+     * the fields
+     * @param threads the number of builder threads, 0 for <code>solr.index.builder.threads</code>, 1 to build the
+     * documents in the calling thread
+     */
+    public SolrDocumentBuilder(DispatchContext dctx, Map<String, Object> context, SolrClient client, int threads) {
+        this.dctx = dctx;
+        this.userLogin = (GenericValue) context.get("userLogin");
+        this.locales = getLocales();
+        int configuredThreads = threads > 0 ? threads : UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.index.builder.threads", 0);
+        this.threadCount = configuredThreads > 0 ? configuredThreads : Runtime.getRuntime().availableProcessors();
+        if (threadCount > 1) {
+            AtomicInteger builderCount = new AtomicInteger();
+            this.builders = Executors.newFixedThreadPool(threadCount, runnable -> {
+                Thread builder = new Thread(runnable, "SolrDocumentBuilder_" + builderCount.incrementAndGet());
+                builder.setDaemon(true);
+                return builder;
+            });
+        } else {
+            this.builders = null;
+        }
+
+        Set<String> fields = null;
+        List<String> dynamicFields = null;
+        if (client != null) {
+            try {
+                fields = new HashSet<>();
+                for (Map<String, Object> field : new SchemaRequest.Fields().process(client).getFields()) {
+                    fields.add((String) field.get("name"));
+                }
+                dynamicFields = new ArrayList<>();
+                for (Map<String, Object> dynamicField : new SchemaRequest.DynamicFields().process(client).getDynamicFields()) {
+                    dynamicFields.add((String) dynamicField.get("name"));
+                }
+            } catch (SolrServerException | IOException | RuntimeException e) {
+                Debug.logWarning(e, "Solr: Could not read the schema of the index, all the fields are extracted", MODULE);
+                fields = null;
+                dynamicFields = null;
+            }
+        }
+        this.schemaFields = fields;
+        this.schemaDynamicFields = dynamicFields;
+    }
+
+    /**
+     * Gets the locales of the localized fields, from <code>solr.index.locales</code>.
+     * @return the locales
+     */
+    public static List<Locale> getLocales() {
+        List<Locale> locales = new ArrayList<>();
+        for (String language : UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.index.locales", "de,en,fr").split(",")) {
+            if (!language.trim().isEmpty()) {
+                locales.add(new Locale(language.trim()));
+            }
+        }
+        return Collections.unmodifiableList(locales);
+    }
+
+    /**
+     * Gets the number of threads building the documents.
+     * @return the thread count
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Checks whether the index has a field, directly or through a dynamic field.
+     * @param fieldName the field name
+     * @return <code>true</code> if the field is in the schema or the schema is not known
+     */
+    public boolean hasField(String fieldName) {
+        if (schemaFields == null || schemaFields.contains(fieldName)) {
+            return true;
+        }
+        for (String dynamicField : schemaDynamicFields) {
+            if ((dynamicField.startsWith("*") && fieldName.endsWith(dynamicField.substring(1)))
+                    || (dynamicField.endsWith("*") && fieldName.startsWith(dynamicField.substring(0, dynamicField.length() - 1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the documents of products, concurrently when the builder has several threads.
+     * @param products the products
+     * @return the documents, in the order of the products, without the products whose content could not be built
+     * @throws GenericEntityException if a document could not be built or the building was interrupted
+     */
+    public List<SolrInputDocument> buildDocuments(List<GenericValue> products) throws GenericEntityException {
+        List<SolrInputDocument> documents = new ArrayList<>(products.size());
+        if (builders == null || products.size() < 2) {
+            for (GenericValue product : products) {
+                addDocument(documents, buildDocument(product));
+            }
+            return documents;
+        }
+        List<Future<SolrInputDocument>> futures = new ArrayList<>(products.size());
+        for (GenericValue product : products) {
+            futures.add(builders.submit(() -> buildDocument(product)));
+        }
+        try {
+            for (Future<SolrInputDocument> future : futures) {
+                addDocument(documents, future.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new GenericEntityException("Interrupted while building Solr documents", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof GenericEntityException) {
+                throw (GenericEntityException) e.getCause();
+            }
+            throw new GenericEntityException("Could not build Solr documents", e.getCause());
+        }
+        return documents;
+    }
+
+    private static void addDocument(List<SolrInputDocument> documents, SolrInputDocument document) {
+        if (document != null) {
+            documents.add(document);
+        }
+    }
+
+    private SolrInputDocument buildDocument(GenericValue product) throws GenericEntityException {
+        Map<String, Object> productContent = getProductContent(product);
+        if (productContent.get("productId") == null) {
+            Debug.logWarning("Solr: Could not build the document of product " + product.getString("productId") + ", skipped", MODULE);
+            return null;
+        }
+        SolrInputDocument document = SolrUtil.generateSolrDocument(productContent);
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: Indexing document: " + document.toString(), MODULE);
+        }
+        return document;
+    }
+
+    /**
+     * Gets the content of a product, as expected by {@link SolrUtil#generateSolrDocument(Map)}.
+     * @param product the product
+     * @return the content, an error result without the product id if it could not be built
+     */
+    public Map<String, Object> getProductContent(GenericValue product) {
+        Delegator delegator = dctx.getDelegator();
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        String productId = product.getString("productId");
+        Map<String, Object> dispatchContext = new HashMap<>();
+
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: Getting product content for productId '" + productId + "'", MODULE);
+        }
+        if (productId == null) {
+            return dispatchContext;
+        }
+        try {
+            dispatchContext.put("productId", productId);
+            putIfPresent(dispatchContext, "internalName", product.get("internalName"));
+            putIfPresent(dispatchContext, "smallImage", product.get("smallImageUrl"));
+            putIfPresent(dispatchContext, "mediumImage", product.get("mediumImageUrl"));
+            putIfPresent(dispatchContext, "largeImage", product.get("largeImageUrl"));
+
+            if (hasField("cat") || hasField("catalog")) {
+                List<GenericValue> productCategoryMembers = EntityQuery.use(delegator).from("ProductCategoryMember")
+                        .where("productId", productId).queryList();
+                CategoryGraph categoryGraph = CategoryGraph.getInstance(delegator);
+                Set<String> trails = new LinkedHashSet<>();
+                // Get the catalogs that have associated the categories
+                Set<String> catalogs = new LinkedHashSet<>();
+                for (GenericValue productCategoryMember : productCategoryMembers) {
+                    String productCategoryId = productCategoryMember.getString("productCategoryId");
+                    trails.addAll(categoryGraph.getTrailPaths(productCategoryId));
+                    catalogs.addAll(categoryGraph.getTrailCatalogIds(productCategoryId));
+                }
+                dispatchContext.put("category", new ArrayList<>(trails));
+                dispatchContext.put("catalog", new ArrayList<>(catalogs));
+            }
+
+            if (hasField("features")) {
+                Map<String, Object> featureSet = dispatcher.runSync("getProductFeatureSet", UtilMisc.toMap("productId", productId));
+                if (ServiceUtil.isError(featureSet)) {
+                    return ServiceUtil.returnError(ServiceUtil.getErrorMessage(featureSet));
+                }
+                dispatchContext.put("features", featureSet.get("featureSet"));
+            }
+
+            if (hasField("inStock")) {
+                Map<String, Object> productInventoryAvailable = dispatcher.runSync("getProductInventoryAvailable",
+                        UtilMisc.toMap("productId", productId));
+                if (ServiceUtil.isError(productInventoryAvailable)) {
+                    return ServiceUtil.returnError(ServiceUtil.getErrorMessage(productInventoryAvailable));
+                }
+                BigDecimal availableToPromiseTotal = (BigDecimal) productInventoryAvailable.get("availableToPromiseTotal");
+                if (availableToPromiseTotal != null) {
+                    dispatchContext.put("inStock", availableToPromiseTotal.toBigInteger().toString());
+                }
+            }
+
+            if (hasField("isVirtual") && ProductWorker.isVirtual(delegator, productId)) {
+                dispatchContext.put("isVirtual", Boolean.TRUE);
+            }
+            if (ProductWorker.isDigital(product)) {
+                dispatchContext.put("isDigital", Boolean.TRUE);
+            }
+            if (ProductWorker.isPhysical(product)) {
+                dispatchContext.put("isPhysical", Boolean.TRUE);
+            }
+
+            Map<String, String> title = new HashMap<>();
+            Map<String, String> description = new HashMap<>();
+            Map<String, String> longDescription = new HashMap<>();
+            for (Locale locale : locales) {
+                String language = locale.getLanguage();
+                boolean hasTitle = hasField("title_i18n_" + language);
+                boolean hasDescription = hasField("description_i18n_" + language);
+                boolean hasLongDescription = hasField("longdescription_i18n_" + language);
+                if (!hasTitle && !hasDescription && !hasLongDescription) {
+                    continue;
+                }
+                ProductContentWrapper productContent = new ProductContentWrapper(dispatcher, product, locale, null);
+                if (hasTitle) {
+                    String localizedTitle = productContent.get("PRODUCT_NAME", "html").toString();
+                    if (UtilValidate.isNotEmpty(localizedTitle)) {
+                        title.put(language, localizedTitle);
+                    } else if (product.get("productName") != null) {
+                        title.put(language, product.getString("productName"));
+                    }
+                }
+                if (hasDescription) {
+                    description.put(language, productContent.get("DESCRIPTION", "html").toString());
+                }
+                if (hasLongDescription) {
+                    longDescription.put(language, productContent.get("LONG_DESCRIPTION", "html").toString());
+                }
+            }
+            dispatchContext.put("title", title);
+            dispatchContext.put("description", description);
+            dispatchContext.put("longDescription", longDescription);
+
+            if (hasField("listPrice") || hasField("defaultPrice")) {
+                if ("AGGREGATED".equals(product.getString("productTypeId"))) {
+                    Locale locale = locales.isEmpty() ? Locale.getDefault() : locales.get(0);
+                    ProductConfigWrapper configWrapper = new ProductConfigWrapper(delegator, dispatcher, productId, null,
+                            null, null, null, locale, userLogin);
+                    String listPrice = configWrapper.getTotalListPrice().setScale(2, RoundingMode.HALF_DOWN).toString();
+                    dispatchContext.put("listPrice", listPrice);
+                    dispatchContext.put("defaultPrice", listPrice);
+                } else {
+                    Map<String, Object> priceMap = dispatcher.runSync("calculateProductPrice", UtilMisc.toMap("product", product));
+                    if (ServiceUtil.isError(priceMap)) {
+                        return ServiceUtil.returnError(ServiceUtil.getErrorMessage(priceMap));
+                    }
+                    if (priceMap.get("listPrice") != null) {
+                        dispatchContext.put("listPrice", ((BigDecimal) priceMap.get("listPrice")).setScale(2, RoundingMode.HALF_DOWN).toString());
+                    }
+                    if (priceMap.get("defaultPrice") != null) {
+                        dispatchContext.put("defaultPrice", ((BigDecimal) priceMap.get("defaultPrice")).setScale(2, RoundingMode.HALF_DOWN)
+                                .toString());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Debug.logError(e, e.getMessage(), MODULE);
+            return ServiceUtil.returnError(e.toString());
+        }
+        return dispatchContext;
+    }
+
+    private static void putIfPresent(Map<String, Object> dispatchContext, String key, Object value) {
+        if (value != null) {
+            dispatchContext.put(key, value);
+        }
+    }
+
+    /**
+     * Stops the builder threads.
+     */
+    @Override
+    public void close() {
+        if (builders != null) {
+            builders.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.GenericTransactionException;
+import org.apache.ofbiz.entity.transaction.TransactionFactoryLoader;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Collects the products to index from the ECAs and indexes them in the background, see <code>addToSolr</code>.
+ * <p>
+ * A product is only queued once the transaction which changed it is committed, and a product queued several times
+ * before being indexed is only indexed once. The documents are built by this thread and sent in batches of
+ * <code>solr.eca.batchSize</code> products at most <code>solr.eca.maxLatency</code> ms after the first one is queued,
+ * with a <code>commitWithin</code> of <code>solr.eca.commitWithin</code> ms instead of a hard commit per product.
+ * The products of a batch which could not be sent are queued again and retried after <code>solr.eca.retryDelay</code> ms.
+ * The documents of a batch are built concurrently, see {@link SolrDocumentBuilder}.
+ * <p>
+ * While the index is rebuilt into a shadow core, the products sent to the index are recorded so that the rebuild
+ * applies them to the shadow core before it replaces the index, see {@link #startRecording()}. While the index is
+ * rebuilt in place, the buffer is paused, see {@link #pause()}.
+ */
+public final class SolrIndexBuffer extends Thread {
+
+    private static final String MODULE = SolrIndexBuffer.class.getName();
+    private static final String SOLR_CONFIG_NAME = "solrconfig.properties";
+
+    private static Map<String, SolrIndexBuffer> indexBufferMap = new HashMap<>();
+    private static boolean shutdownHookRegistered = false;
+    private static final Map<Transaction, Map<SolrIndexBuffer, Set<String>>> TRANSACTION_PRODUCTS = new WeakHashMap<>();
+
+    private final DispatchContext dctx;
+    private final String indexName;
+    private final Set<String> pendingProductIds = new LinkedHashSet<>();
+    private final int batchSize;
+    private final long maxLatency;
+    private final int commitWithin;
+    private final long retryDelay;
+    private long firstPendingTime;
+    private boolean paused;
+    private boolean sending;
+    private SolrDocumentBuilder documentBuilder;
+    private volatile Set<String> recordedProductIds;
+    private volatile boolean running = true;
+
+    private SolrIndexBuffer(DispatchContext dctx, String indexName) {
+        this.dctx = dctx;
+        this.indexName = indexName;
+        this.batchSize = UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.eca.batchSize", 200);
+        this.maxLatency = UtilProperties.getPropertyAsLong(SOLR_CONFIG_NAME, "solr.eca.maxLatency", 1000L);
+        this.commitWithin = UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.eca.commitWithin", 5000);
+        this.retryDelay = UtilProperties.getPropertyAsLong(SOLR_CONFIG_NAME, "solr.eca.retryDelay", 10000L);
+        setDaemon(true);
+    }
+
+    public static synchronized SolrIndexBuffer getInstance(DispatchContext dctx, String indexName) {
+        String indexBufferId = dctx.getDelegator().getDelegatorName() + "_" + indexName;
+        SolrIndexBuffer indexBuffer = indexBufferMap.get(indexBufferId);
+        if (indexBuffer == null) {
+            if (!shutdownHookRegistered) {
+                Runtime.getRuntime().addShutdownHook(new Thread(SolrIndexBuffer::shutdownAll, "SolrIndexBuffer_shutdown"));
+                shutdownHookRegistered = true;
+            }
+            indexBuffer = new SolrIndexBuffer(dctx, indexName);
+            indexBuffer.setName("SolrIndexBuffer_" + indexBufferId);
+            indexBuffer.start();
+            indexBufferMap.put(indexBufferId, indexBuffer);
+        }
+        return indexBuffer;
+    }
+
+    /**
+     * Stops every buffer, indexing the products they have already queued.
+     */
+    public static void shutdownAll() {
+        List<SolrIndexBuffer> indexBuffers;
+        synchronized (SolrIndexBuffer.class) {
+            indexBuffers = new ArrayList<>(indexBufferMap.values());
+            indexBufferMap.clear();
+        }
+        for (SolrIndexBuffer indexBuffer : indexBuffers) {
+            indexBuffer.shutdown();
+        }
+    }
+
+    /**
+     * Stops this buffer, which {@link #getInstance} then replaces, and waits for it to index the queued products.
+     */
+    public void shutdown() {
+        synchronized (SolrIndexBuffer.class) {
+            indexBufferMap.values().remove(this);
+        }
+        running = false;
+        synchronized (pendingProductIds) {
+            pendingProductIds.notifyAll();
+        }
+        try {
+            join(maxLatency + 30000L);
+        } catch (InterruptedException e) {
+            Debug.logWarning(e, getName() + ": interrupted while waiting for the buffer to stop", MODULE);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a product once the current transaction is committed, or right away without transaction. The product is
+     * not indexed if the transaction is rolled back.
+     * @param productId the product to index
+     */
+    public void queueAfterCommit(String productId) {
+        try {
+            if (TransactionUtil.isTransactionInPlace()) {
+                Transaction transaction = TransactionFactoryLoader.getInstance().getTransactionManager().getTransaction();
+                if (transaction != null) {
+                    boolean registered;
+                    synchronized (TRANSACTION_PRODUCTS) {
+                        Map<SolrIndexBuffer, Set<String>> transactionProducts = TRANSACTION_PRODUCTS.get(transaction);
+                        registered = transactionProducts != null;
+                        if (!registered) {
+                            transactionProducts = new HashMap<>();
+                            TRANSACTION_PRODUCTS.put(transaction, transactionProducts);
+                        }
+                        transactionProducts.computeIfAbsent(this, buffer -> new LinkedHashSet<>()).add(productId);
+                    }
+                    if (!registered) {
+                        transaction.registerSynchronization(new TransactionProducts(transaction));
+                    }
+                    return;
+                }
+            }
+        } catch (GenericTransactionException | SystemException | RollbackException e) {
+            Debug.logWarning(e, getName() + ": could not wait for the transaction to commit, queuing product " + productId, MODULE);
+        }
+        queue(UtilMisc.toList(productId));
+    }
+
+    /**
+     * Queues products for indexing, a product already pending is only indexed once.
+     * @param productIds the products to index
+     */
+    public void queue(Collection<String> productIds) {
+        synchronized (pendingProductIds) {
+            if (pendingProductIds.isEmpty()) {
+                firstPendingTime = System.currentTimeMillis();
+            }
+            pendingProductIds.addAll(productIds);
+            pendingProductIds.notifyAll();
+        }
+    }
+
+    /**
+     * Starts recording the products sent to the index, they are taken with {@link #takeRecordedProductIds(boolean)}.
+     */
+    public void startRecording() {
+        recordedProductIds = Collections.synchronizedSet(new LinkedHashSet<>());
+    }
+
+    /**
+     * Takes the products sent to the index since the recording was started or since they were last taken.
+     * @param stop if the recording is stopped
+     * @return the recorded products, empty if nothing is recorded
+     */
+    public Set<String> takeRecordedProductIds(boolean stop) {
+        Set<String> recorded = recordedProductIds;
+        if (stop) {
+            recordedProductIds = null;
+        }
+        if (recorded == null) {
+            return Collections.emptySet();
+        }
+        synchronized (recorded) {
+            Set<String> productIds = new LinkedHashSet<>(recorded);
+            recorded.clear();
+            return productIds;
+        }
+    }
+
+    /**
+     * Stops sending products to the index until {@link #resume()} is called, waiting for the batch being sent if any.
+     * The products queued meanwhile are kept pending: the <code>commitWithin</code> of a batch would commit the index
+     * while it is rebuilt in place.
+     * @throws InterruptedException if interrupted while waiting for the batch being sent
+     */
+    public void pause() throws InterruptedException {
+        synchronized (pendingProductIds) {
+            paused = true;
+            while (sending) {
+                pendingProductIds.wait();
+            }
+        }
+    }
+
+    /**
+     * Sends again the products to the index after {@link #pause()}.
+     */
+    public void resume() {
+        synchronized (pendingProductIds) {
+            paused = false;
+            pendingProductIds.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<String> batch = new ArrayList<>();
+            synchronized (pendingProductIds) {
+                try {
+                    long waitTime = pendingProductIds.isEmpty() ? 0 : firstPendingTime + maxLatency - System.currentTimeMillis();
+                    while (running && (paused || pendingProductIds.size() < batchSize && (pendingProductIds.isEmpty() || waitTime > 0))) {
+                        // Execution will pause here until a batch is full or the oldest product waited long enough
+                        pendingProductIds.wait(Math.max(waitTime, 0));
+                        waitTime = pendingProductIds.isEmpty() ? 0 : firstPendingTime + maxLatency - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    Debug.logError(e, MODULE);
+                    running = false;
+                }
+                if (!running && pendingProductIds.isEmpty()) {
+                    break;
+                }
+                Iterator<String> iterator = pendingProductIds.iterator();
+                while (batch.size() < batchSize && iterator.hasNext()) {
+                    batch.add(iterator.next());
+                    iterator.remove();
+                }
+                // The next products waited since this batch was taken
+                firstPendingTime = System.currentTimeMillis();
+                sending = true;
+            }
+            boolean indexed;
+            try {
+                indexed = index(batch);
+            } finally {
+                synchronized (pendingProductIds) {
+                    sending = false;
+                    pendingProductIds.notifyAll();
+                }
+            }
+            if (!indexed && running) {
+                queue(batch);
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (documentBuilder != null) {
+            documentBuilder.close();
+        }
+    }
+
+    /**
+     * Gets the document builder of this buffer, created on first use so that the index schema is read once the index is
+     * available.
+     */
+    private SolrDocumentBuilder getDocumentBuilder() throws GenericEntityException {
+        if (documentBuilder == null) {
+            Map<String, Object> context = UtilMisc.toMap("userLogin",
+                    EntityQuery.use(dctx.getDelegator()).from("UserLogin").where("userLoginId", "system").cache().queryOne());
+            documentBuilder = new SolrDocumentBuilder(dctx, context, SolrUtil.getSolrClient(indexName), 0);
+        }
+        return documentBuilder;
+    }
+
+    /**
+     * Builds the documents of products and sends them, products which do not exist anymore are removed from the index.
+     * @return <code>false</code> if the batch could not be sent and has to be retried
+     */
+    private boolean index(List<String> productIds) {
+        // Recorded before being sent, so that a rebuild taking the recorded products after swapping its shadow core
+        // never misses one sent to the previous core
+        Set<String> recorded = recordedProductIds;
+        if (recorded != null) {
+            recorded.addAll(productIds);
+        }
+        Delegator delegator = dctx.getDelegator();
+        List<SolrInputDocument> documents;
+        Set<String> removedProductIds = new LinkedHashSet<>(productIds);
+        try {
+            List<GenericValue> products = EntityQuery.use(delegator).from("Product")
+                    .where(EntityCondition.makeCondition("productId", EntityOperator.IN, productIds)).queryList();
+            for (GenericValue product : products) {
+                removedProductIds.remove(product.getString("productId"));
+            }
+            documents = getDocumentBuilder().buildDocuments(products);
+        } catch (GenericEntityException e) {
+            Debug.logError(e, getName() + ": could not build the documents of " + productIds.size() + " products", MODULE);
+            return false;
+        }
+        try {
+            SolrClient client = SolrUtil.getSolrClient(indexName);
+            if (!documents.isEmpty()) {
+                client.add(documents, commitWithin);
+            }
+            if (!removedProductIds.isEmpty()) {
+                client.deleteById(new ArrayList<>(removedProductIds), commitWithin);
+            }
+            if (Debug.verboseOn()) {
+                Debug.logVerbose(getName() + ": indexed " + documents.size() + " and removed " + removedProductIds.size() + " products", MODULE);
+            }
+            return true;
+        } catch (SolrServerException | IOException | SolrException e) {
+            // A SolrException is thrown when the index answers with an error, for instance while it is not available
+            Debug.logWarning(e, getName() + ": could not send " + productIds.size() + " products, retrying in " + retryDelay + " ms", MODULE);
+            return false;
+        }
+    }
+
+    /**
+     * Queues the products of a transaction once it is committed.
+     */
+    private static final class TransactionProducts implements Synchronization {
+        private final Transaction transaction;
+
+        private TransactionProducts(Transaction transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void beforeCompletion() {
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            Map<SolrIndexBuffer, Set<String>> transactionProducts;
+            synchronized (TRANSACTION_PRODUCTS) {
+                transactionProducts = TRANSACTION_PRODUCTS.remove(transaction);
+            }
+            if (status == Status.STATUS_COMMITTED && transactionProducts != null) {
+                transactionProducts.forEach(SolrIndexBuffer::queue);
+            }
+        }
+    }
+}
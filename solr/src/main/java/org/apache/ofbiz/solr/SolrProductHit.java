@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A product found by {@link SolrProductSearcher}, holding only the fields requested by the query.
+ * <p>
+ * Multi-valued fields are lists, the single value getters return their first value. A field which was not requested
+ * or has no value for the product is <code>null</code>.
+ */
+public final class SolrProductHit {
+
+    private final String productId;
+    private final Map<String, Object> fields;
+
+    private SolrProductHit(String productId, Map<String, Object> fields) {
+        this.productId = productId;
+        this.fields = Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * Creates a hit from the fields of a document or of an exported tuple.
+     * @param values the field values, by field name
+     * @return the hit
+     */
+    public static SolrProductHit of(Map<String, ?> values) {
+        Map<String, Object> fields = new HashMap<>(values.size());
+        values.forEach((name, value) -> fields.put(name, value instanceof Collection<?>
+                ? Collections.unmodifiableList(new ArrayList<>((Collection<?>) value)) : value));
+        return new SolrProductHit((String) getFirst(fields.get(SolrProductQuery.PRODUCT_ID)), fields);
+    }
+
+    public String getProductId() {
+        return productId;
+    }
+
+    public String getInternalName() {
+        return getString("internalName");
+    }
+
+    public String getTitle() {
+        return getString("title");
+    }
+
+    public Double getListPrice() {
+        return getDouble("listPrice");
+    }
+
+    public Double getDefaultPrice() {
+        return getDouble("defaultPrice");
+    }
+
+    public boolean isInStock() {
+        Object inStock = get("inStock");
+        return inStock instanceof Number && ((Number) inStock).intValue() > 0;
+    }
+
+    public boolean isVirtual() {
+        return Boolean.TRUE.equals(get("isVirtual"));
+    }
+
+    /**
+     * Gets all the returned fields.
+     * @return the field values, by field name
+     */
+    public Map<String, Object> getFields() {
+        return fields;
+    }
+
+    /**
+     * Gets the value of a field, the first one of a multi-valued field.
+     * @param name the field name
+     * @return the value, or <code>null</code>
+     */
+    public Object get(String name) {
+        return getFirst(fields.get(name));
+    }
+
+    public String getString(String name) {
+        Object value = get(name);
+        return value != null ? value.toString() : null;
+    }
+
+    public Double getDouble(String name) {
+        Object value = get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : null;
+    }
+
+    /**
+     * Gets all the values of a field.
+     * @param name the field name
+     * @return the values, empty if the field has none
+     */
+    public List<Object> getAll(String name) {
+        Object value = fields.get(name);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        return value instanceof List<?> ? Collections.unmodifiableList((List<?>) value) : Collections.singletonList(value);
+    }
+
+    private static Object getFirst(Object value) {
+        if (value instanceof List<?>) {
+            List<?> values = (List<?>) value;
+            return values.isEmpty() ? null : values.get(0);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "SolrProductHit" + fields;
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * A page of products found by {@link SolrProductSearcher#search(String, SolrProductQuery)}, with its facet counts.
+ */
+public final class SolrProductPage {
+
+    private final List<SolrProductHit> hits;
+    private final long numFound;
+    private final long start;
+    private final Map<String, Map<String, Long>> facetFieldCounts;
+    private final Map<String, Integer> facetQueryCounts;
+    private final String nextCursorMark;
+    private final long queryTime;
+
+    private SolrProductPage(List<SolrProductHit> hits, long numFound, long start, Map<String, Map<String, Long>> facetFieldCounts,
+            Map<String, Integer> facetQueryCounts, String nextCursorMark, long queryTime) {
+        this.hits = hits;
+        this.numFound = numFound;
+        this.start = start;
+        this.facetFieldCounts = facetFieldCounts;
+        this.facetQueryCounts = facetQueryCounts;
+        this.nextCursorMark = nextCursorMark;
+        this.queryTime = queryTime;
+    }
+
+    /**
+     * Converts a search response, the response is not kept.
+     * @param response the response of the index
+     * @return the page
+     */
+    public static SolrProductPage of(QueryResponse response) {
+        List<SolrProductHit> hits = new ArrayList<>(response.getResults().size());
+        for (SolrDocument document : response.getResults()) {
+            hits.add(SolrProductHit.of(document));
+        }
+        Map<String, Map<String, Long>> facetFieldCounts = new LinkedHashMap<>();
+        if (response.getFacetFields() != null) {
+            for (FacetField facetField : response.getFacetFields()) {
+                Map<String, Long> counts = new LinkedHashMap<>();
+                if (facetField.getValues() != null) {
+                    for (FacetField.Count count : facetField.getValues()) {
+                        counts.put(count.getName(), count.getCount());
+                    }
+                }
+                facetFieldCounts.put(facetField.getName(), Collections.unmodifiableMap(counts));
+            }
+        }
+        Map<String, Integer> facetQueryCounts = response.getFacetQuery() != null
+                ? new LinkedHashMap<>(response.getFacetQuery()) : new LinkedHashMap<>();
+        return new SolrProductPage(Collections.unmodifiableList(hits), response.getResults().getNumFound(),
+                response.getResults().getStart(), Collections.unmodifiableMap(facetFieldCounts),
+                Collections.unmodifiableMap(facetQueryCounts), response.getNextCursorMark(), response.getQTime());
+    }
+
+    public List<SolrProductHit> getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of products matching the query, in all the pages.
+     */
+    public long getNumFound() {
+        return numFound;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Gets the counts of the values of the facet fields, in the order returned by the index.
+     * @return the counts by value, by field
+     */
+    public Map<String, Map<String, Long>> getFacetFieldCounts() {
+        return facetFieldCounts;
+    }
+
+    /**
+     * Gets the number of products matching each facet query.
+     * @return the counts by facet query
+     */
+    public Map<String, Integer> getFacetQueryCounts() {
+        return facetQueryCounts;
+    }
+
+    /**
+     * Gets the cursor of the next page when the query used a cursor, equal to the cursor of the query after the last page.
+     * @return the next cursor, or <code>null</code>
+     */
+    public String getNextCursorMark() {
+        return nextCursorMark;
+    }
+
+    /**
+     * Gets the time the index took to run the query, in milliseconds.
+     */
+    public long getQueryTime() {
+        return queryTime;
+    }
+}
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.params.CursorMarkParams;
+
+/**
+ * An immutable product search on a Solr index, built with {@link #builder()} and run by {@link SolrProductSearcher}.
+ * <p>
+ * Filters are separate filter queries, cached by Solr independently of the main query. Field values given to
+ * {@link Builder#filter(String, String)} are escaped, raw filter queries can be given to {@link Builder#filterQuery(String)}.
+ */
+public final class SolrProductQuery {
+
+    /** The unique key of the product documents, the tie breaker of the deep paging sorts. */
+    public static final String PRODUCT_ID = "productId";
+
+    private final String query;
+    private final List<String> filterQueries;
+    private final List<String> facetFields;
+    private final List<String> facetQueries;
+    private final int facetLimit;
+    private final int facetMinCount;
+    private final List<SolrQuery.SortClause> sorts;
+    private final List<String> fields;
+    private final int start;
+    private final int rows;
+    private final String cursorMark;
+
+    private SolrProductQuery(Builder builder) {
+        this.query = builder.query;
+        this.filterQueries = Collections.unmodifiableList(new ArrayList<>(builder.filterQueries));
+        this.facetFields = Collections.unmodifiableList(new ArrayList<>(builder.facetFields));
+        this.facetQueries = Collections.unmodifiableList(new ArrayList<>(builder.facetQueries));
+        this.facetLimit = builder.facetLimit;
+        this.facetMinCount = builder.facetMinCount;
+        this.sorts = Collections.unmodifiableList(new ArrayList<>(builder.sorts));
+        this.fields = Collections.unmodifiableList(new ArrayList<>(builder.fields));
+        this.start = builder.start;
+        this.rows = builder.rows;
+        this.cursorMark = builder.cursorMark;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gets a builder initialized with this query, to derive another query from it.
+     * @return the builder
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder().query(query).facetLimit(facetLimit).facetMinCount(facetMinCount).start(start).rows(rows)
+                .cursorMark(cursorMark);
+        builder.filterQueries.addAll(filterQueries);
+        builder.facetFields.addAll(facetFields);
+        builder.facetQueries.addAll(facetQueries);
+        builder.sorts.addAll(sorts);
+        builder.fields.addAll(fields);
+        return builder;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public List<String> getFilterQueries() {
+        return filterQueries;
+    }
+
+    public List<String> getFacetFields() {
+        return facetFields;
+    }
+
+    public List<String> getFacetQueries() {
+        return facetQueries;
+    }
+
+    public List<SolrQuery.SortClause> getSorts() {
+        return sorts;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public String getCursorMark() {
+        return cursorMark;
+    }
+
+    /**
+     * Checks if the sort of this query ends with the unique key, as required by the deep paging cursors.
+     * @return <code>true</code> if the results are totally ordered
+     */
+    public boolean isSortedByUniqueKey() {
+        return !sorts.isEmpty() && PRODUCT_ID.equals(sorts.get(sorts.size() - 1).getItem());
+    }
+
+    /**
+     * Converts this query to the SolrJ query sent to the index.
+     * @return a new SolrJ query
+     */
+    public SolrQuery toSolrQuery() {
+        SolrQuery solrQuery = new SolrQuery(query);
+        if (!filterQueries.isEmpty()) {
+            solrQuery.setFilterQueries(filterQueries.toArray(new String[0]));
+        }
+        if (!facetFields.isEmpty() || !facetQueries.isEmpty()) {
+            solrQuery.setFacet(true);
+            solrQuery.setFacetMinCount(facetMinCount);
+            solrQuery.setFacetLimit(facetLimit);
+            facetFields.forEach(solrQuery::addFacetField);
+            facetQueries.forEach(solrQuery::addFacetQuery);
+        }
+        if (!sorts.isEmpty()) {
+            solrQuery.setSorts(new ArrayList<>(sorts));
+        }
+        if (!fields.isEmpty()) {
+            solrQuery.setFields(fields.toArray(new String[0]));
+        }
+        if (cursorMark != null) {
+            solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        } else if (start > 0) {
+            solrQuery.setStart(start);
+        }
+        if (rows >= 0) {
+            solrQuery.setRows(rows);
+        }
+        return solrQuery;
+    }
+
+    @Override
+    public String toString() {
+        return toSolrQuery().toString();
+    }
+
+    /**
+     * Builds a {@link SolrProductQuery}, a builder can be reused to build several queries.
+     */
+    public static final class Builder {
+        private String query = "*:*";
+        private final List<String> filterQueries = new ArrayList<>();
+        private final List<String> facetFields = new ArrayList<>();
+        private final List<String> facetQueries = new ArrayList<>();
+        private int facetLimit = 100;
+        private int facetMinCount = 1;
+        private final List<SolrQuery.SortClause> sorts = new ArrayList<>();
+        private final List<String> fields = new ArrayList<>();
+        private int start;
+        private int rows = -1;
+        private String cursorMark;
+
+        private Builder() { }
+
+        /**
+         * Sets the main query, all the products if empty.
+         */
+        public Builder query(String query) {
+            this.query = UtilValidate.isNotEmpty(query) ? query : "*:*";
+            return this;
+        }
+
+        /**
+         * Adds a filter on a field value, the value is escaped.
+         */
+        public Builder filter(String field, String value) {
+            filterQueries.add(field + ":" + ClientUtils.escapeQueryChars(value));
+            return this;
+        }
+
+        /**
+         * Adds a filter on a range of values of a field, an empty bound is open.
+         */
+        public Builder filterRange(String field, Object from, Object to) {
+            filterQueries.add(field + ":[" + (from != null ? ClientUtils.escapeQueryChars(from.toString()) : "*") + " TO "
+                    + (to != null ? ClientUtils.escapeQueryChars(to.toString()) : "*") + "]");
+            return this;
+        }
+
+        /**
+         * Adds a raw filter query, in the syntax of the Solr query parser.
+         */
+        public Builder filterQuery(String filterQuery) {
+            if (UtilValidate.isNotEmpty(filterQuery)) {
+                filterQueries.add(filterQuery);
+            }
+            return this;
+        }
+
+        /**
+         * Adds the counts of the values of fields to the results.
+         */
+        public Builder facetField(String... facetFields) {
+            this.facetFields.addAll(Arrays.asList(facetFields));
+            return this;
+        }
+
+        /**
+         * Adds the count of the products matching a query to the results.
+         */
+        public Builder facetQuery(String facetQuery) {
+            facetQueries.add(facetQuery);
+            return this;
+        }
+
+        /**
+         * Adds the counts of the products in consecutive ranges of a field, the last one being open.
+         * @param field the field, for instance <code>listPrice</code>
+         * @param bounds the ordered bounds of the ranges
+         */
+        public Builder facetRanges(String field, List<String> bounds) {
+            for (int i = 0; i < bounds.size(); i++) {
+                facetQueries.add(field + ":[" + bounds.get(i) + " TO " + (i + 1 < bounds.size() ? bounds.get(i + 1) : "*") + "]");
+            }
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of values counted per facet field, -1 for all.
+         */
+        public Builder facetLimit(int facetLimit) {
+            this.facetLimit = facetLimit;
+            return this;
+        }
+
+        /**
+         * Sets the minimum count of the facet field values returned.
+         */
+        public Builder facetMinCount(int facetMinCount) {
+            this.facetMinCount = facetMinCount;
+            return this;
+        }
+
+        /**
+         * Adds a sort, after the ones already added.
+         */
+        public Builder sort(String field, SolrQuery.ORDER order) {
+            sorts.add(SolrQuery.SortClause.create(field, order));
+            return this;
+        }
+
+        /**
+         * Sets the fields returned for each product, the product id is always returned.
+         */
+        public Builder fields(String... fields) {
+            this.fields.clear();
+            this.fields.add(PRODUCT_ID);
+            for (String field : fields) {
+                if (!PRODUCT_ID.equals(field)) {
+                    this.fields.add(field);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Sets the offset of the first product returned, ignored with a cursor.
+         */
+        public Builder start(int start) {
+            this.start = start;
+            return this;
+        }
+
+        /**
+         * Sets the number of products returned, -1 for the default of the index.
+         */
+        public Builder rows(int rows) {
+            this.rows = rows;
+            return this;
+        }
+
+        /**
+         * Sets the cursor to page from, {@link CursorMarkParams#CURSOR_MARK_START} for the first page, see
+         * {@link SolrProductPage#getNextCursorMark()}. The sort must end with the product id.
+         */
+        public Builder cursorMark(String cursorMark) {
+            this.cursorMark = cursorMark;
+            return this;
+        }
+
+        public SolrProductQuery build() {
+            return new SolrProductQuery(this);
+        }
+    }
+}
@@ -30,25 +30,30 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.StringUtil;
 import org.apache.ofbiz.base.util.UtilGenerics;
 import org.apache.ofbiz.base.util.UtilMisc;
 import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.Delegator;
-import org.apache.ofbiz.entity.GenericDelegator;
 import org.apache.ofbiz.entity.GenericEntityException;
 import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.util.EntityListIterator;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.service.DispatchContext;
 import org.apache.ofbiz.service.GenericServiceException;
 import org.apache.ofbiz.service.LocalDispatcher;
 import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.FacetField.Count;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -66,6 +71,9 @@ public abstract class SolrProductSearch {
     /**
      * Adds product to solr, with product denoted by productId field in instance attribute
      * - intended for use with ECAs/SECAs.
+     * <p>
+     * When <code>solr.eca.async</code> is set the product is indexed in the background once the transaction of the
+     * caller is committed, see {@link SolrIndexBuffer}; otherwise it is indexed and committed right away.
      */
     public static Map<String, Object> addToSolr(DispatchContext dctx, Map<String, Object> context) throws GenericEntityException {
         Map<String, Object> result;
@@ -75,11 +83,17 @@ public abstract class SolrProductSearch {
         String productId = (String) productInstance.get("productId");
         String solrIndexName = (String) context.get("indexName");
 
-        if (SolrUtil.isSolrEcaEnabled()) {
+        if (SolrUtil.isSolrEcaEnabled() && UtilProperties.getPropertyAsBoolean("solrconfig", "solr.eca.async", true)) {
+            SolrIndexBuffer.getInstance(dctx, solrIndexName).queueAfterCommit(productId);
+            result = ServiceUtil.returnSuccess();
+        } else if (SolrUtil.isSolrEcaEnabled()) {
             // Debug.logVerbose("Solr: addToSolr: Running indexing for productId '" + productId + "'", MODULE);
             try {
                 GenericValue product = EntityQuery.use(delegator).from("Product").where("productId", productId).queryOne();
                 Map<String, Object> dispatchContext = ProductUtil.getProductContent(product, dctx, context);
+                if (ServiceUtil.isError(dispatchContext)) {
+                    return ServiceUtil.returnError(ServiceUtil.getErrorMessage(dispatchContext));
+                }
                 dispatchContext.put("treatConnectErrorNonFatal", SolrUtil.isEcaTreatConnectErrorNonFatal());
                 dispatchContext.put("indexName", solrIndexName);
                 Map<String, Object> runResult = dispatcher.runSync("addToSolrIndex", dispatchContext);
@@ -112,7 +126,6 @@ public abstract class SolrProductSearch {
      * Adds product to solr index.
      */
     public static Map<String, Object> addToSolrIndex(DispatchContext dctx, Map<String, Object> context) throws GenericEntityException {
-        HttpSolrClient client = null;
         Locale locale = (Locale) context.get("locale");
         Map<String, Object> result;
         String productId = (String) context.get("productId");
@@ -123,8 +136,7 @@ public abstract class SolrProductSearch {
         try {
             Debug.logInfo("Solr: Generating and indexing document for productId '" + productId + "'", MODULE);
 
-            SolrUtil.getInstance();
-            client = SolrUtil.getHttpSolrClient(solrIndexName);
+            SolrClient client = SolrUtil.getSolrClient(solrIndexName);
 
             // Construct Documents
             SolrInputDocument doc1 = SolrUtil.generateSolrDocument(context);
@@ -139,6 +151,7 @@ public abstract class SolrProductSearch {
             // push Documents to server
             client.add(docs);
             client.commit();
+            SolrQueryCache.invalidate(solrIndexName);
 
             final String statusStr = UtilProperties.getMessage(RESOURCE, "SolrDocumentForProductIdAddedToSolrIndex",
                     UtilMisc.toMap("productId", context.get("productId")), locale);
@@ -169,14 +182,6 @@ public abstract class SolrProductSearch {
             Debug.logError(e, e.getMessage(), MODULE);
             result = ServiceUtil.returnError(e.toString());
             result.put("errorType", "ioError");
-        } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException e) {
-                    Debug.logError(e, MODULE);
-                }
-            }
         }
         return result;
     }
@@ -189,7 +194,6 @@ public abstract class SolrProductSearch {
     public static Map<String, Object> addListToSolrIndex(DispatchContext dctx, Map<String, Object> context) throws GenericEntityException {
         String solrIndexName = (String) context.get("indexName");
         Locale locale = (Locale) context.get("locale");
-        HttpSolrClient client = null;
         Map<String, Object> result;
         Boolean treatConnectErrorNonFatal = (Boolean) context.get("treatConnectErrorNonFatal");
         try {
@@ -207,11 +211,11 @@ public abstract class SolrProductSearch {
                 }
                 docs.add(doc1);
             }
-            SolrUtil.getInstance();
             // push Documents to server
-            client = SolrUtil.getHttpSolrClient(solrIndexName);
+            SolrClient client = SolrUtil.getSolrClient(solrIndexName);
             client.add(docs);
             client.commit();
+            SolrQueryCache.invalidate(solrIndexName);
 
             final String statusStr = UtilProperties.getMessage(RESOURCE, "SolrAddedDocumentsToSolrIndex",
                     UtilMisc.toMap("fieldList", fieldList.size()), locale);
@@ -242,14 +246,6 @@ public abstract class SolrProductSearch {
             Debug.logError(e, e.getMessage(), MODULE);
             result = ServiceUtil.returnError(e.toString());
             result.put("errorType", "ioError");
-        } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException e) {
-                    Debug.logError(e, MODULE);
-                }
-            }
         }
         return result;
     }
@@ -262,77 +258,42 @@ public abstract class SolrProductSearch {
      */
     public static Map<String, Object> runSolrQuery(DispatchContext dctx, Map<String, Object> context) {
         // get Connection
-        HttpSolrClient client = null;
         String solrIndexName = (String) context.get("indexName");
         Map<String, Object> result;
         try {
-            SolrUtil.getInstance();
-            client = SolrUtil.getHttpSolrClient(solrIndexName);
             // create Query Object
-            SolrQuery solrQuery = new SolrQuery();
-            solrQuery.setQuery((String) context.get("query"));
+            SolrProductQuery.Builder queryBuilder = SolrProductQuery.builder().query((String) context.get("query"));
             boolean faceted = (Boolean) context.get("facet");
             if (faceted) {
-                solrQuery.setFacet(faceted);
-                solrQuery.addFacetField("manu");
-                solrQuery.addFacetField("cat");
-                solrQuery.setFacetMinCount(1);
-                solrQuery.setFacetLimit(8);
-
-                solrQuery.addFacetQuery("listPrice:[0 TO 50]");
-                solrQuery.addFacetQuery("listPrice:[50 TO 100]");
-                solrQuery.addFacetQuery("listPrice:[100 TO 250]");
-                solrQuery.addFacetQuery("listPrice:[250 TO 500]");
-                solrQuery.addFacetQuery("listPrice:[500 TO 1000]");
-                solrQuery.addFacetQuery("listPrice:[1000 TO 2500]");
-                solrQuery.addFacetQuery("listPrice:[2500 TO 5000]");
-                solrQuery.addFacetQuery("listPrice:[5000 TO 10000]");
-                solrQuery.addFacetQuery("listPrice:[10000 TO 50000]");
-                solrQuery.addFacetQuery("listPrice:[50000 TO *]");
+                queryBuilder.facetField(UtilProperties.getPropertyValue("solrconfig", "solr.search.facet.fields", "manu,cat").split(","))
+                        .facetLimit(UtilProperties.getPropertyAsInteger("solrconfig", "solr.search.facet.limit", 8))
+                        .facetRanges(UtilProperties.getPropertyValue("solrconfig", "solr.search.facet.rangeField", "listPrice"),
+                                StringUtil.split(UtilProperties.getPropertyValue("solrconfig", "solr.search.facet.rangeBounds",
+                                        "0,50,100,250,500,1000,2500,5000,10000,50000"), ","));
             }
 
-            boolean spellCheck = (Boolean) context.get("spellcheck");
-            if (spellCheck) {
-                solrQuery.setParam("spellcheck", spellCheck);
-            }
-
-            boolean highLight = (Boolean) context.get("highlight");
-            if (highLight) {
-                solrQuery.setHighlight(highLight);
-                solrQuery.setHighlightSimplePre("<span class=\"highlight\">");
-                solrQuery.addHighlightField("description");
-                solrQuery.setHighlightSimplePost("</span>");
-                solrQuery.setHighlightSnippets(2);
-            }
-
-            // Set additional Parameter
-            // SolrQuery.ORDER order = SolrQuery.ORDER.desc;
-
             if (context.get("viewIndex") != null && (Integer) context.get("viewIndex") > 0) {
-                solrQuery.setStart((Integer) context.get("viewIndex"));
+                queryBuilder.start((Integer) context.get("viewIndex"));
             }
             if (context.get("viewSize") != null && (Integer) context.get("viewSize") > 0) {
-                solrQuery.setRows((Integer) context.get("viewSize"));
-            }
-
-            // if ((List) context.get("queryFilter") != null && ((ArrayList<SolrDocument>) context.get("queryFilter")).size() > 0) {
-            // List filter = (List) context.get("queryFilter");
-            // String[] tn = new String[filter.size()];
-            // Iterator it = filter.iterator();
-            // for (int i = 0; i < filter.size(); i++) {
-            // tn[i] = (String) filter.get(i);
-            // }
-            // solrQuery.setFilterQueries(tn);
-            // }
+                queryBuilder.rows((Integer) context.get("viewSize"));
+            }
+
+            // queryFilter holds space separated filters, queryFilters allows filters containing spaces
             String queryFilter = (String) context.get("queryFilter");
             if (UtilValidate.isNotEmpty(queryFilter)) {
-                solrQuery.setFilterQueries(queryFilter.split(" "));
+                for (String filterQuery : queryFilter.split(" ")) {
+                    queryBuilder.filterQuery(filterQuery);
+                }
+            }
+            List<String> queryFilters = UtilGenerics.cast(context.get("queryFilters"));
+            if (queryFilters != null) {
+                queryFilters.forEach(queryBuilder::filterQuery);
             }
             if ((String) context.get("returnFields") != null) {
-                solrQuery.setFields((String) context.get("returnFields"));
+                queryBuilder.fields(((String) context.get("returnFields")).split("[,\\s]+"));
             }
 
-            // if ((Boolean) context.get("sortByReverse"))order.reverse();
             if ((String) context.get("sortBy") != null && !((String) context.get("sortBy")).isEmpty()) {
                 SolrQuery.ORDER order;
                 if (!((Boolean) context.get("sortByReverse"))) {
@@ -340,27 +301,34 @@ public abstract class SolrProductSearch {
                 } else {
                     order = SolrQuery.ORDER.desc;
                 }
-                solrQuery.setSort(((String) context.get("sortBy")).replaceFirst("-", ""), order);
+                queryBuilder.sort(((String) context.get("sortBy")).replaceFirst("-", ""), order);
             }
 
             if ((String) context.get("facetQuery") != null) {
-                solrQuery.addFacetQuery((String) context.get("facetQuery"));
+                queryBuilder.facetQuery((String) context.get("facetQuery"));
+            }
+            SolrQuery solrQuery = queryBuilder.build().toSolrQuery();
+
+            boolean spellCheck = (Boolean) context.get("spellcheck");
+            if (spellCheck) {
+                solrQuery.setParam("spellcheck", spellCheck);
+            }
+
+            boolean highLight = (Boolean) context.get("highlight");
+            if (highLight) {
+                solrQuery.setHighlight(highLight);
+                solrQuery.setHighlightSimplePre("<span class=\"highlight\">");
+                solrQuery.addHighlightField("description");
+                solrQuery.setHighlightSimplePost("</span>");
+                solrQuery.setHighlightSnippets(2);
             }
 
-            QueryResponse rsp = client.query(solrQuery);
+            QueryResponse rsp = SolrQueryCache.query(solrIndexName, solrQuery, METHOD.GET);
             result = ServiceUtil.returnSuccess();
             result.put("queryResult", rsp);
         } catch (Exception e) {
             Debug.logError(e, e.getMessage(), MODULE);
             result = ServiceUtil.returnError(e.toString());
-        } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException e) {
-                    Debug.logError(e, MODULE);
-                }
-            }
         }
         return result;
     }
@@ -589,7 +557,8 @@ public abstract class SolrProductSearch {
             //Add toplevel categories
             String[] trailElements = productCategoryId.split("/");
 
-            //iterate over actual results
+            // The children of every level of the trail are counted by one facet of a single request
+            Map<Integer, String> categoryPaths = new TreeMap<>();
             for (String elements : trailElements) {
                 //catIds must be greater than 3 chars
                 if (elements.length() > 3) {
@@ -597,35 +566,62 @@ public abstract class SolrProductSearch {
                     String categoryPath = CategoryUtil.getCategoryNameWithTrail(elements, dctx);
                     String[] categoryPathArray = categoryPath.split("/");
                     int level = Integer.parseInt(categoryPathArray[0]);
-                    String facetQuery = CategoryUtil.getFacetFilterForCategory(categoryPath, dctx);
-                    Map<String, Object> query = SolrUtil.categoriesAvailable(catalogId, categoryPath, null, facetQuery, false, 0, 0, solrIndexName);
-                    QueryResponse cat = (QueryResponse) query.get("rows");
-                    List<Map<String, Object>> categories = new ArrayList<>();
+                    categoryPaths.put(level, categoryPath);
+                }
+            }
+            if (!categoryPaths.isEmpty()) {
+                SolrQuery solrQuery = new SolrQuery("*:*");
+                solrQuery.addFilterQuery("inStock:[1 TO *]");
+                if (catalogId != null) {
+                    solrQuery.addFilterQuery("catalog:" + catalogId);
+                }
+                // The category of each level is a tagged filter which the facets of the other levels exclude, so
+                // that each facet only counts the in stock products of its own category
+                for (Map.Entry<Integer, String> categoryPath : categoryPaths.entrySet()) {
+                    solrQuery.addFilterQuery("{!term f=cat tag=cat-" + categoryPath.getKey() + "}" + categoryPath.getValue());
+                }
+                solrQuery.setRows(0);
+                solrQuery.setFacet(true);
+                solrQuery.setFacetMinCount(1);
+                solrQuery.setFacetLimit(-1);
+                for (Map.Entry<Integer, String> categoryPath : categoryPaths.entrySet()) {
+                    List<String> excludedTags = new ArrayList<>();
+                    for (Integer level : categoryPaths.keySet()) {
+                        if (!level.equals(categoryPath.getKey())) {
+                            excludedTags.add("cat-" + level);
+                        }
+                    }
+                    // Ends with a slash so that the prefix of a category does not match the categories it prefixes
+                    String facetPrefix = CategoryUtil.getFacetFilterForCategory(categoryPath.getValue(), dctx) + "/";
+                    solrQuery.addFacetField("{!key=menu-" + categoryPath.getKey()
+                            + (excludedTags.isEmpty() ? "" : " ex=" + StringUtils.join(excludedTags, ","))
+                            + " facet.prefix='" + facetPrefix.replace("'", "\\'") + "'}cat");
+                }
+                QueryResponse cat = SolrQueryCache.query(solrIndexName, solrQuery, METHOD.POST);
 
-                    List<FacetField> catList = cat.getFacetFields();
-                    for (Iterator<FacetField> catIterator = catList.iterator(); catIterator.hasNext();) {
-                        FacetField field = catIterator.next();
-                        List<Count> catL = field.getValues();
-                        if (catL != null) {
-                            for (Iterator<Count> catIter = catL.iterator(); catIter.hasNext();) {
-                                FacetField.Count f = catIter.next();
-                                if (f.getCount() > 0) {
-                                    Map<String, Object> catMap = new HashMap<>();
-                                    LinkedList<String> iName = new LinkedList<>();
-                                    iName.addAll(Arrays.asList(f.getName().split("/")));
-                                    catMap.put("catId", iName.getLast());
-                                    iName.removeFirst();
-                                    String path = f.getName();
-                                    catMap.put("path", path);
-                                    if (level > 0) {
-                                        iName.removeLast();
-                                        catMap.put("parentCategory", StringUtils.join(iName, "/"));
-                                    } else {
-                                        catMap.put("parentCategory", null);
-                                    }
-                                    catMap.put("count", Long.toString(f.getCount()));
-                                    categories.add(catMap);
+                for (FacetField field : cat.getFacetFields()) {
+                    int level = Integer.parseInt(field.getName().substring("menu-".length()));
+                    List<Map<String, Object>> categories = new ArrayList<>();
+                    List<Count> catL = field.getValues();
+                    if (catL != null) {
+                        for (Iterator<Count> catIter = catL.iterator(); catIter.hasNext();) {
+                            FacetField.Count f = catIter.next();
+                            if (f.getCount() > 0) {
+                                Map<String, Object> catMap = new HashMap<>();
+                                LinkedList<String> iName = new LinkedList<>();
+                                iName.addAll(Arrays.asList(f.getName().split("/")));
+                                catMap.put("catId", iName.getLast());
+                                iName.removeFirst();
+                                String path = f.getName();
+                                catMap.put("path", path);
+                                if (level > 0) {
+                                    iName.removeLast();
+                                    catMap.put("parentCategory", StringUtils.join(iName, "/"));
+                                } else {
+                                    catMap.put("parentCategory", null);
                                 }
+                                catMap.put("count", Long.toString(f.getCount()));
+                                categories.add(catMap);
                             }
                         }
                     }
@@ -642,68 +638,163 @@ public abstract class SolrProductSearch {
         return result;
     }
 
+    /**
+     * Returns the metrics of the shared Solr clients.
+     */
+    public static Map<String, Object> getSolrClientMetrics(DispatchContext dctx, Map<String, Object> context) {
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("metrics", SolrClientRegistry.getInstance().getMetrics());
+        return result;
+    }
+
+    /**
+     * Measures the throughput of the document building, in documents per second, on the first products of the
+     * database: once in the calling thread, then with the configured builder threads. The documents are not sent.
+     */
+    public static Map<String, Object> benchmarkSolrDocumentBuilder(DispatchContext dctx, Map<String, Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        String solrIndexName = (String) context.get("indexName");
+        Integer productCount = (Integer) context.get("productCount");
+        try {
+            List<GenericValue> products = EntityQuery.use(delegator).from("Product").orderBy("productId").maxRows(productCount).queryList();
+            SolrClient client = SolrUtil.getSolrClient(solrIndexName);
+            // Warms up the caches shared by both runs, such as the category graph and the entity caches
+            try (SolrDocumentBuilder builder = new SolrDocumentBuilder(dctx, context, client, 1)) {
+                builder.buildDocuments(products.subList(0, Math.min(products.size(), 10)));
+            }
+            long sequentialTime;
+            try (SolrDocumentBuilder builder = new SolrDocumentBuilder(dctx, context, client, 1)) {
+                long startTime = System.nanoTime();
+                builder.buildDocuments(products);
+                sequentialTime = Math.max(System.nanoTime() - startTime, 1);
+            }
+            long parallelTime;
+            int threadCount;
+            try (SolrDocumentBuilder builder = new SolrDocumentBuilder(dctx, context, client, 0)) {
+                threadCount = builder.getThreadCount();
+                long startTime = System.nanoTime();
+                builder.buildDocuments(products);
+                parallelTime = Math.max(System.nanoTime() - startTime, 1);
+            }
+            long sequentialDocsPerSecond = products.size() * 1000000000L / sequentialTime;
+            long parallelDocsPerSecond = products.size() * 1000000000L / parallelTime;
+            Debug.logInfo("Solr: Built " + products.size() + " documents at " + sequentialDocsPerSecond + " documents/s in one thread, "
+                    + parallelDocsPerSecond + " documents/s in " + threadCount + " threads", MODULE);
+            Map<String, Object> result = ServiceUtil.returnSuccess();
+            result.put("documentCount", products.size());
+            result.put("threadCount", threadCount);
+            result.put("sequentialDocsPerSecond", sequentialDocsPerSecond);
+            result.put("parallelDocsPerSecond", parallelDocsPerSecond);
+            return result;
+        } catch (GenericEntityException e) {
+            Debug.logError(e, e.getMessage(), MODULE);
+            return ServiceUtil.returnError(e.toString());
+        }
+    }
+
+    /**
+     * Clears the cached category graph once the transaction is committed, see {@link CategoryGraph}.
+     */
+    public static Map<String, Object> clearSolrCategoryGraph(DispatchContext dctx, Map<String, Object> context) {
+        CategoryGraph.clearCacheAfterCommit();
+        return ServiceUtil.returnSuccess();
+    }
+
     /**
      * Rebuilds the solr index.
+     * <p>
+     * Products are streamed from the database and their documents are built and sent in batches, so the memory
+     * used does not depend on the size of the catalog.
+     * <p>
+     * With <code>swapCores</code> (default <code>solr.rebuild.swapCores</code>) the products are indexed into a shadow
+     * core, see {@link SolrShadowCore}, which replaces the index only if it has as many documents as built products:
+     * the index keeps serving the previous documents with its warmed caches during the whole rebuild. The products
+     * indexed by the ECAs meanwhile are applied to the shadow core before the swap. Otherwise the
+     * index itself is cleared and committed once all the products are sent, so searches see the previous index
+     * until then: the products changed meanwhile are only sent by the ECAs after the commit, see
+     * {@link SolrIndexBuffer#pause()}.
      */
     public static Map<String, Object> rebuildSolrIndex(DispatchContext dctx, Map<String, Object> context) throws GenericEntityException {
-        HttpSolrClient client = null;
         Map<String, Object> result;
-        GenericDelegator delegator = (GenericDelegator) dctx.getDelegator();
-        LocalDispatcher dispatcher = dctx.getDispatcher();
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
+        Delegator delegator = dctx.getDelegator();
         Locale locale = (Locale) context.get("locale");
         String solrIndexName = (String) context.get("indexName");
 
         Boolean treatConnectErrorNonFatal = (Boolean) context.get("treatConnectErrorNonFatal");
+        Boolean swapCoresParam = (Boolean) context.get("swapCores");
+        boolean swapCores = swapCoresParam != null ? swapCoresParam
+                : UtilProperties.getPropertyAsBoolean("solrconfig", "solr.rebuild.swapCores", false);
 
         try {
-            SolrUtil.getInstance();
-            client = SolrUtil.getHttpSolrClient(solrIndexName);
-
-            // now lets fetch all products
-            List<Map<String, Object>> solrDocs = new ArrayList<>();
-            List<GenericValue> products = delegator.findList("Product", null, null, null, null, true);
-            int numDocs = 0;
-            if (products != null) {
-                numDocs = products.size();
-            }
-
-            Debug.logInfo("Solr: Clearing solr index and rebuilding with " + numDocs + " found products", MODULE);
+            long numProducts = EntityQuery.use(delegator).from("Product").queryCount();
+            // The category trails of all the documents are resolved from one fresh load of the category tree
+            CategoryGraph.reload(delegator);
+            int numDocs;
+            if (swapCores) {
+                SolrShadowCore shadowCore = SolrShadowCore.create(SolrClientRegistry.getInstance().getAdminClient(), solrIndexName,
+                        UtilProperties.getPropertyValue("solrconfig", "solr.rebuild.configSet", "solrdefault"));
+                // The products the ECAs send to the index during the rebuild are applied to the shadow core too
+                SolrIndexBuffer indexBuffer = SolrIndexBuffer.getInstance(dctx, solrIndexName);
+                indexBuffer.startRecording();
+                try {
+                    Debug.logInfo("Solr: Rebuilding index " + solrIndexName + " in " + shadowCore.getName() + " with " + numProducts
+                            + " found products", MODULE);
+                    SolrClient shadowClient = SolrUtil.getSolrClient(shadowCore.getName());
+                    numDocs = indexProducts(dctx, context, shadowClient, numProducts);
+                    shadowClient.commit();
+                    long numIndexedDocs = SolrShadowCore.countDocuments(shadowClient);
+                    if (numIndexedDocs != numDocs) {
+                        final String statusMsg = UtilProperties.getMessage(RESOURCE, "SolrRebuiltIndexDocumentCountMismatch",
+                                UtilMisc.toMap("numDocs", numDocs, "numIndexedDocs", numIndexedDocs), locale);
+                        Debug.logError("Solr: " + statusMsg, MODULE);
+                        return ServiceUtil.returnError(statusMsg);
+                    }
+                    Collection<String> recordedProductIds = indexBuffer.takeRecordedProductIds(false);
+                    if (!recordedProductIds.isEmpty()) {
+                        Debug.logInfo("Solr: Applying " + recordedProductIds.size() + " products changed during the rebuild to "
+                                + shadowCore.getName(), MODULE);
+                        indexProducts(dctx, context, shadowClient, recordedProductIds);
+                        shadowClient.commit();
+                    }
+                    shadowCore.swap();
+                    SolrQueryCache.invalidate(solrIndexName);
+                    // Products sent to the previous core since they were applied to the shadow core are sent again
+                    indexBuffer.queue(indexBuffer.takeRecordedProductIds(true));
+                } finally {
+                    indexBuffer.takeRecordedProductIds(true);
+                    shadowCore.discard();
+                }
+            } else {
+                SolrClient client = SolrUtil.getSolrClient(solrIndexName);
+                Debug.logInfo("Solr: Clearing solr index and rebuilding with " + numProducts + " found products", MODULE);
 
-            Iterator<GenericValue> productIterator = products.iterator();
-            while (productIterator.hasNext()) {
-                GenericValue product = productIterator.next();
-                Map<String, Object> dispatchContext = ProductUtil.getProductContent(product, dctx, context);
-                solrDocs.add(dispatchContext);
+                // The commitWithin of the products sent by the ECAs would expose the index while it is rebuilt
+                SolrIndexBuffer indexBuffer = SolrIndexBuffer.getInstance(dctx, solrIndexName);
+                indexBuffer.pause();
+                try {
+                    // this removes everything from the index, it is committed with the new documents
+                    client.deleteByQuery("*:*");
+                    numDocs = indexProducts(dctx, context, client, numProducts);
+                    client.commit();
+                } finally {
+                    indexBuffer.resume();
+                }
+                SolrQueryCache.invalidate(solrIndexName);
             }
 
-            // this removes everything from the index
-            client.deleteByQuery("*:*");
-            client.commit();
-
-            // THis adds all products to the Index (instantly)
-            Map<String, Object> runResult = dispatcher.runSync("addListToSolrIndex",
-                    UtilMisc.toMap("fieldList", solrDocs, "userLogin", userLogin, "locale", locale, "indexName",
-                    solrIndexName, "treatConnectErrorNonFatal", treatConnectErrorNonFatal));
-            if (ServiceUtil.isError(runResult)) {
-                return ServiceUtil.returnError(ServiceUtil.getErrorMessage(runResult));
-            }
-            String runMsg = ServiceUtil.getErrorMessage(runResult);
-            if (UtilValidate.isEmpty(runMsg)) {
-                runMsg = null;
-            }
-            if (ServiceUtil.isError(runResult)) {
-                result = ServiceUtil.returnError(runMsg);
-            } else if (ServiceUtil.isFailure(runResult)) {
-                result = ServiceUtil.returnFailure(runMsg);
-            } else {
-                final String statusMsg = UtilProperties.getMessage(RESOURCE, "SolrClearedSolrIndexAndReindexedDocuments",
-                        UtilMisc.toMap("numDocs", numDocs), locale);
-                result = ServiceUtil.returnSuccess(statusMsg);
-            }
-        } catch (IOException | GenericServiceException e) {
+            final String statusMsg = UtilProperties.getMessage(RESOURCE, "SolrClearedSolrIndexAndReindexedDocuments",
+                    UtilMisc.toMap("numDocs", numDocs), locale);
+            result = ServiceUtil.returnSuccess(statusMsg);
+        } catch (IllegalStateException e) {
+            Debug.logWarning("Solr: " + e.getMessage(), MODULE);
+            result = ServiceUtil.returnError(e.getMessage());
+        } catch (IOException e) {
             Debug.logError(e, e.getMessage(), MODULE);
             result = ServiceUtil.returnError(e.toString());
+        } catch (InterruptedException e) {
+            Debug.logError(e, "Solr: interrupted while pausing the index buffer of " + solrIndexName, MODULE);
+            Thread.currentThread().interrupt();
+            result = ServiceUtil.returnError(e.toString());
         } catch (SolrServerException e) {
             if (e.getCause() != null && e.getCause() instanceof ConnectException) {
                 final String statusStr = UtilProperties.getMessage(RESOURCE, "SolrFailureConnectingToSolrServerToRebuildIndex", locale);
@@ -718,15 +809,78 @@ public abstract class SolrProductSearch {
                 Debug.logError(e, e.getMessage(), MODULE);
                 result = ServiceUtil.returnError(e.toString());
             }
-        } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException e) {
-                    Debug.logError(e, e.getMessage(), MODULE);
+        }
+        return result;
+    }
+
+    /**
+     * Indexes some products into a core, by chunks, products which do not exist anymore are removed from the core.
+     */
+    private static void indexProducts(DispatchContext dctx, Map<String, Object> context, SolrClient client, Collection<String> productIds)
+            throws GenericEntityException, SolrServerException, IOException {
+        int chunkSize = UtilProperties.getPropertyAsInteger("solrconfig", "solr.index.builder.chunkSize", 100);
+        List<String> remainingProductIds = new ArrayList<>(productIds);
+        try (SolrDocumentBuilder builder = new SolrDocumentBuilder(dctx, context, client, 0)) {
+            for (int start = 0; start < remainingProductIds.size(); start += chunkSize) {
+                List<String> chunk = remainingProductIds.subList(start, Math.min(start + chunkSize, remainingProductIds.size()));
+                List<GenericValue> products = EntityQuery.use(dctx.getDelegator()).from("Product")
+                        .where(EntityCondition.makeCondition("productId", EntityOperator.IN, chunk)).queryList();
+                List<String> removedProductIds = new ArrayList<>(chunk);
+                for (GenericValue product : products) {
+                    removedProductIds.remove(product.getString("productId"));
+                }
+                List<SolrInputDocument> documents = builder.buildDocuments(products);
+                if (!documents.isEmpty()) {
+                    client.add(documents);
+                }
+                if (!removedProductIds.isEmpty()) {
+                    client.deleteById(removedProductIds);
                 }
             }
         }
-        return result;
+    }
+
+    /**
+     * Builds the documents of all the products and sends them to an index, without committing them.
+     * @return the number of documents sent
+     */
+    private static int indexProducts(DispatchContext dctx, Map<String, Object> context, SolrClient client, long numProducts)
+            throws GenericEntityException, SolrServerException, IOException {
+        Delegator delegator = dctx.getDelegator();
+        int batchSize = UtilProperties.getPropertyAsInteger("solrconfig", "solr.rebuild.batchSize", 500);
+        int queueSize = UtilProperties.getPropertyAsInteger("solrconfig", "solr.rebuild.queueSize", 4);
+        int progressInterval = UtilProperties.getPropertyAsInteger("solrconfig", "solr.rebuild.progressInterval", 10000);
+        int chunkSize = UtilProperties.getPropertyAsInteger("solrconfig", "solr.index.builder.chunkSize", 100);
+        int numDocs = 0;
+        int nextProgress = progressInterval;
+        long startTime = System.currentTimeMillis();
+        try (EntityListIterator products = EntityQuery.use(delegator).from("Product").orderBy("productId").queryIterator();
+                SolrDocumentBuilder builder = new SolrDocumentBuilder(dctx, context, client, 0);
+                SolrDocumentBatcher batcher = new SolrDocumentBatcher(client, batchSize, queueSize, -1)) {
+            List<GenericValue> chunk = new ArrayList<>(chunkSize);
+            GenericValue product;
+            do {
+                product = products.next();
+                if (product != null) {
+                    chunk.add(product);
+                }
+                if (chunk.size() >= chunkSize || (product == null && !chunk.isEmpty())) {
+                    // The documents of the chunk are built concurrently while the previous ones are sent
+                    for (SolrInputDocument doc : builder.buildDocuments(chunk)) {
+                        batcher.add(doc);
+                        numDocs++;
+                    }
+                    chunk.clear();
+                    if (numDocs >= nextProgress) {
+                        nextProgress += progressInterval;
+                        long elapsedTime = Math.max(System.currentTimeMillis() - startTime, 1);
+                        Debug.logInfo("Solr: Built " + numDocs + " of " + numProducts + " documents, " + batcher.getSentCount() + " sent ("
+                                + (numDocs * 1000L / elapsedTime) + " documents/s)", MODULE);
+                    }
+                }
+            } while (product != null);
+        }
+        Debug.logInfo("Solr: Indexed " + numDocs + " documents in " + (System.currentTimeMillis() - startTime) + " ms", MODULE);
+        return numDocs;
     }
 }
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.function.Consumer;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.impl.InputStreamResponseParser;
+import org.apache.solr.client.solrj.io.stream.JSONTupleStream;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Runs {@link SolrProductQuery} searches on the product indexes and returns {@link SolrProductHit} projections
+ * instead of the raw responses.
+ * <p>
+ * Three ways of reading the results are provided:
+ * <ul>
+ * <li>{@link #search(String, SolrProductQuery)} returns one page with its facets, through {@link SolrQueryCache}.</li>
+ * <li>{@link #stream(String, SolrProductQuery, Consumer)} reads every matching product with a deep paging cursor,
+ * <code>solr.search.stream.rows</code> products per request, and hands each one to a consumer as it is parsed, so
+ * neither the pages nor the results are held in memory. Any stored field can be returned.</li>
+ * <li>{@link #export(String, SolrProductQuery, Consumer)} reads every matching product in a single request to the
+ * <code>/export</code> handler, which is the fastest for very large result sets but only returns and sorts on fields
+ * with doc values.</li>
+ * </ul>
+ */
+public final class SolrProductSearcher {
+
+    private static final String MODULE = SolrProductSearcher.class.getName();
+    private static final String SOLR_CONFIG_NAME = "solrconfig.properties";
+    private static final String EXPORT_PATH = "/export";
+
+    private SolrProductSearcher() { }
+
+    /**
+     * Searches a page of products.
+     * @param solrIndexName the index name
+     * @param query the query
+     * @return the page
+     * @throws SolrServerException if the query failed
+     * @throws IOException if the index could not be reached
+     */
+    public static SolrProductPage search(String solrIndexName, SolrProductQuery query) throws SolrServerException, IOException {
+        return SolrProductPage.of(SolrQueryCache.query(solrIndexName, query.toSolrQuery(), METHOD.GET));
+    }
+
+    /**
+     * Reads all the products matching a query, page by page with a cursor. The facets are ignored and the sort is
+     * completed with the product id if needed. The query starts from its cursor if it has one.
+     * @param solrIndexName the index name
+     * @param query the query
+     * @param consumer the consumer of the products, called in the order of the sort
+     * @return the number of products read
+     * @throws SolrServerException if a query failed
+     * @throws IOException if the index could not be reached
+     */
+    public static long stream(String solrIndexName, SolrProductQuery query, Consumer<SolrProductHit> consumer)
+            throws SolrServerException, IOException {
+        SolrQuery solrQuery = query.toSolrQuery();
+        solrQuery.setFacet(false);
+        solrQuery.setStart(null);
+        if (!query.isSortedByUniqueKey()) {
+            solrQuery.addSort(SolrProductQuery.PRODUCT_ID, SolrQuery.ORDER.asc);
+        }
+        solrQuery.setRows(query.getRows() > 0 ? query.getRows()
+                : UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.search.stream.rows", 1000));
+
+        SolrClient client = SolrUtil.getSolrClient(solrIndexName);
+        HitCallback callback = new HitCallback(consumer);
+        String cursorMark = query.getCursorMark() != null ? query.getCursorMark() : CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+            solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            QueryResponse response = client.queryAndStreamResponse(solrQuery, callback);
+            String nextCursorMark = response.getNextCursorMark();
+            // The cursor does not move anymore once the last product was read
+            if (nextCursorMark == null || nextCursorMark.equals(cursorMark)) {
+                break;
+            }
+            cursorMark = nextCursorMark;
+        }
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: streamed " + callback.count + " products of " + solrIndexName + " for " + query, MODULE);
+        }
+        return callback.count;
+    }
+
+    /**
+     * Reads all the products matching a query through the export handler. The returned and sort fields must have doc
+     * values, the product id is returned and sorted on if the query does not set them. The facets, paging and cursor
+     * are ignored.
+     * @param solrIndexName the index name
+     * @param query the query
+     * @param consumer the consumer of the products, called in the order of the sort
+     * @return the number of products read
+     * @throws SolrServerException if the export failed, for instance on a field without doc values
+     * @throws IOException if the index could not be reached
+     */
+    public static long export(String solrIndexName, SolrProductQuery query, Consumer<SolrProductHit> consumer)
+            throws SolrServerException, IOException {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.Q, query.getQuery());
+        if (!query.getFilterQueries().isEmpty()) {
+            params.set(CommonParams.FQ, query.getFilterQueries().toArray(new String[0]));
+        }
+        StringJoiner sort = new StringJoiner(",");
+        query.getSorts().forEach(sortClause -> sort.add(sortClause.getItem() + " " + sortClause.getOrder()));
+        params.set(CommonParams.SORT, sort.length() > 0 ? sort.toString() : SolrProductQuery.PRODUCT_ID + " asc");
+        params.set(CommonParams.FL, query.getFields().isEmpty() ? SolrProductQuery.PRODUCT_ID : String.join(",", query.getFields()));
+
+        QueryRequest request = new QueryRequest(params, METHOD.POST);
+        request.setPath(EXPORT_PATH);
+        request.setResponseParser(new InputStreamResponseParser("json"));
+        // The export response is streamed as JSON, which the embedded server does not provide
+        NamedList<Object> response = SolrClientRegistry.getInstance().getHttpClient(solrIndexName).request(request);
+        long count = 0;
+        JSONTupleStream tuples = new JSONTupleStream(new InputStreamReader((InputStream) response.get("stream"), StandardCharsets.UTF_8));
+        try {
+            Map<String, Object> tuple;
+            while ((tuple = tuples.next()) != null) {
+                if (tuple.containsKey("EXCEPTION")) {
+                    throw new SolrServerException("Could not export " + solrIndexName + ": " + tuple.get("EXCEPTION"));
+                }
+                consumer.accept(SolrProductHit.of(tuple));
+                count++;
+            }
+        } finally {
+            tuples.close();
+        }
+        if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: exported " + count + " products of " + solrIndexName + " for " + params, MODULE);
+        }
+        return count;
+    }
+
+    /**
+     * Hands the documents to the consumer as they are parsed.
+     */
+    private static final class HitCallback extends StreamingResponseCallback {
+        private final Consumer<SolrProductHit> consumer;
+        private long count;
+
+        private HitCallback(Consumer<SolrProductHit> consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void streamSolrDocument(SolrDocument document) {
+            consumer.accept(SolrProductHit.of(document));
+            count++;
+        }
+
+        @Override
+        public void streamDocListInfo(long numFound, long start, Float maxScore) {
+        }
+    }
+}
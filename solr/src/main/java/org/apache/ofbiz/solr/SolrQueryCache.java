@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.cache.UtilCache;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.LukeRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+
+/**
+ * Caches the responses of the read queries sent to the Solr indexes, see <code>solr.query.cache.*</code>.
+ * <p>
+ * A response is cached under its index, the version of the index and the normalized parameters of the query: the
+ * parameters are sorted by name, and the values of the filter queries and facets, whose order does not change the
+ * response, are sorted too. The version of an index is checked at most every
+ * <code>solr.query.cache.versionCheckInterval</code> ms, so a commit makes the previous responses unreachable within
+ * that delay; the writes of this JVM invalidate the version immediately. Entries also expire after
+ * <code>solr.query.cache.expireTime</code> ms and the least recently used ones are evicted beyond
+ * <code>solr.query.cache.maxSize</code> responses.
+ */
+public final class SolrQueryCache {
+
+    private static final String MODULE = SolrQueryCache.class.getName();
+    private static final String SOLR_CONFIG_NAME = "solrconfig.properties";
+    private static final Set<String> UNORDERED_PARAMS = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(CommonParams.FQ,
+            FacetParams.FACET_FIELD, FacetParams.FACET_QUERY, FacetParams.FACET_PIVOT)));
+
+    private static final UtilCache<String, QueryResponse> QUERY_CACHE = UtilCache.createUtilCache("solr.QueryCache",
+            UtilProperties.getPropertyAsInteger(SOLR_CONFIG_NAME, "solr.query.cache.maxSize", 1000), 0,
+            UtilProperties.getPropertyAsLong(SOLR_CONFIG_NAME, "solr.query.cache.expireTime", 60000L), true);
+    private static final Map<String, IndexVersion> INDEX_VERSIONS = new ConcurrentHashMap<>();
+
+    private SolrQueryCache() { }
+
+    /**
+     * Runs a read query on an index, or gets its response from the cache. The response is shared and must not be
+     * modified.
+     * @param solrIndexName the index name
+     * @param solrQuery the query
+     * @param method the HTTP method of the request
+     * @return the response
+     * @throws SolrServerException if the query failed
+     * @throws IOException if the index could not be reached
+     */
+    public static QueryResponse query(String solrIndexName, SolrQuery solrQuery, METHOD method) throws SolrServerException, IOException {
+        SolrClient client = SolrUtil.getSolrClient(solrIndexName);
+        if (!UtilProperties.getPropertyAsBoolean(SOLR_CONFIG_NAME, "solr.query.cache.enabled", true)) {
+            return client.query(solrQuery, method);
+        }
+        String cacheKey = solrIndexName + "::" + getIndexVersion(solrIndexName, client) + "::" + normalize(solrQuery);
+        QueryResponse response = QUERY_CACHE.get(cacheKey);
+        if (response == null) {
+            response = client.query(solrQuery, method);
+            QUERY_CACHE.put(cacheKey, response);
+        } else if (Debug.verboseOn()) {
+            Debug.logVerbose("Solr: cached response for " + cacheKey, MODULE);
+        }
+        return response;
+    }
+
+    /**
+     * Forgets the version of an index after a write from this JVM, so that the next query checks it again.
+     * @param solrIndexName the index name
+     */
+    public static void invalidate(String solrIndexName) {
+        INDEX_VERSIONS.remove(solrIndexName);
+    }
+
+    public static void clearCache() {
+        INDEX_VERSIONS.clear();
+        QUERY_CACHE.clear();
+    }
+
+    /**
+     * Builds the cache key of a query from its parameters, whatever the order they were set in.
+     * @param solrQuery the query
+     * @return the normalized parameters
+     */
+    public static String normalize(SolrQuery solrQuery) {
+        StringBuilder normalized = new StringBuilder();
+        for (String name : new TreeSet<>(solrQuery.getParameterNames())) {
+            List<String> values = new ArrayList<>(Arrays.asList(solrQuery.getParams(name)));
+            if (UNORDERED_PARAMS.contains(name)) {
+                Collections.sort(values);
+            }
+            for (String value : values) {
+                normalized.append(name).append('=').append(value.trim()).append('&');
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static long getIndexVersion(String solrIndexName, SolrClient client) throws SolrServerException, IOException {
+        long now = System.currentTimeMillis();
+        IndexVersion indexVersion = INDEX_VERSIONS.get(solrIndexName);
+        if (indexVersion == null || now - indexVersion.checkTime >= UtilProperties.getPropertyAsLong(SOLR_CONFIG_NAME,
+                "solr.query.cache.versionCheckInterval", 1000L)) {
+            LukeRequest lukeRequest = new LukeRequest();
+            lukeRequest.setNumTerms(0);
+            lukeRequest.setShowSchema(false);
+            Object version = lukeRequest.process(client).getIndexInfo().get("version");
+            indexVersion = new IndexVersion(version instanceof Number ? ((Number) version).longValue() : -1L, now);
+            INDEX_VERSIONS.put(solrIndexName, indexVersion);
+        }
+        return indexVersion.version;
+    }
+
+    /**
+     * The version of an index and the time it was read.
+     */
+    private static final class IndexVersion {
+        private final long version;
+        private final long checkTime;
+
+        private IndexVersion(long version, long checkTime) {
+            this.version = version;
+            this.checkTime = checkTime;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.base.util.UtilValidate;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.common.params.CoreAdminParams.CoreAdminAction;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * A core an index is rebuilt into while the index keeps serving searches, then atomically swapped with it.
+ * <p>
+ * The shadow core is named after the index with a <code>_rebuild</code> suffix and uses the given config set, so it
+ * has the same schema and configuration as the index. Its instance directory, under the core root directory
+ * <code>solr.core.rootDir</code>, is timestamped so that a rebuild never reuses the directory of the core it replaces.
+ * Once swapped the shadow name designates the previous core, which is unloaded with its data.
+ * <p>
+ * A swap rewrites the <code>core.properties</code> of both cores and the unload deletes the one of the previous core,
+ * so cores are only swapped when <code>solr.core.rootDir</code> keeps them out of the Solr home of the plugin.
+ */
+public final class SolrShadowCore {
+
+    private static final String MODULE = SolrShadowCore.class.getName();
+    private static final String SHADOW_SUFFIX = "_rebuild";
+    private static final String SOLR_CONFIG_NAME = "solrconfig.properties";
+    private static final Set<String> REBUILT_INDEXES = Collections.synchronizedSet(new HashSet<>());
+
+    private final SolrClient adminClient;
+    private final String indexName;
+    private final String name;
+    private boolean released;
+
+    private SolrShadowCore(SolrClient adminClient, String indexName) {
+        this.adminClient = adminClient;
+        this.indexName = indexName;
+        this.name = indexName + SHADOW_SUFFIX;
+    }
+
+    /**
+     * Creates the shadow core of an index, after unloading the one a previous failed rebuild could have left.
+     * @param adminClient the client of the core administration handler
+     * @param indexName the name of the index
+     * @param configSet the config set of the index, a directory of the Solr home containing a <code>conf</code> directory
+     * @return the shadow core, to be either swapped or discarded
+     * @throws SolrServerException if the core could not be created
+     * @throws IOException if the core administration handler could not be reached
+     * @throws IllegalStateException if the index is already being rebuilt or no core root directory is set
+     */
+    public static SolrShadowCore create(SolrClient adminClient, String indexName, String configSet) throws SolrServerException, IOException {
+        if (getCoreRootDirectory() == null) {
+            throw new IllegalStateException("The cores of index " + indexName + " can only be swapped once solr.core.rootDir is set");
+        }
+        if (!REBUILT_INDEXES.add(indexName)) {
+            throw new IllegalStateException("The index " + indexName + " is already being rebuilt");
+        }
+        SolrShadowCore shadowCore = new SolrShadowCore(adminClient, indexName);
+        try {
+            if (shadowCore.exists()) {
+                Debug.logWarning("Solr: Unloading the shadow core " + shadowCore.name + " left by a previous rebuild", MODULE);
+                shadowCore.unload();
+            }
+            CoreAdminRequest.Create create = new CoreAdminRequest.Create();
+            create.setCoreName(shadowCore.name);
+            create.setInstanceDir(shadowCore.name + "_" + System.currentTimeMillis());
+            create.setConfigSet(configSet);
+            create.process(adminClient);
+        } catch (SolrServerException | IOException | RuntimeException e) {
+            REBUILT_INDEXES.remove(indexName);
+            throw e;
+        }
+        Debug.logInfo("Solr: Created the shadow core " + shadowCore.name + " to rebuild " + indexName, MODULE);
+        return shadowCore;
+    }
+
+    /**
+     * Gets the name of the shadow core, to get its client.
+     * @return the core name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the number of documents of a core visible to searches.
+     * @param client the client of the core
+     * @return the number of documents
+     * @throws SolrServerException if the core could not be searched
+     * @throws IOException if the core could not be reached
+     */
+    public static long countDocuments(SolrClient client) throws SolrServerException, IOException {
+        SolrQuery query = new SolrQuery("*:*");
+        query.setRows(0);
+        return client.query(query).getResults().getNumFound();
+    }
+
+    /**
+     * Swaps the shadow core with the index, then unloads the previous index and deletes its data. Searches on the
+     * index name see the previous documents until the swap, then the new ones.
+     * @throws SolrServerException if the cores could not be swapped
+     * @throws IOException if the core administration handler could not be reached
+     */
+    public void swap() throws SolrServerException, IOException {
+        CoreAdminRequest swap = new CoreAdminRequest();
+        swap.setAction(CoreAdminAction.SWAP);
+        swap.setCoreName(indexName);
+        swap.setOtherCoreName(name);
+        swap.process(adminClient);
+        Debug.logInfo("Solr: Swapped the shadow core " + name + " with " + indexName, MODULE);
+        try {
+            unload();
+        } catch (SolrServerException | IOException e) {
+            // The index is already rebuilt, the previous core is unloaded by the next rebuild
+            Debug.logWarning(e, "Solr: Could not unload the previous core of " + indexName, MODULE);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Unloads the shadow core and deletes it, the index is left untouched. Does nothing once swapped.
+     */
+    public void discard() {
+        if (released) {
+            return;
+        }
+        try {
+            unload();
+            Debug.logInfo("Solr: Discarded the shadow core " + name, MODULE);
+        } catch (SolrServerException | IOException e) {
+            Debug.logWarning(e, "Solr: Could not unload the shadow core " + name, MODULE);
+        } finally {
+            release();
+        }
+    }
+
+    private boolean exists() throws SolrServerException, IOException {
+        NamedList<Object> status = CoreAdminRequest.getStatus(name, adminClient).getCoreStatus(name);
+        return status != null && status.size() > 0;
+    }
+
+    private void unload() throws SolrServerException, IOException {
+        NamedList<Object> status = CoreAdminRequest.getStatus(name, adminClient).getCoreStatus(name);
+        String instanceDir = status != null ? (String) status.get("instanceDir") : null;
+        CoreAdminRequest.Unload unload = new CoreAdminRequest.Unload(true);
+        unload.setCoreName(name);
+        unload.setDeleteDataDir(true);
+        // Only the directories of the core root directory are deleted, never a config set of the Solr home
+        Path coreRootDirectory = getCoreRootDirectory();
+        unload.setDeleteInstanceDir(instanceDir != null && coreRootDirectory != null
+                && Paths.get(instanceDir).toAbsolutePath().normalize().startsWith(coreRootDirectory));
+        unload.process(adminClient);
+    }
+
+    /**
+     * Gets the directory the cores are created in, see <code>solr.core.rootDir</code>.
+     * @return the absolute directory, <code>null</code> if the cores are created in the Solr home
+     */
+    public static Path getCoreRootDirectory() {
+        String coreRootDirectory = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.core.rootDir");
+        return UtilValidate.isNotEmpty(coreRootDirectory) ? Paths.get(coreRootDirectory).toAbsolutePath().normalize() : null;
+    }
+
+    private void release() {
+        released = true;
+        REBUILT_INDEXES.remove(indexName);
+    }
+}
@@ -18,20 +18,13 @@
  *******************************************************************************/
 package org.apache.ofbiz.solr;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrRequest.METHOD;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
@@ -42,7 +35,6 @@ import org.apache.ofbiz.base.component.ComponentConfig.WebappInfo;
 import org.apache.ofbiz.base.component.ComponentException;
 import org.apache.ofbiz.base.util.Debug;
 import org.apache.ofbiz.base.util.UtilGenerics;
-import org.apache.ofbiz.base.util.UtilHttp;
 import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.GenericEntityException;
@@ -58,24 +50,6 @@ public final class SolrUtil {
             "listPrice", "defaultPrice", "inStock", "isVirtual" };
 
     private static final String SOLR_CONFIG_NAME = "solrconfig.properties";
-    private static final String SOLR_URL = makeSolrWebappUrl();
-
-    private static final String SOCKET_TIMEOUT_STRING = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.socket.timeout");
-
-    private static final String CON_TIMEOUT_STRING = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.connection.timeout");
-
-    private static final String CLIENT_USER_NAME = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.username");
-
-    private static final String CLIENT_PASSWORD = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.client.password");
-
-    private static final Integer SOCKET_TIMEOUT = getSocketTimeout();
-
-    private static final Integer CON_TIMEOUT = getConnectionTimeout();
-
-    private static final String TRUST_SELF_SIGN_CERT_STRING = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME,
-            "solr.client.trust.selfsigned.cert", "false");
-
-    private static final boolean TRUST_SELF_SIGNED_CERT = getTrustSelfSignedCert();
 
     public static String makeSolrWebappUrl() {
         final String solrWebappProtocol = UtilProperties.getPropertyValue(SOLR_CONFIG_NAME, "solr.webapp.protocol");
@@ -94,32 +68,6 @@ public final class SolrUtil {
         return solrWebappProtocol + "://" + solrWebappDomainName + ":" + solrPort + solrWebappPath;
     }
 
-    private static Integer getSocketTimeout() {
-        if (UtilValidate.isNotEmpty(SOCKET_TIMEOUT_STRING)) {
-            try {
-                return Integer.parseInt(SOCKET_TIMEOUT_STRING);
-            } catch (Exception e) {
-                return null;
-            }
-        }
-        return null;
-    }
-
-    private static Integer getConnectionTimeout() {
-        if (UtilValidate.isNotEmpty(CON_TIMEOUT_STRING)) {
-            try {
-                return Integer.parseInt(CON_TIMEOUT_STRING);
-            } catch (Exception e) {
-                return null;
-            }
-        }
-        return null;
-    }
-
-    private static boolean getTrustSelfSignedCert() {
-        return "true".equals(TRUST_SELF_SIGN_CERT_STRING);
-    }
-
     public static boolean isSolrEcaEnabled() {
         Boolean ecaEnabled = null;
         String sysProp = System.getProperty("ofbiz.solr.eca.enabled");
@@ -238,11 +186,9 @@ public final class SolrUtil {
                                                           boolean displayproducts, int viewIndex, int viewSize, String solrIndexName) {
         // create the data model
         Map<String, Object> result = new HashMap<>();
-        HttpSolrClient client = null;
         QueryResponse returnMap = new QueryResponse();
         try {
             // do the basic query
-            client = getHttpSolrClient(solrIndexName);
             // create Query Object
             String query = "inStock[1 TO *]";
             if (categoryId != null) {
@@ -281,7 +227,7 @@ public final class SolrUtil {
             if (Debug.verboseOn()) {
                 Debug.logVerbose("solr: solrQuery: " + solrQuery, MODULE);
             }
-            returnMap = client.query(solrQuery, METHOD.POST);
+            returnMap = SolrQueryCache.query(solrIndexName, solrQuery, METHOD.POST);
             result.put("rows", returnMap);
             result.put("numFound", returnMap.getResults().getNumFound());
         } catch (Exception e) {
@@ -294,43 +240,21 @@ public final class SolrUtil {
         return new SolrUtil();
     }
 
-    public static HttpSolrClient getHttpSolrClient(String solrIndexName) throws ClientProtocolException, IOException {
-        HttpClientContext httpContext = HttpClientContext.create();
-
-        CloseableHttpClient httpClient = null;
-        if (TRUST_SELF_SIGNED_CERT) {
-            httpClient = UtilHttp.getAllowAllHttpClient();
-        } else {
-            httpClient = HttpClients.createDefault();
-        }
-
-        RequestConfig requestConfig = null;
-        if (UtilValidate.isNotEmpty(SOCKET_TIMEOUT) && UtilValidate.isNotEmpty(CON_TIMEOUT)) {
-            requestConfig = RequestConfig.custom()
-                  .setSocketTimeout(SOCKET_TIMEOUT)
-                  .setConnectTimeout(CON_TIMEOUT)
-                  .setRedirectsEnabled(true)
-                  .build();
-        } else if (UtilValidate.isNotEmpty(SOCKET_TIMEOUT)) {
-            requestConfig = RequestConfig.custom()
-                    .setSocketTimeout(SOCKET_TIMEOUT)
-                    .setRedirectsEnabled(true)
-                    .build();
-        } else if (UtilValidate.isNotEmpty(CON_TIMEOUT)) {
-            requestConfig = RequestConfig.custom()
-                    .setConnectTimeout(CON_TIMEOUT)
-                    .setRedirectsEnabled(true)
-                    .build();
-        } else {
-            requestConfig = RequestConfig.custom()
-                    .setRedirectsEnabled(true)
-                    .build();
-        }
+    /**
+     * Gets the shared client of an index, see {@link SolrClientRegistry}.
+     * @param solrIndexName the index name
+     * @return the client, it must not be closed
+     */
+    public static SolrClient getSolrClient(String solrIndexName) {
+        return SolrClientRegistry.getInstance().getClient(solrIndexName);
+    }
 
-        HttpGet httpLogin = new HttpGet(SOLR_URL + "/control/login?USERNAME=" + CLIENT_USER_NAME + "&PASSWORD=" + CLIENT_PASSWORD);
-        httpLogin.setConfig(requestConfig);
-        CloseableHttpResponse loginResponse = httpClient.execute(httpLogin, httpContext);
-        loginResponse.close();
-        return new HttpSolrClient.Builder(SOLR_URL + "/" + solrIndexName).withHttpClient(httpClient).build();
+    /**
+     * Gets the shared HTTP client of an index.
+     * @deprecated use {@link #getSolrClient(String)}, the client is shared and closing it is not needed anymore
+     */
+    @Deprecated
+    public static HttpSolrClient getHttpSolrClient(String solrIndexName) {
+        return SolrClientRegistry.getInstance().getHttpClient(solrIndexName);
     }
 }
@@ -0,0 +1,487 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.apache.ofbiz.solr.test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.util.Version;
+import org.apache.ofbiz.base.lang.JSON;
+import org.apache.ofbiz.base.util.Debug;
+import org.apache.ofbiz.base.util.UtilDateTime;
+import org.apache.ofbiz.base.util.UtilMisc;
+import org.apache.ofbiz.base.util.UtilProperties;
+import org.apache.ofbiz.entity.Delegator;
+import org.apache.ofbiz.entity.GenericEntityException;
+import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.condition.EntityCondition;
+import org.apache.ofbiz.entity.condition.EntityOperator;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.entity.util.EntityQuery;
+import org.apache.ofbiz.service.DispatchContext;
+import org.apache.ofbiz.service.GenericServiceException;
+import org.apache.ofbiz.service.LocalDispatcher;
+import org.apache.ofbiz.service.ServiceUtil;
+import org.apache.ofbiz.solr.CategoryGraph;
+import org.apache.ofbiz.solr.SolrIndexBuffer;
+import org.apache.ofbiz.solr.SolrProductQuery;
+import org.apache.ofbiz.solr.SolrShadowCore;
+import org.apache.ofbiz.solr.SolrUtil;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Services generating a reproducible synthetic catalog and measuring the Solr indexing and search performances on it,
+ * to compare a Solr upgrade or a schema change with the previous results.
+ * <p>
+ * The generated products, categories and features have ids starting with a prefix, so that they can be removed with
+ * {@link #removeSolrBenchmarkProducts(DispatchContext, Map)}, and their names, features and prices are drawn from a
+ * seeded random generator, so that the same parameters always generate the same catalog.
+ */
+public class SolrBenchmarkServices {
+
+    private static final String MODULE = SolrBenchmarkServices.class.getName();
+    private static final String[] WORDS = {"alpha", "bolt", "cable", "drill", "engine", "filter", "gear", "hammer", "iron", "joint",
+        "kettle", "lamp", "motor", "nozzle", "oven", "pump", "quartz", "rotor", "spring", "tube", "valve", "washer", "yoke",
+        "zinc", "blue", "green", "red", "large", "small", "steel"};
+    private static final String[] FEATURE_TYPES = {"COLOR", "SIZE"};
+    private static final int STORE_CHUNK_SIZE = 1000;
+    private static final int WARM_UP_QUERIES = 20;
+    private static final long ECA_POLL_INTERVAL = 20L;
+
+    /**
+     * Generates a catalog of products, categories and features with ids starting with <code>idPrefix</code>. The
+     * categories form a two levels tree under a root category browsed by a catalog, each product is a member of one
+     * leaf category and has list and default prices and a few features. Existing values are overwritten.
+     */
+    public static Map<String, Object> generateSolrBenchmarkProducts(DispatchContext dctx, Map<String, Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        String idPrefix = (String) context.get("idPrefix");
+        int productCount = (Integer) context.get("productCount");
+        int categoryCount = Math.max((Integer) context.get("categoryCount"), 1);
+        int featureCount = Math.max((Integer) context.get("featureCount"), 1);
+        Random random = new Random((Long) context.get("seed"));
+        Timestamp fromDate = Timestamp.valueOf("2001-01-01 00:00:00");
+
+        List<GenericValue> values = new ArrayList<>();
+        String rootCategoryId = idPrefix + "_ROOT";
+        values.add(delegator.makeValue("ProdCatalog", UtilMisc.toMap("prodCatalogId", idPrefix, "catalogName", idPrefix + " catalog")));
+        values.add(delegator.makeValue("ProductCategory", UtilMisc.toMap("productCategoryId", rootCategoryId,
+                "productCategoryTypeId", "CATALOG_CATEGORY", "categoryName", idPrefix + " root")));
+        values.add(delegator.makeValue("ProdCatalogCategory", UtilMisc.toMap("prodCatalogId", idPrefix, "productCategoryId", rootCategoryId,
+                "prodCatalogCategoryTypeId", "PCCT_BROWSE_ROOT", "fromDate", fromDate, "sequenceNum", 1L)));
+        // The first categories are children of the root, the others are spread under them
+        int topCategoryCount = Math.max((int) Math.sqrt(categoryCount), 1);
+        List<String> leafCategoryIds = new ArrayList<>();
+        for (int i = 0; i < categoryCount; i++) {
+            String productCategoryId = idPrefix + "_C" + i;
+            String parentCategoryId = i < topCategoryCount ? rootCategoryId : idPrefix + "_C" + (i % topCategoryCount);
+            values.add(delegator.makeValue("ProductCategory", UtilMisc.toMap("productCategoryId", productCategoryId,
+                    "productCategoryTypeId", "CATALOG_CATEGORY", "primaryParentCategoryId", parentCategoryId,
+                    "categoryName", words(random, 2))));
+            values.add(delegator.makeValue("ProductCategoryRollup", UtilMisc.toMap("productCategoryId", productCategoryId,
+                    "parentProductCategoryId", parentCategoryId, "fromDate", fromDate)));
+            if (i >= topCategoryCount || categoryCount == topCategoryCount) {
+                leafCategoryIds.add(productCategoryId);
+            }
+        }
+        for (int i = 0; i < featureCount; i++) {
+            values.add(delegator.makeValue("ProductFeature", UtilMisc.toMap("productFeatureId", idPrefix + "_F" + i,
+                    "productFeatureTypeId", FEATURE_TYPES[i % FEATURE_TYPES.length], "description", words(random, 1))));
+        }
+
+        try {
+            store(delegator, values);
+            for (int i = 0; i < productCount; i++) {
+                String productId = idPrefix + "_P" + i;
+                String productName = words(random, 3);
+                values.add(delegator.makeValue("Product", UtilMisc.toMap("productId", productId, "productTypeId", "FINISHED_GOOD",
+                        "internalName", productName, "productName", productName, "description", words(random, 8),
+                        "longDescription", words(random, 30), "isVirtual", "N", "isVariant", "N")));
+                values.add(delegator.makeValue("ProductCategoryMember", UtilMisc.toMap("productCategoryId",
+                        leafCategoryIds.get(random.nextInt(leafCategoryIds.size())), "productId", productId, "fromDate", fromDate)));
+                BigDecimal listPrice = BigDecimal.valueOf(100 + random.nextInt(100000), 2);
+                values.add(makePrice(delegator, productId, "LIST_PRICE", listPrice, fromDate));
+                values.add(makePrice(delegator, productId, "DEFAULT_PRICE",
+                        listPrice.multiply(BigDecimal.valueOf(70 + random.nextInt(31), 2)).setScale(2, RoundingMode.HALF_UP), fromDate));
+                for (int j = random.nextInt(Math.min(featureCount, 3) + 1); j > 0; j--) {
+                    values.add(delegator.makeValue("ProductFeatureAppl", UtilMisc.toMap("productId", productId,
+                            "productFeatureId", idPrefix + "_F" + random.nextInt(featureCount), "productFeatureApplTypeId", "STANDARD_FEATURE",
+                            "fromDate", fromDate)));
+                }
+                if (values.size() >= STORE_CHUNK_SIZE) {
+                    store(delegator, values);
+                }
+            }
+            store(delegator, values);
+            CategoryGraph.clearCache();
+        } catch (GenericEntityException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        Debug.logInfo("Solr benchmark: generated " + productCount + " products in " + categoryCount + " categories with "
+                + featureCount + " features", MODULE);
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Removes the catalog generated by {@link #generateSolrBenchmarkProducts(DispatchContext, Map)} from the database
+     * and its products from the index.
+     */
+    public static Map<String, Object> removeSolrBenchmarkProducts(DispatchContext dctx, Map<String, Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        String idPrefix = (String) context.get("idPrefix");
+        String solrIndexName = (String) context.get("indexName");
+        // The ids are matched in Java, as an underscore of a LIKE pattern matches any character
+        Pattern productIdPattern = Pattern.compile(Pattern.quote(idPrefix) + "_P\\d+");
+        Pattern featureIdPattern = Pattern.compile(Pattern.quote(idPrefix) + "_F\\d+");
+        Pattern categoryIdPattern = Pattern.compile(Pattern.quote(idPrefix) + "_(C\\d+|ROOT)");
+        try {
+            List<String> productIds = findGeneratedIds(delegator, "Product", "productId", idPrefix, productIdPattern);
+            for (String entityName : Arrays.asList("ProductFeatureAppl", "ProductPrice", "ProductCategoryMember", "Product")) {
+                removeByIds(delegator, entityName, "productId", productIds);
+            }
+            removeByIds(delegator, "ProductFeature", "productFeatureId",
+                    findGeneratedIds(delegator, "ProductFeature", "productFeatureId", idPrefix, featureIdPattern));
+            List<String> categoryIds = findGeneratedIds(delegator, "ProductCategory", "productCategoryId", idPrefix, categoryIdPattern);
+            for (String entityName : Arrays.asList("ProdCatalogCategory", "ProductCategoryRollup", "ProductCategory")) {
+                removeByIds(delegator, entityName, "productCategoryId", categoryIds);
+            }
+            delegator.removeByAnd("ProdCatalog", UtilMisc.toMap("prodCatalogId", idPrefix));
+            CategoryGraph.clearCache();
+            if (!productIds.isEmpty()) {
+                SolrClient client = SolrUtil.getSolrClient(solrIndexName);
+                client.deleteById(productIds);
+                client.commit();
+            }
+        } catch (GenericEntityException | SolrServerException | IOException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Finds the ids generated by {@link #generateSolrBenchmarkProducts(DispatchContext, Map)} in a field of an entity.
+     */
+    private static List<String> findGeneratedIds(Delegator delegator, String entityName, String fieldName, String idPrefix,
+            Pattern idPattern) throws GenericEntityException {
+        List<String> ids = new ArrayList<>();
+        for (GenericValue value : EntityQuery.use(delegator).select(fieldName).from(entityName)
+                .where(EntityCondition.makeCondition(fieldName, EntityOperator.LIKE, idPrefix + "%")).queryList()) {
+            String id = value.getString(fieldName);
+            if (idPattern.matcher(id).matches()) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static void removeByIds(Delegator delegator, String entityName, String fieldName, List<String> ids)
+            throws GenericEntityException {
+        for (int i = 0; i < ids.size(); i += STORE_CHUNK_SIZE) {
+            delegator.removeByCondition(entityName, EntityCondition.makeCondition(fieldName, EntityOperator.IN,
+                    ids.subList(i, Math.min(i + STORE_CHUNK_SIZE, ids.size()))));
+        }
+    }
+
+    /**
+     * Measures, on the generated catalog:
+     * <ul>
+     * <li>the throughput of a full rebuild of the index, in documents per second;</li>
+     * <li>the latency between the commit of a product change and its visibility in the index, through the same path as
+     * the product ECAs;</li>
+     * <li>the latency percentiles of keyword, category, faceted, price range and deep paging queries, sent straight
+     * to the index without the query cache.</li>
+     * </ul>
+     * The results are returned and written as JSON to <code>outputFile</code>, by default a timestamped file in
+     * <code>solr.benchmark.outputDir</code>.
+     */
+    public static Map<String, Object> runSolrBenchmark(DispatchContext dctx, Map<String, Object> context) {
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        Delegator delegator = dctx.getDelegator();
+        String solrIndexName = (String) context.get("indexName");
+        String idPrefix = (String) context.get("idPrefix");
+        int productCount = (Integer) context.get("productCount");
+        int categoryCount = (Integer) context.get("categoryCount");
+        int queryCount = (Integer) context.get("queryCount");
+        int ecaProductCount = Math.min((Integer) context.get("ecaProductCount"), productCount);
+        long ecaTimeout = (Long) context.get("ecaTimeout");
+        Random random = new Random((Long) context.get("seed"));
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("timestamp", UtilDateTime.nowTimestamp().toString());
+        results.put("luceneVersion", Version.LATEST.toString());
+        results.put("javaVersion", System.getProperty("java.version"));
+        results.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        results.put("indexName", solrIndexName);
+        results.put("productCount", productCount);
+        results.put("categoryCount", categoryCount);
+        results.put("seed", context.get("seed"));
+        try {
+            if (!Boolean.FALSE.equals(context.get("generate"))) {
+                Map<String, Object> generateContext = dctx.makeValidContext("generateSolrBenchmarkProducts", "IN", context);
+                Map<String, Object> generateResult = dispatcher.runSync("generateSolrBenchmarkProducts", generateContext);
+                if (ServiceUtil.isError(generateResult)) {
+                    return ServiceUtil.returnError(ServiceUtil.getErrorMessage(generateResult));
+                }
+            }
+            SolrClient client = SolrUtil.getSolrClient(solrIndexName);
+            results.put("rebuild", measureRebuild(dispatcher, client, solrIndexName, context));
+            results.put("eca", measureEcaLatency(dctx, client, solrIndexName, idPrefix, ecaProductCount, ecaTimeout));
+
+            Map<String, Object> queries = new LinkedHashMap<>();
+            queries.put("keyword", measureQueries(client, queryCount, () -> new SolrQuery("text:" + WORDS[random.nextInt(WORDS.length)])));
+            CategoryGraph categoryGraph = CategoryGraph.getInstance(delegator);
+            queries.put("category", measureQueries(client, queryCount, () -> {
+                List<String> trailPaths = categoryGraph.getTrailPaths(idPrefix + "_C" + random.nextInt(Math.max(categoryCount, 1)));
+                return SolrProductQuery.builder().filter("cat", trailPaths.get(trailPaths.size() - 1)).build().toSolrQuery();
+            }));
+            queries.put("facets", measureQueries(client, queryCount, () -> SolrProductQuery.builder()
+                    .query("text:" + WORDS[random.nextInt(WORDS.length)]).facetField("cat", "features").facetLimit(8)
+                    .facetRanges("listPrice", Arrays.asList("0", "50", "100", "250", "500", "1000")).build().toSolrQuery()));
+            queries.put("priceRange", measureQueries(client, queryCount, () -> {
+                int from = random.nextInt(900);
+                return SolrProductQuery.builder().filterRange("listPrice", from, from + 100).sort("listPrice", SolrQuery.ORDER.asc)
+                        .build().toSolrQuery();
+            }));
+            queries.put("deepPage", measureQueries(client, queryCount, () -> SolrProductQuery.builder()
+                    .start(random.nextInt(Math.max(productCount - 10, 1))).rows(10).sort(SolrProductQuery.PRODUCT_ID, SolrQuery.ORDER.asc)
+                    .build().toSolrQuery()));
+            results.put("queries", queries);
+        } catch (GenericServiceException | GenericEntityException | SolrServerException | IOException e) {
+            Debug.logError(e, MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ServiceUtil.returnError(e.getMessage());
+        }
+
+        String outputFile = (String) context.get("outputFile");
+        try {
+            Path outputPath;
+            if (outputFile != null) {
+                outputPath = Paths.get(outputFile);
+            } else {
+                outputPath = Paths.get(UtilProperties.getPropertyValue("solrconfig", "solr.benchmark.outputDir", "runtime/logs/solr-benchmark"),
+                        "solr-benchmark-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+            }
+            if (outputPath.getParent() != null) {
+                Files.createDirectories(outputPath.getParent());
+            }
+            String json = JSON.from(results).toString();
+            Files.write(outputPath, json.getBytes(StandardCharsets.UTF_8));
+            Debug.logInfo("Solr benchmark: results written to " + outputPath.toAbsolutePath() + ": " + json, MODULE);
+            outputFile = outputPath.toAbsolutePath().toString();
+        } catch (IOException e) {
+            Debug.logError(e, "Solr benchmark: could not write the results", MODULE);
+            return ServiceUtil.returnError(e.getMessage());
+        }
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("results", results);
+        result.put("outputFile", outputFile);
+        return result;
+    }
+
+    /**
+     * Rebuilds the index and measures the documents indexed per second.
+     */
+    private static Map<String, Object> measureRebuild(LocalDispatcher dispatcher, SolrClient client, String solrIndexName,
+            Map<String, Object> context) throws GenericServiceException, SolrServerException, IOException {
+        // The index is rebuilt in place, so that the benchmark never swaps the cores of the index it measures
+        Map<String, Object> rebuildContext = UtilMisc.toMap("indexName", solrIndexName, "swapCores", Boolean.FALSE,
+                "userLogin", context.get("userLogin"));
+        long startTime = System.nanoTime();
+        Map<String, Object> rebuildResult = dispatcher.runSync("rebuildSolrIndex", rebuildContext);
+        long elapsed = Math.max(System.nanoTime() - startTime, 1);
+        if (ServiceUtil.isError(rebuildResult)) {
+            throw new GenericServiceException(ServiceUtil.getErrorMessage(rebuildResult));
+        }
+        long documentCount = SolrShadowCore.countDocuments(client);
+        Map<String, Object> rebuild = new LinkedHashMap<>();
+        rebuild.put("documentCount", documentCount);
+        rebuild.put("timeMs", elapsed / 1000000L);
+        rebuild.put("docsPerSecond", documentCount * 1000000000L / elapsed);
+        Debug.logInfo("Solr benchmark: rebuilt " + documentCount + " documents in " + elapsed / 1000000L + " ms", MODULE);
+        return rebuild;
+    }
+
+    /**
+     * Changes the internal name of products, each one in its own transaction, and measures the time until the new name
+     * is searchable. With the ECAs disabled the products are queued to the index buffer as the asynchronous ECAs would.
+     */
+    private static Map<String, Object> measureEcaLatency(DispatchContext dctx, SolrClient client, String solrIndexName, String idPrefix,
+            int productCount, long timeout) throws GenericEntityException, GenericServiceException, SolrServerException, IOException,
+            InterruptedException {
+        Delegator delegator = dctx.getDelegator();
+        boolean ecaEnabled = SolrUtil.isSolrEcaEnabled();
+        Map<String, String> pendingNames = new LinkedHashMap<>();
+        Map<String, Long> commitTimes = new HashMap<>();
+        for (int i = 0; i < productCount; i++) {
+            String productId = idPrefix + "_P" + i;
+            GenericValue product = EntityQuery.use(delegator).from("Product").where("productId", productId).queryOne();
+            if (product == null) {
+                continue;
+            }
+            String internalName = "benchmark" + System.nanoTime();
+            product.set("internalName", internalName);
+            boolean beganTransaction = TransactionUtil.begin();
+            try {
+                product.store();
+                if (ecaEnabled) {
+                    dctx.getDispatcher().runSync("addToSolr", UtilMisc.toMap("instance", product, "indexName", solrIndexName));
+                } else {
+                    SolrIndexBuffer.getInstance(dctx, solrIndexName).queueAfterCommit(productId);
+                }
+                TransactionUtil.commit(beganTransaction);
+            } catch (GenericEntityException | GenericServiceException e) {
+                TransactionUtil.rollback(beganTransaction, e.getMessage(), e);
+                throw e;
+            }
+            commitTimes.put(productId, System.nanoTime());
+            pendingNames.put(productId, internalName);
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        while (!pendingNames.isEmpty() && System.nanoTime() < deadline) {
+            SolrProductQuery.Builder queryBuilder = SolrProductQuery.builder().fields("internalName").rows(pendingNames.size());
+            queryBuilder.filterQuery(SolrProductQuery.PRODUCT_ID + ":(" + String.join(" OR ", pendingNames.keySet()) + ")");
+            SolrDocumentList documents = client.query(queryBuilder.build().toSolrQuery()).getResults();
+            long now = System.nanoTime();
+            documents.forEach(document -> {
+                String productId = (String) document.getFirstValue(SolrProductQuery.PRODUCT_ID);
+                if (pendingNames.get(productId) != null && pendingNames.get(productId).equals(document.getFirstValue("internalName"))) {
+                    latencies.add(now - commitTimes.get(productId));
+                    pendingNames.remove(productId);
+                }
+            });
+            if (!pendingNames.isEmpty()) {
+                Thread.sleep(ECA_POLL_INTERVAL);
+            }
+        }
+        Map<String, Object> eca = percentiles(latencies);
+        eca.put("ecaEnabled", ecaEnabled);
+        eca.put("timedOut", pendingNames.size());
+        return eca;
+    }
+
+    /**
+     * Runs queries after a few warm-up ones and measures their latencies.
+     */
+    private static Map<String, Object> measureQueries(SolrClient client, int queryCount, Supplier<SolrQuery> querySupplier)
+            throws SolrServerException, IOException {
+        for (int i = 0; i < WARM_UP_QUERIES; i++) {
+            client.query(querySupplier.get());
+        }
+        List<Long> latencies = new ArrayList<>(queryCount);
+        long numFound = 0;
+        for (int i = 0; i < queryCount; i++) {
+            SolrQuery solrQuery = querySupplier.get();
+            long startTime = System.nanoTime();
+            numFound += client.query(solrQuery).getResults().getNumFound();
+            latencies.add(System.nanoTime() - startTime);
+        }
+        Map<String, Object> measures = percentiles(latencies);
+        measures.put("averageNumFound", queryCount > 0 ? numFound / queryCount : 0);
+        return measures;
+    }
+
+    /**
+     * Gets the count, mean, percentiles and maximum of latencies, in milliseconds.
+     */
+    private static Map<String, Object> percentiles(List<Long> latencies) {
+        Map<String, Object> measures = new LinkedHashMap<>();
+        measures.put("count", latencies.size());
+        if (latencies.isEmpty()) {
+            return measures;
+        }
+        latencies.sort(null);
+        long total = 0;
+        for (Long latency : latencies) {
+            total += latency;
+        }
+        measures.put("meanMs", toMillis(total / latencies.size()));
+        for (int percentile : new int[] {50, 90, 99}) {
+            int rank = (int) Math.ceil(percentile / 100.0 * latencies.size());
+            measures.put("p" + percentile + "Ms", toMillis(latencies.get(Math.max(rank - 1, 0))));
+        }
+        measures.put("maxMs", toMillis(latencies.get(latencies.size() - 1)));
+        return measures;
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+
+    private static GenericValue makePrice(Delegator delegator, String productId, String productPriceTypeId, BigDecimal price,
+            Timestamp fromDate) {
+        return delegator.makeValue("ProductPrice", UtilMisc.toMap("productId", productId, "productPriceTypeId", productPriceTypeId,
+                "productPricePurposeId", "PURCHASE", "currencyUomId", "USD", "productStoreGroupId", "_NA_", "fromDate", fromDate,
+                "price", price));
+    }
+
+    /**
+     * Stores values in their own transaction and clears the list.
+     */
+    private static void store(Delegator delegator, List<GenericValue> values) throws GenericEntityException {
+        if (values.isEmpty()) {
+            return;
+        }
+        boolean beganTransaction = TransactionUtil.begin();
+        try {
+            delegator.storeAll(values);
+            TransactionUtil.commit(beganTransaction);
+        } catch (GenericEntityException e) {
+            TransactionUtil.rollback(beganTransaction, e.getMessage(), e);
+            throw e;
+        }
+        values.clear();
+    }
+}
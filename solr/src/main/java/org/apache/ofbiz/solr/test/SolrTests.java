@@ -20,18 +20,32 @@
 
 package org.apache.ofbiz.solr.test;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.ofbiz.base.util.UtilGenerics;
 import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.entity.transaction.TransactionUtil;
+import org.apache.ofbiz.solr.SolrClientRegistry;
+import org.apache.ofbiz.solr.SolrIndexBuffer;
+import org.apache.ofbiz.solr.SolrProductPage;
+import org.apache.ofbiz.solr.SolrProductQuery;
+import org.apache.ofbiz.solr.SolrProductSearcher;
 import org.apache.ofbiz.entity.util.EntityQuery;
 import org.apache.ofbiz.service.ServiceUtil;
 import org.apache.ofbiz.service.testtools.OFBizTestCase;
+import org.apache.solr.client.solrj.response.UpdateResponse;
 
 public class SolrTests extends OFBizTestCase {
 
+    private static final long INDEXING_TIMEOUT = 30000L;
+
     private Map<String, Object> context;
     private Map<String, Object> response;
     private String validTestProductId = "GZ-1006";
@@ -167,5 +181,147 @@ public class SolrTests extends OFBizTestCase {
         assertTrue("Could not test adding invalid products to index", ServiceUtil.isSuccess(response));
 
     }
-}
 
+    /**
+     * Test the document builder benchmark.
+     * @throws Exception the exception
+     */
+    public void testBenchmarkSolrDocumentBuilder() throws Exception {
+        context = new HashMap<>();
+        context.put("productCount", 20);
+        context.put("userLogin", EntityQuery.use(getDelegator()).from("UserLogin").where("userLoginId", "system").queryOne());
+        response = getDispatcher().runSync("benchmarkSolrDocumentBuilder", context);
+        if (ServiceUtil.isError(response)) {
+            String errorMessage = ServiceUtil.getErrorMessage(response);
+            throw new Exception(errorMessage);
+        }
+        assertTrue("Could not benchmark the document builder", ServiceUtil.isSuccess(response));
+        assertTrue("No document built", (Integer) response.get("documentCount") > 0);
+        assertTrue("No documents per second measured", (Long) response.get("parallelDocsPerSecond") > 0);
+    }
+
+    /**
+     * Test that streaming the products with a cursor reads all the products found by a search.
+     * @throws Exception the exception
+     */
+    public void testStreamProducts() throws Exception {
+        context = new HashMap<>();
+        context.put("productId", validTestProductId);
+        response = getDispatcher().runSync("addToSolrIndex", context);
+        if (ServiceUtil.isError(response)) {
+            String errorMessage = ServiceUtil.getErrorMessage(response);
+            throw new Exception(errorMessage);
+        }
+
+        SolrProductQuery query = SolrProductQuery.builder().fields("internalName", "listPrice").rows(0).build();
+        SolrProductPage page = SolrProductSearcher.search("solrdefault", query);
+        assertTrue("No product found", page.getNumFound() > 0);
+
+        AtomicLong streamed = new AtomicLong();
+        long count = SolrProductSearcher.stream("solrdefault", query.toBuilder().rows(2).build(), hit -> {
+            assertNotNull("Product without id", hit.getProductId());
+            streamed.incrementAndGet();
+        });
+        assertEquals("Not all products streamed", page.getNumFound(), count);
+        assertEquals("Not all products consumed", count, streamed.get());
+    }
+
+    /**
+     * Test the benchmark suite on a small generated catalog.
+     * @throws Exception the exception
+     */
+    public void testRunSolrBenchmark() throws Exception {
+        context = new HashMap<>();
+        context.put("productCount", 20);
+        context.put("categoryCount", 4);
+        context.put("queryCount", 5);
+        context.put("ecaProductCount", 2);
+        context.put("userLogin", EntityQuery.use(getDelegator()).from("UserLogin").where("userLoginId", "system").queryOne());
+        try {
+            response = getDispatcher().runSync("runSolrBenchmark", context);
+            if (ServiceUtil.isError(response)) {
+                String errorMessage = ServiceUtil.getErrorMessage(response);
+                throw new Exception(errorMessage);
+            }
+            Map<String, Object> results = UtilGenerics.cast(response.get("results"));
+            Map<String, Object> rebuild = UtilGenerics.cast(results.get("rebuild"));
+            assertTrue("No document rebuilt", (Long) rebuild.get("documentCount") >= 20);
+            Map<String, Object> eca = UtilGenerics.cast(results.get("eca"));
+            assertEquals("Not all ECA changes indexed", 2, eca.get("count"));
+            Map<String, Object> queries = UtilGenerics.cast(results.get("queries"));
+            Map<String, Object> keyword = UtilGenerics.cast(queries.get("keyword"));
+            assertEquals("Not all queries measured", 5, keyword.get("count"));
+        } finally {
+            getDispatcher().runSync("removeSolrBenchmarkProducts", new HashMap<>());
+        }
+    }
+
+    /**
+     * Test that the products queued by a rolled back transaction are dropped and the committed ones indexed.
+     * @throws Exception the exception
+     */
+    public void testIndexBufferRollback() throws Exception {
+        SolrIndexBuffer indexBuffer = SolrIndexBuffer.getInstance(getDispatcher().getDispatchContext(), "solrdefault");
+        indexBuffer.startRecording();
+        try {
+            assertTrue("Could not begin a transaction", TransactionUtil.begin());
+            indexBuffer.queueAfterCommit(validTestProductId2);
+            TransactionUtil.rollback();
+
+            assertTrue("Could not begin a transaction", TransactionUtil.begin());
+            indexBuffer.queueAfterCommit(validTestProductId);
+            TransactionUtil.commit();
+
+            Set<String> sentProductIds = waitForSentProduct(indexBuffer, validTestProductId);
+            assertTrue("Committed product not sent", sentProductIds.contains(validTestProductId));
+            assertFalse("Rolled back product sent", sentProductIds.contains(validTestProductId2));
+        } finally {
+            indexBuffer.takeRecordedProductIds(true);
+        }
+    }
+
+    /**
+     * Test that the products of a batch which could not be sent are sent again.
+     * @throws Exception the exception
+     */
+    public void testIndexBufferRetry() throws Exception {
+        // No core of this name exists, so every batch fails
+        SolrIndexBuffer indexBuffer = SolrIndexBuffer.getInstance(getDispatcher().getDispatchContext(), "solrtestsmissing");
+        indexBuffer.startRecording();
+        try {
+            indexBuffer.queue(Collections.singletonList(validTestProductId));
+            assertTrue("Product not sent", waitForSentProduct(indexBuffer, validTestProductId).contains(validTestProductId));
+            assertTrue("Product not sent again after the failed batch",
+                    waitForSentProduct(indexBuffer, validTestProductId).contains(validTestProductId));
+        } finally {
+            indexBuffer.takeRecordedProductIds(true);
+            indexBuffer.shutdown();
+        }
+    }
+
+    /**
+     * Test that an update, whose body cannot be replayed, is sent again once logged in when there is no session.
+     * @throws Exception the exception
+     */
+    public void testUpdateWithoutSession() throws Exception {
+        SolrClientRegistry registry = SolrClientRegistry.getInstance();
+        registry.logout();
+        long loginCount = (Long) registry.getMetrics().get("loginCount");
+
+        // Removing a product which is not indexed changes nothing, but is still an update
+        UpdateResponse updateResponse = registry.getHttpClient("solrdefault").deleteById(invalidTestProductId);
+
+        assertEquals("Update not accepted", 0, updateResponse.getStatus());
+        assertTrue("Update sent without logging in", (Long) registry.getMetrics().get("loginCount") > loginCount);
+    }
+
+    private static Set<String> waitForSentProduct(SolrIndexBuffer indexBuffer, String productId) throws InterruptedException {
+        Set<String> sentProductIds = new HashSet<>();
+        long timeout = System.currentTimeMillis() + INDEXING_TIMEOUT;
+        while (!sentProductIds.contains(productId) && System.currentTimeMillis() < timeout) {
+            Thread.sleep(100);
+            sentProductIds.addAll(indexBuffer.takeRecordedProductIds(false));
+        }
+        return sentProductIds;
+    }
+}
@@ -20,6 +20,8 @@ package org.apache.ofbiz.solr.webapp;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
@@ -46,9 +48,13 @@ import org.apache.ofbiz.base.util.UtilProperties;
 import org.apache.ofbiz.base.util.UtilTimer;
 import org.apache.ofbiz.base.util.UtilValidate;
 import org.apache.ofbiz.entity.GenericValue;
+import org.apache.ofbiz.solr.SolrClientRegistry;
+import org.apache.ofbiz.solr.SolrIndexBuffer;
+import org.apache.ofbiz.solr.SolrShadowCore;
 import org.apache.ofbiz.webapp.control.LoginWorker;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
 import org.apache.solr.core.NodeConfig;
 import org.apache.solr.servlet.SolrDispatchFilter;
 
@@ -97,6 +103,10 @@ public class OFBizSolrContextFilter extends SolrDispatchFilter {
         props.setProperty("solr.log.dir", UtilProperties.getPropertyValue("solrconfig", "solr.log.dir", "runtime/logs/solr"));
         props.setProperty("solr.log.level", UtilProperties.getPropertyValue("solrconfig", "solr.log.level", "INFO"));
         props.setProperty("solr/home", UtilProperties.getPropertyValue("solrconfig", "solr/home"));
+        Path coreRootDirectory = SolrShadowCore.getCoreRootDirectory();
+        if (coreRootDirectory != null) {
+            props.setProperty("coreRootDirectory", coreRootDirectory.toString());
+        }
         super.init(config);
     }
     /** Do filter */
@@ -188,9 +198,36 @@ public class OFBizSolrContextFilter extends SolrDispatchFilter {
     /** Destroy */
     @Override
     public void destroy() {
+        // The products queued by the ECAs are sent while the cores are still available
+        SolrIndexBuffer.shutdownAll();
+        SolrClientRegistry.setLocalCoreContainer(null);
+        SolrClientRegistry.shutdown();
         super.destroy();
     }
 
+    /**
+     * Creates in the core root directory the cores of the Solr home it does not have yet, when it is not the Solr home:
+     * the directories of the Solr home having a <code>core.properties</code> file are then only used as config sets.
+     */
+    private static void createMissingCores(CoreContainer coreContainer, NodeConfig nodeConfig) {
+        Path solrHome = nodeConfig.getSolrResourceLoader().getInstancePath().toAbsolutePath().normalize();
+        if (solrHome.equals(nodeConfig.getCoreRootDirectory().toAbsolutePath().normalize())) {
+            return;
+        }
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(solrHome, Files::isDirectory)) {
+            for (Path directory : directories) {
+                String coreName = directory.getFileName().toString();
+                if (Files.exists(directory.resolve("core.properties")) && !coreContainer.getAllCoreNames().contains(coreName)) {
+                    coreContainer.create(coreName, nodeConfig.getCoreRootDirectory().resolve(coreName),
+                            UtilMisc.toMap(CoreDescriptor.CORE_CONFIGSET, coreName), false);
+                    Debug.logInfo("Solr: Created the core " + coreName + " in " + nodeConfig.getCoreRootDirectory(), MODULE);
+                }
+            }
+        } catch (IOException | SolrException e) {
+            Debug.logError(e, "Solr: Could not create the cores of the Solr home in " + nodeConfig.getCoreRootDirectory(), MODULE);
+        }
+    }
+
     /**
      * Override this to change CoreContainer initialization
      * @return a CoreContainer to hold this server's cores
@@ -207,6 +244,9 @@ public class OFBizSolrContextFilter extends SolrDispatchFilter {
         }
         cores = new CoreContainer(nodeConfig, extraProperties, true);
         cores.load();
+        createMissingCores(cores, nodeConfig);
+        // The solr clients of this JVM use the cores directly instead of going through HTTP
+        SolrClientRegistry.setLocalCoreContainer(cores);
         return cores;
     }
 }